@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A class to analyse one position in multi-PV mode on a background thread, publishing every
+// line of every iteration to Flow subscribers as the search deepens.
+//
+// Lines go out through a SubmissionPublisher, so each subscriber has its own bounded buffer,
+// receives lines only as it requests them, and may cancel at any time. When a subscriber's
+// buffer is full, new lines are dropped for that subscriber instead of waiting for it: a slow
+// consumer never holds up the search, and since every depth supersedes the one before, it only
+// sees fewer intermediate results. The deepest line of each rank is always kept for getLines.
+// Once every subscriber has cancelled, the search stops.
+//
+// With an AnalysisCache, a single-line analysis with a depth or time limit is answered from the
+// cache when the position was analysed before (deep enough, if a depth limit is set), without
+// searching; every search that completes an iteration adds its best line's result to the cache.
+public class Analysis implements Flow.Publisher<Analysis.Line> {
+    private final Chess game;
+    private final Search search;
+    private final int lines;
+    private final SubmissionPublisher<Line> publisher;
+    private final AtomicLong dropped;
+    // Deepest line found for each rank
+    private volatile Line[] latest;
+    private volatile boolean subscribed;
+    // Search.search clears the Search's own stop flag when it begins, so a stop that comes
+    // before then is kept here and passed on once the first iteration is done
+    private volatile boolean stopRequested;
+    private AnalysisCache cache;
+    private Thread thread;
+
+    /**
+     * Constructs a new Analysis of a game's current position, delivering lines on the
+     * common fork-join pool with the default buffer size.
+     * @param game The game; it is copied, so it may be played on while the analysis runs
+     * @param lines Number of lines to find at every depth
+     * @throws IllegalArgumentException If lines is less than 1
+     */
+    public Analysis(Chess game, int lines) {
+        this(game, lines, new Search(), ForkJoinPool.commonPool(), Flow.defaultBufferSize());
+    }
+
+    /**
+     * Constructs a new Analysis of a game's current position.
+     * @param game The game; it is copied, so it may be played on while the analysis runs
+     * @param lines Number of lines to find at every depth
+     * @param search The Search to analyse with; it must not be used elsewhere until done,
+     *               after which its listeners and multi-PV setting are as they were
+     * @param executor Where to run the subscribers' callbacks
+     * @param bufferCapacity Lines to buffer for each subscriber before dropping new ones
+     * @throws IllegalArgumentException If lines or bufferCapacity is less than 1
+     */
+    public Analysis(Chess game, int lines, Search search, Executor executor, int bufferCapacity) {
+        if(lines < 1) {
+            throw new IllegalArgumentException("At least one line is needed");
+        }
+        this.game = game.copy();
+        this.search = search;
+        this.lines = lines;
+        publisher = new SubmissionPublisher<>(executor, bufferCapacity);
+        dropped = new AtomicLong();
+        latest = new Line[0];
+    }
+
+    /**
+     * Adds a subscriber. Subscribe before calling start to see every line.
+     * @param subscriber The subscriber
+     */
+    public void subscribe(Flow.Subscriber<? super Line> subscriber) {
+        subscribed = true;
+        publisher.subscribe(subscriber);
+    }
+
+    /**
+     * Sets a cache to answer the position from before searching it, and to store the result in.
+     * Call it before start.
+     * @param cache The cache, or null for none
+     */
+    public synchronized void setCache(AnalysisCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Starts the analysis on a background thread. Subscribers are completed when it ends,
+     * or receive onError if the search fails.
+     * @param maxDepth Deepest iteration to run
+     * @param maxMillis Time budget in milliseconds, or 0 to run until stopped
+     * @throws IllegalStateException If the analysis was already started
+     */
+    public synchronized void start(int maxDepth, long maxMillis) {
+        if(thread != null) {
+            throw new IllegalStateException("Analysis already started");
+        }
+        // Positions along each line are replayed on a separate copy to name the moves
+        Chess names = game.copy();
+        Search.Listener listener = stats -> {
+            publish(names, stats);
+            if(stopRequested) {
+                search.stop();
+            }
+        };
+        AnalysisCache cache = this.cache;
+        int previousLines = search.getMultiPV();
+        search.setMultiPV(lines);
+        search.addListener(listener);
+        thread = new Thread(() -> {
+            try {
+                if(!stopRequested && !answerFromCache(cache, maxDepth, maxMillis)) {
+                    int move = search.search(game, maxDepth, 0, maxMillis);
+                    if(cache != null && search.getDepth() > 0) {
+                        cache.put(game.hash(), move, search.getScore(), search.getDepth());
+                    }
+                }
+                publisher.close();
+            } catch(IOException ex) {
+                publisher.closeExceptionally(new UncheckedIOException(ex));
+            } catch(RuntimeException ex) {
+                publisher.closeExceptionally(ex);
+            } finally {
+                // Leave the Search as it was, so it can be used again once the analysis is done
+                search.removeListener(listener);
+                search.setMultiPV(previousLines);
+            }
+        }, "analysis");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Asks the analysis to stop as soon as possible. Safe to call from any thread, even
+     * before the search has begun.
+     */
+    public void stop() {
+        stopRequested = true;
+        search.stop();
+    }
+
+    /**
+     * Waits for the analysis to end.
+     * @return the deepest line found for each rank, best first
+     * @throws InterruptedException If interrupted while waiting
+     * @throws IllegalStateException If the analysis was not started
+     */
+    public List<Line> await() throws InterruptedException {
+        Thread running;
+        synchronized(this) {
+            running = thread;
+        }
+        if(running == null) {
+            throw new IllegalStateException("Analysis not started");
+        }
+        running.join();
+        return getLines();
+    }
+
+    /**
+     * Retrieves the deepest line found so far for each rank.
+     * @return the lines, best first
+     */
+    public List<Line> getLines() {
+        return Collections.unmodifiableList(Arrays.asList(latest.clone()));
+    }
+
+    /**
+     * Retrieves how many lines were dropped because a subscriber's buffer was full,
+     * counting once per subscriber that missed a line.
+     * @return the dropped line count
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * A private helper method to publish the cached result of the position as its only line,
+     * if the cache holds one that satisfies the limits. Analyses that find several lines or
+     * run until stopped always search.
+     * @param cache The cache, or null for none
+     * @param maxDepth Deepest iteration to run
+     * @param maxMillis Time budget in milliseconds, or 0 to run until stopped
+     * @return true if the result was published and no search is needed
+     */
+    private boolean answerFromCache(AnalysisCache cache, int maxDepth, long maxMillis) {
+        if(cache == null || lines > 1 || (maxDepth >= Search.MAX_PLY && maxMillis <= 0)) {
+            return false;
+        }
+        AnalysisCache.Entry cached = cache.get(game, maxDepth < Search.MAX_PLY ? maxDepth : 0);
+        if(cached == null) {
+            return false;
+        }
+        offer(new Line(cached.depth, 1, cached.score, 0, 0,
+                Collections.singletonList(game.toSAN(cached.move))));
+        return true;
+    }
+
+    /**
+     * A private helper method to publish one line, called on the search thread.
+     * @param names Copy of the game at the analysed position, used to name the moves
+     * @param stats Statistics of the line
+     */
+    private void publish(Chess names, Search.Stats stats) {
+        int[] moves = stats.getPrincipalVariation();
+        List<String> san = new ArrayList<>();
+        for(int move : moves) {
+            san.add(names.toSAN(move));
+            names.doMove(move);
+        }
+        for(int i = 0; i < moves.length; i++) {
+            names.undoMove();
+        }
+        offer(new Line(stats.getDepth(), stats.getMultiPV(), stats.getScore(),
+                stats.getNodes(), stats.getElapsedNanos() / 1_000_000, san));
+    }
+
+    /**
+     * A private helper method to keep a line as the latest of its rank and hand it to the
+     * subscribers, called on the search thread.
+     * @param line The line
+     */
+    private void offer(Line line) {
+        Line[] updated = Arrays.copyOf(latest, Math.max(latest.length, line.rank));
+        updated[line.rank - 1] = line;
+        latest = updated;
+        // Never blocks: a full buffer drops the line for that subscriber only
+        publisher.offer(line, (subscriber, item) -> {
+            dropped.incrementAndGet();
+            return false;
+        });
+        if(subscribed && publisher.getNumberOfSubscribers() == 0) {
+            search.stop();
+        }
+    }
+
+    // A class to represent one line of an analysis at one depth
+    public static class Line {
+        public final int depth;
+        // Rank of the line at its depth, 1 for the best
+        public final int rank;
+        // Score in centipawns for the player to move, or near +/-Search.MATE for mates
+        public final int score;
+        public final long nodes;
+        public final long millis;
+        // Expected moves, in Standard Algebraic Notation
+        public final List<String> moves;
+
+        /**
+         * Constructs a new Line.
+         * @param depth Depth the line was found at
+         * @param rank Rank of the line at that depth, 1 for the best
+         * @param score Score in centipawns for the player to move
+         * @param nodes Nodes searched so far
+         * @param millis Time spent so far, in milliseconds
+         * @param moves Expected moves, in Standard Algebraic Notation; copied
+         */
+        public Line(int depth, int rank, int score, long nodes, long millis, List<String> moves) {
+            this.depth = depth;
+            this.rank = rank;
+            this.score = score;
+            this.nodes = nodes;
+            this.millis = millis;
+            this.moves = Collections.unmodifiableList(new ArrayList<>(moves));
+        }
+
+        /**
+         * Checks if the line ends in checkmate.
+         * @return the number of moves to mate, negative if the player to move gets mated,
+         *         or 0 if the line does not end in checkmate
+         */
+        public int mateIn() {
+            if(Math.abs(score) < Search.MATE - Search.MAX_PLY) {
+                return 0;
+            }
+            return score > 0 ? (Search.MATE - score + 1) / 2 : -(Search.MATE + score) / 2;
+        }
+
+        /**
+         * Formats the line like a UCI info line.
+         * @return a String representation of the line
+         */
+        public String toString() {
+            String value = mateIn() != 0 ? "mate " + mateIn() : "cp " + score;
+            return String.format("depth %d multipv %d score %s nodes %d time %d pv %s", depth, rank,
+                    value, nodes, millis, String.join(" ", moves));
+        }
+    }
+}
@@ -0,0 +1,578 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// A class to remember analysis results (best move, score and depth) by position hash, across
+// games and restarts. Lookups go through two tiers:
+//
+//   1. a bounded in-memory cache, split into stripes that each have their own lock and evict
+//      their least recently used entry when full, so concurrent sessions rarely contend;
+//   2. a directory on disk, holding an append-only log of every result stored and a compacted
+//      index: all results up to the last compaction, sorted by hash and memory-mapped, so that
+//      opening the cache only has to replay the log written since.
+//
+// Compaction merges the log into a new index, written aside and renamed into place, and then
+// starts a new log generation; a crash at any point leaves either the old or the new index with
+// its matching log. For each position the deepest result is kept.
+//
+// Files: eval.idx holds a 32-byte header (magic, version, generation, record count) and then
+// the records; eval-<generation>.log holds records only. A record is 16 bytes: the hash, then
+// the packed result (move in bits 0-15, score in bits 16-31, depth in bits 32-39). Big-endian.
+public class AnalysisCache implements Closeable {
+    private static final int MAGIC = 0x45564958;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int RECORD_BYTES = 16;
+    private static final String INDEX_NAME = "eval.idx";
+    // The index is mapped in segments, since a single mapping is limited to 2GB; records are
+    // aligned so that none crosses a segment boundary
+    private static final int SEGMENT_SHIFT = 30;
+    private static final int STRIPES = 16;
+    // Logged results kept on the heap before compacting automatically
+    private static final int DEFAULT_COMPACT_THRESHOLD = 1 << 20;
+
+    private final Path directory;
+    private final List<Map<Long, Long>> stripes;
+    // Results logged since the last compaction, which the index does not have yet
+    private final ConcurrentHashMap<Long, Long> recent;
+    private final int compactThreshold;
+    private final ByteBuffer logBuffer;
+    private FileChannel log;
+    private long generation;
+    private volatile Index index;
+    private final LongAdder memoryHits;
+    private final LongAdder diskHits;
+    private final LongAdder misses;
+
+    /**
+     * Opens a cache, creating its directory if needed.
+     * @param directory Where the cache files live
+     * @param memoryEntries Most results to keep in memory
+     * @throws IOException If the files cannot be read or created
+     * @throws IllegalArgumentException If memoryEntries is not positive, or the index is corrupt
+     */
+    public AnalysisCache(Path directory, int memoryEntries) throws IOException {
+        this(directory, memoryEntries, DEFAULT_COMPACT_THRESHOLD);
+    }
+
+    /**
+     * Opens a cache, creating its directory if needed.
+     * @param directory Where the cache files live
+     * @param memoryEntries Most results to keep in memory
+     * @param compactThreshold Results to log before compacting automatically
+     * @throws IOException If the files cannot be read or created
+     * @throws IllegalArgumentException If a size is not positive, or the index is corrupt
+     */
+    public AnalysisCache(Path directory, int memoryEntries, int compactThreshold) throws IOException {
+        if(memoryEntries < 1 || compactThreshold < 1) {
+            throw new IllegalArgumentException("Cache sizes must be positive");
+        }
+        this.directory = directory;
+        this.compactThreshold = compactThreshold;
+        int perStripe = Math.max(1, memoryEntries / STRIPES);
+        stripes = new ArrayList<>(STRIPES);
+        for(int i = 0; i < STRIPES; i++) {
+            // Access order makes the eldest entry the least recently used one
+            stripes.add(new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+                /**
+                 * Evicts the least recently used entry once the stripe holds more than its share
+                 * of the entries.
+                 * @param eldest The least recently used entry
+                 * @return true if it should be removed
+                 */
+                protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                    return size() > perStripe;
+                }
+            });
+        }
+        recent = new ConcurrentHashMap<>();
+        logBuffer = ByteBuffer.allocateDirect(RECORD_BYTES * 4096);
+        memoryHits = new LongAdder();
+        diskHits = new LongAdder();
+        misses = new LongAdder();
+
+        Files.createDirectories(directory);
+        Path indexFile = directory.resolve(INDEX_NAME);
+        index = Files.exists(indexFile) ? Index.open(indexFile) : Index.EMPTY;
+        generation = index.generation;
+        replay(logPath(generation));
+        // Logs of older generations are left behind by a crash just after a compaction
+        try(DirectoryStream<Path> logs = Files.newDirectoryStream(directory, "eval-*.log")) {
+            for(Path old : logs) {
+                if(!old.equals(logPath(generation))) {
+                    Files.delete(old);
+                }
+            }
+        }
+        log = openLog(generation);
+    }
+
+    /**
+     * Looks up the result stored for a position.
+     * @param hash The position's hash, as returned by Chess.hash()
+     * @return the result, or null if none is stored
+     */
+    public Entry get(long hash) {
+        Map<Long, Long> stripe = stripe(hash);
+        Long packed;
+        synchronized(stripe) {
+            packed = stripe.get(hash);
+        }
+        if(packed != null) {
+            memoryHits.increment();
+            return new Entry(packed);
+        }
+        // The log must be checked before the index: compaction swaps in the new index first
+        packed = recent.get(hash);
+        if(packed == null) {
+            packed = index.find(hash);
+        }
+        if(packed == null) {
+            misses.increment();
+            return null;
+        }
+        diskHits.increment();
+        synchronized(stripe) {
+            stripe.put(hash, packed);
+        }
+        return new Entry(packed);
+    }
+
+    /**
+     * Looks up the result stored for a position, if it is deep enough. A result whose move is
+     * not legal in the position (left by another position with the same hash) is ignored.
+     * @param game The game, at the position
+     * @param minDepth Shallowest result to accept
+     * @return the result, or null if none deep enough is stored
+     */
+    public Entry get(Chess game, int minDepth) {
+        Entry entry = get(game.hash());
+        if(entry == null || entry.depth < minDepth) {
+            return null;
+        }
+        int[] moves = new int[Chess.MAX_MOVES];
+        int n = game.generateMoves(moves);
+        for(int i = 0; i < n; i++) {
+            if(moves[i] == entry.move) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores a result for a position, unless a deeper one is already stored.
+     * The result is logged to disk, but only written out once the log buffer fills up,
+     * or on flush or close.
+     * @param hash The position's hash, as returned by Chess.hash()
+     * @param move The best move, encoded as by Chess.generateMoves
+     * @param score The score in centipawns for the player to move
+     * @param depth The depth searched, from 0 to 255
+     * @throws IOException If the log cannot be written
+     * @throws IllegalArgumentException If the depth or score is out of range
+     */
+    public void put(long hash, int move, int score, int depth) throws IOException {
+        if(depth < 0 || depth > 255 || score < Short.MIN_VALUE || score > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Depth or score out of range");
+        }
+        long packed = (move & 0xFFFFL) | (score & 0xFFFFL) << 16 | (long) depth << 32;
+        Map<Long, Long> stripe = stripe(hash);
+        synchronized(stripe) {
+            Long old = stripe.get(hash);
+            if(old != null && depth(old) > depth) {
+                return;
+            }
+        }
+        if(append(hash, packed)) {
+            synchronized(stripe) {
+                stripe.put(hash, packed);
+            }
+        }
+    }
+
+    /**
+     * Writes buffered results to the log.
+     * @throws IOException If the log cannot be written
+     */
+    public synchronized void flush() throws IOException {
+        logBuffer.flip();
+        while(logBuffer.hasRemaining()) {
+            log.write(logBuffer);
+        }
+        logBuffer.clear();
+    }
+
+    /**
+     * Merges the log into a new index and starts a new log. Lookups continue meanwhile;
+     * stores wait until it is done.
+     * @throws IOException If the files cannot be written
+     */
+    public synchronized void compact() throws IOException {
+        flush();
+        long[] keys = new long[recent.size()];
+        int n = 0;
+        for(long key : recent.keySet()) {
+            keys[n++] = key;
+        }
+        Arrays.sort(keys, 0, n);
+        Path temporary = directory.resolve(INDEX_NAME + ".tmp");
+        long count = 0;
+        try(FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            // The header is written last, once the count is known
+            out.position(HEADER_BYTES);
+            // Merge the two sorted runs, keeping the deeper result for equal hashes
+            long i = 0;
+            int j = 0;
+            Index old = index;
+            while(i < old.count || j < n) {
+                long key;
+                long packed;
+                if(j == n || (i < old.count && Long.compare(old.key(i), keys[j]) < 0)) {
+                    key = old.key(i);
+                    packed = old.value(i++);
+                } else {
+                    key = keys[j++];
+                    packed = recent.get(key);
+                    if(i < old.count && old.key(i) == key) {
+                        long older = old.value(i++);
+                        packed = depth(older) > depth(packed) ? older : packed;
+                    }
+                }
+                if(!buffer.hasRemaining()) {
+                    drain(buffer, out);
+                }
+                buffer.putLong(key).putLong(packed);
+                count++;
+            }
+            drain(buffer, out);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putLong(generation + 1).putLong(count).putLong(0);
+            header.flip();
+            while(header.hasRemaining()) {
+                out.write(header, header.position());
+            }
+            out.force(true);
+        }
+        Path indexFile = directory.resolve(INDEX_NAME);
+        Files.move(temporary, indexFile, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        index = Index.open(indexFile);
+        recent.clear();
+        log.close();
+        Files.delete(logPath(generation));
+        generation++;
+        log = openLog(generation);
+    }
+
+    /**
+     * Retrieves how many lookups each tier answered, and how many missed.
+     * @return the memory hits, disk hits and misses
+     */
+    public long[] getStats() {
+        return new long[] {memoryHits.sum(), diskHits.sum(), misses.sum()};
+    }
+
+    /**
+     * Retrieves the number of results on disk, counting a position once per tier.
+     * @return the results in the index plus those logged since
+     */
+    public long size() {
+        return index.count + recent.size();
+    }
+
+    /**
+     * Writes buffered results and closes the log. The index is not compacted.
+     * @throws IOException If the log cannot be written
+     */
+    public synchronized void close() throws IOException {
+        if(log.isOpen()) {
+            flush();
+            log.close();
+        }
+    }
+
+    /**
+     * Prints the size of a cache, or compacts it, from the command line.
+     * Usage: java AnalysisCache dir [compact]
+     * @param args The arguments
+     * @throws IOException If the files cannot be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1) {
+            System.out.println("Usage: java AnalysisCache <dir> [compact]");
+            return;
+        }
+        long start = System.nanoTime();
+        try(AnalysisCache cache = new AnalysisCache(Paths.get(args[0]), 1 << 16)) {
+            System.out.printf("Opened %d results in %.1f ms%n", cache.size(),
+                    (System.nanoTime() - start) / 1e6);
+            if(args.length > 1 && args[1].equals("compact")) {
+                cache.compact();
+                System.out.printf("Compacted to %d results%n", cache.size());
+            }
+        }
+    }
+
+    /**
+     * A private helper method to log a result and compact once enough are logged.
+     * @param hash The position's hash
+     * @param packed The packed result
+     * @return false if a deeper result is already on disk, so nothing was logged
+     * @throws IOException If the log cannot be written
+     */
+    private synchronized boolean append(long hash, long packed) throws IOException {
+        Long old = recent.get(hash);
+        if(old == null) {
+            old = index.find(hash);
+        }
+        if(old != null && depth(old) > depth(packed)) {
+            return false;
+        }
+        if(!logBuffer.hasRemaining()) {
+            flush();
+        }
+        logBuffer.putLong(hash).putLong(packed);
+        recent.put(hash, packed);
+        if(recent.size() >= compactThreshold) {
+            compact();
+        }
+        return true;
+    }
+
+    /**
+     * A private helper method to read the results of a log into the recent results.
+     * A partly written last record, left by a crash, is ignored.
+     * @param file The log
+     * @throws IOException If the log cannot be read
+     */
+    private void replay(Path file) throws IOException {
+        if(!Files.exists(file)) {
+            return;
+        }
+        try(FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long whole = in.size() - in.size() % RECORD_BYTES;
+            ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_BYTES * 4096);
+            long read = 0;
+            while(read < whole) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), whole - read));
+                while(buffer.hasRemaining() && in.read(buffer) >= 0) {
+                    // Fill the buffer
+                }
+                buffer.flip();
+                read += buffer.remaining();
+                while(buffer.remaining() >= RECORD_BYTES) {
+                    long hash = buffer.getLong();
+                    long packed = buffer.getLong();
+                    recent.merge(hash, packed, (a, b) -> depth(a) > depth(b) ? a : b);
+                }
+            }
+            if(whole < in.size()) {
+                // Drop the partial record, so that new records stay aligned
+                try(FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    out.truncate(whole);
+                }
+            }
+        }
+    }
+
+    /**
+     * A private helper method to open a log for appending, creating it if needed.
+     * @param number The log's generation
+     * @return the channel
+     * @throws IOException If the log cannot be opened
+     */
+    private FileChannel openLog(long number) throws IOException {
+        return FileChannel.open(logPath(number), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * A private helper method to name a log file.
+     * @param number The log's generation
+     * @return the path of the log
+     */
+    private Path logPath(long number) {
+        return directory.resolve("eval-" + number + ".log");
+    }
+
+    /**
+     * A private helper method to find the in-memory stripe a hash belongs to.
+     * @param hash The position's hash
+     * @return the stripe, which must be locked while used
+     */
+    private Map<Long, Long> stripe(long hash) {
+        return stripes.get((int) (hash ^ hash >>> 32) & (STRIPES - 1));
+    }
+
+    /**
+     * A private helper method to extract the depth from a packed result.
+     * @param packed The packed result
+     * @return the depth
+     */
+    private static int depth(long packed) {
+        return (int) (packed >>> 32) & 0xFF;
+    }
+
+    /**
+     * A private helper method to write a full buffer out, leaving it empty.
+     * @param buffer The buffer
+     * @param out Where to write
+     * @throws IOException If writing fails
+     */
+    private static void drain(ByteBuffer buffer, FileChannel out) throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // A class to represent a stored result
+    public static class Entry {
+        // Best move, encoded as by Chess.generateMoves
+        public final int move;
+        // Score in centipawns for the player to move
+        public final int score;
+        public final int depth;
+
+        /**
+         * Constructs a new Entry.
+         * @param packed The packed result
+         */
+        private Entry(long packed) {
+            move = (int) (packed & 0xFFFF);
+            score = (short) (packed >>> 16);
+            depth = AnalysisCache.depth(packed);
+        }
+
+        /**
+         * Formats the Entry.
+         * @return the move, score and depth
+         */
+        public String toString() {
+            return Chess.moveName(move) + " " + score + " (depth " + depth + ")";
+        }
+    }
+
+    // A class to binary search a memory-mapped index file
+    private static class Index {
+        private static final Index EMPTY = new Index(new MappedByteBuffer[0], 0, 0);
+
+        private final MappedByteBuffer[] segments;
+        private final long generation;
+        private final long count;
+
+        /**
+         * Constructs a new Index.
+         * @param segments The mapped segments of the file
+         * @param generation Generation of the log that goes with the index
+         * @param count Number of records
+         */
+        private Index(MappedByteBuffer[] segments, long generation, long count) {
+            this.segments = segments;
+            this.generation = generation;
+            this.count = count;
+        }
+
+        /**
+         * Maps an index file.
+         * @param file The file
+         * @return the index
+         * @throws IOException If the file cannot be read
+         * @throws IllegalArgumentException If the file is not a complete index
+         */
+        private static Index open(Path file) throws IOException {
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                while(header.hasRemaining() && channel.read(header) >= 0) {
+                    // Fill the header
+                }
+                header.flip();
+                if(size < HEADER_BYTES || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                    throw new IllegalArgumentException("Not an analysis cache index: " + file);
+                }
+                long generation = header.getLong();
+                long count = header.getLong();
+                if(size != HEADER_BYTES + count * RECORD_BYTES) {
+                    throw new IllegalArgumentException("Truncated analysis cache index: " + file);
+                }
+                long segmentBytes = 1L << SEGMENT_SHIFT;
+                MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + segmentBytes - 1) / segmentBytes)];
+                for(int i = 0; i < segments.length; i++) {
+                    long start = i * segmentBytes;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                            Math.min(size - start, segmentBytes));
+                }
+                return new Index(segments, generation, count);
+            }
+        }
+
+        /**
+         * Finds the result of a hash.
+         * @param hash The hash
+         * @return the packed result, or null if absent
+         */
+        private Long find(long hash) {
+            long low = 0;
+            long high = count - 1;
+            while(low <= high) {
+                long mid = (low + high) >>> 1;
+                int cmp = Long.compare(key(mid), hash);
+                if(cmp == 0) {
+                    return value(mid);
+                } else if(cmp < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * A private helper method to read the hash of a record.
+         * @param i Index of the record
+         * @return the hash
+         */
+        private long key(long i) {
+            return read(HEADER_BYTES + i * RECORD_BYTES);
+        }
+
+        /**
+         * A private helper method to read the packed result of a record.
+         * @param i Index of the record
+         * @return the packed result
+         */
+        private long value(long i) {
+            return read(HEADER_BYTES + i * RECORD_BYTES + 8);
+        }
+
+        /**
+         * A private helper method to read a long from the mapped file.
+         * @param offset Position in the file, never in the last 7 bytes of a segment
+         * @return the long
+         */
+        private long read(long offset) {
+            return segments[(int) (offset >>> SEGMENT_SHIFT)].getLong((int) (offset & ((1L << SEGMENT_SHIFT) - 1)));
+        }
+    }
+}
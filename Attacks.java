@@ -0,0 +1,204 @@
+// Precomputed attack tables for every type of Chess piece.
+// Squares are numbered from 0 (a1) to 63 (h8) rank by rank, the same way as Square indices,
+// and sets of squares are stored as bitboards: bit i of a long is set if square i is included.
+
+public class Attacks {
+    // Squares attacked by a Knight/King on each square
+    public static final long[] KNIGHT = new long[64];
+    public static final long[] KING = new long[64];
+    // Squares attacked by a Pawn on each square, indexed by [Color ordinal][square]
+    public static final long[][] PAWN = new long[2][64];
+    // Squares a Queen on each square could reach on an empty board
+    public static final long[] RAYS = new long[64];
+
+    // Magic multipliers that hash the blockers of a slider into a perfect index into its
+    // attack table. They were found by random search and are checked when the tables are built.
+    private static final long[] ROOK_MAGICS = {
+            0x5280002082400050L, 0x0040002000401000L, 0x09000C4010200100L,
+            0xC480144800900080L, 0x2200200810040200L, 0xE200020001140870L,
+            0x088000802A000100L, 0x0080128001A04900L, 0x0000801020804004L,
+            0x0540400020100040L, 0x0002002146908200L, 0x0000801000800800L,
+            0x0811001008010004L, 0x0002000408020010L, 0x0221000100820024L,
+            0x0014800045000080L, 0x6040208000400080L, 0x083008C000402003L,
+            0x8460004010080040L, 0x2010010008210010L, 0x0008818008008400L,
+            0x4020808004000200L, 0x0000040002011088L, 0x00001200010040A4L,
+            0x0400400180008025L, 0x8000400080802000L, 0x4410200080100080L,
+            0x0004480180100184L, 0xC001000500100800L, 0x0106008081000400L,
+            0x09A4880400021001L, 0x00C0048200304104L, 0x0290204000801080L,
+            0x2810002012400242L, 0x1080801000802000L, 0x1080100021000904L,
+            0x0080080080800400L, 0x0400040080800200L, 0x2042114894001012L,
+            0x2000005082000124L, 0x0080012000414000L, 0x3000400100810028L,
+            0x1150200010008080L, 0x8110008008008010L, 0x8001020800050010L,
+            0x0004020004008080L, 0x000E023001440008L, 0x121040804512000CL,
+            0x0080208018410100L, 0x9320142040008280L, 0x0101C4A001001100L,
+            0x4000300028008280L, 0x0202001004082200L, 0x8022005044492200L,
+            0x000021A210280400L, 0x0645010080440200L, 0x024021008001C273L,
+            0x20A021008040120AL, 0x0802104100E82001L, 0x000A040821001001L,
+            0x3001000800021005L, 0x2801001204000803L, 0x60A0010090082224L,
+            0x0420442084004112L
+    };
+    private static final long[] BISHOP_MAGICS = {
+            0x42E0200C04604240L, 0x4002040800A90800L, 0x4A08084042820200L,
+            0x3824040492028018L, 0x4204050480000194L, 0x4002082288800200L,
+            0x3492020220040006L, 0x1810430800A62010L, 0x010010200801004CL,
+            0xC222200802008028L, 0x002008020C043600L, 0x1440480A00240012L,
+            0x0000211040014424L, 0x8000182808880050L, 0x1005004802101006L,
+            0xC40D0044040C2200L, 0x2085004004080203L, 0x0050000204010420L,
+            0x2010000810204010L, 0x02A0800802810000L, 0x0181000820080000L,
+            0x0202004300908C00L, 0x0801002048021100L, 0x0002012480410801L,
+            0x0230103804251004L, 0xC024044620210402L, 0x0080410010040188L,
+            0x00C0104004004080L, 0x4214040000410051L, 0x020801100A010480L,
+            0x0004104801080220L, 0x280400280100824CL, 0x0004200400081104L,
+            0x0025101000829400L, 0x1044004400204110L, 0x2930842008040100L,
+            0x0820404040440100L, 0x08C2108200030808L, 0x0010041080210081L,
+            0x0004823080024402L, 0x0000820840812004L, 0x1010440208C52004L,
+            0x1000404050002040L, 0x00810A0212000400L, 0x0508100210100A02L,
+            0x0031100100444200L, 0x0228212800910200L, 0x0002880211240480L,
+            0x8000820802410000L, 0x0200A2220E200000L, 0x0210002A11100000L,
+            0x0049C04942088000L, 0x0020114002821380L, 0x8060100518082028L,
+            0x0020881080808800L, 0x3822843104010431L, 0x0843010090040200L,
+            0x1081004108080220L, 0x400280004C040400L, 0x4080114018840442L,
+            0x2840010010204840L, 0x00000010A0010102L, 0x0440043010812100L,
+            0x0051202803004110L
+    };
+    private static final int[][] ROOK_DIRS = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+    private static final int[][] BISHOP_DIRS = {{1, 1}, {1, -1}, {-1, 1}, {-1, -1}};
+    // Squares whose pieces can block a slider on each square (board edges never block)
+    private static final long[] ROOK_MASKS = new long[64];
+    private static final long[] BISHOP_MASKS = new long[64];
+    private static final int[] ROOK_SHIFTS = new int[64];
+    private static final int[] BISHOP_SHIFTS = new int[64];
+    // Slider attacks indexed by [square][magic index]
+    private static final long[][] ROOK_TABLE = new long[64][];
+    private static final long[][] BISHOP_TABLE = new long[64][];
+
+    static {
+        for(int sq = 0; sq < 64; sq++) {
+            KNIGHT[sq] = steps(sq, new int[][] {{1, 2}, {2, 1}, {2, -1}, {1, -2},
+                    {-1, -2}, {-2, -1}, {-2, 1}, {-1, 2}});
+            KING[sq] = steps(sq, new int[][] {{1, 0}, {1, 1}, {0, 1}, {-1, 1},
+                    {-1, 0}, {-1, -1}, {0, -1}, {1, -1}});
+            PAWN[0][sq] = steps(sq, new int[][] {{-1, 1}, {1, 1}});
+            PAWN[1][sq] = steps(sq, new int[][] {{-1, -1}, {1, -1}});
+            ROOK_MASKS[sq] = slide(sq, 0L, ROOK_DIRS, true);
+            BISHOP_MASKS[sq] = slide(sq, 0L, BISHOP_DIRS, true);
+            ROOK_SHIFTS[sq] = 64 - Long.bitCount(ROOK_MASKS[sq]);
+            BISHOP_SHIFTS[sq] = 64 - Long.bitCount(BISHOP_MASKS[sq]);
+            ROOK_TABLE[sq] = fill(sq, ROOK_MASKS[sq], ROOK_MAGICS[sq], ROOK_SHIFTS[sq], ROOK_DIRS);
+            BISHOP_TABLE[sq] = fill(sq, BISHOP_MASKS[sq], BISHOP_MAGICS[sq], BISHOP_SHIFTS[sq],
+                    BISHOP_DIRS);
+            RAYS[sq] = slide(sq, 0L, ROOK_DIRS, false) | slide(sq, 0L, BISHOP_DIRS, false);
+        }
+    }
+
+    /**
+     * Retrieves the squares attacked by a Rook.
+     * @param square The square the Rook is on
+     * @param occupied Every occupied square
+     * @return the attacked squares, including the first blocker in each direction
+     */
+    public static long rook(int square, long occupied) {
+        return ROOK_TABLE[square]
+                [(int) (((occupied & ROOK_MASKS[square]) * ROOK_MAGICS[square]) >>> ROOK_SHIFTS[square])];
+    }
+
+    /**
+     * Retrieves the squares attacked by a Bishop.
+     * @param square The square the Bishop is on
+     * @param occupied Every occupied square
+     * @return the attacked squares, including the first blocker in each direction
+     */
+    public static long bishop(int square, long occupied) {
+        return BISHOP_TABLE[square][(int) (((occupied & BISHOP_MASKS[square]) *
+                BISHOP_MAGICS[square]) >>> BISHOP_SHIFTS[square])];
+    }
+
+    /**
+     * Retrieves the squares attacked by a Queen.
+     * @param square The square the Queen is on
+     * @param occupied Every occupied square
+     * @return the attacked squares, including the first blocker in each direction
+     */
+    public static long queen(int square, long occupied) {
+        return rook(square, occupied) | bishop(square, occupied);
+    }
+
+    /**
+     * A private helper method to collect the squares one step away from a square.
+     * @param square The starting square
+     * @param offsets {file, rank} offsets of each step
+     * @return the squares that are on the board
+     */
+    private static long steps(int square, int[][] offsets) {
+        long out = 0L;
+        for(int[] offset : offsets) {
+            int file = (square & 7) + offset[0];
+            int rank = (square >>> 3) + offset[1];
+            if(0 <= file && file < 8 && 0 <= rank && rank < 8) {
+                out |= 1L << (rank * 8 + file);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * A private helper method to walk a slider's rays one square at a time.
+     * @param square The square the slider is on
+     * @param occupied Every occupied square
+     * @param dirs {file, rank} direction of each ray
+     * @param blockersOnly true to stop before the edge of the board (the mask of squares
+     *                     that can block the slider), false for the attacked squares
+     * @return the walked squares
+     */
+    private static long slide(int square, long occupied, int[][] dirs, boolean blockersOnly) {
+        long out = 0L;
+        for(int[] dir : dirs) {
+            int file = (square & 7) + dir[0];
+            int rank = (square >>> 3) + dir[1];
+            while(0 <= file && file < 8 && 0 <= rank && rank < 8) {
+                int next = file + dir[0];
+                int nextRank = rank + dir[1];
+                if(blockersOnly && !(0 <= next && next < 8 && 0 <= nextRank && nextRank < 8)) {
+                    break;
+                }
+                out |= 1L << (rank * 8 + file);
+                if((occupied & (1L << (rank * 8 + file))) != 0) {
+                    break;
+                }
+                file = next;
+                rank = nextRank;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * A private helper method to build one square's slider attack table by enumerating
+     * every subset of its blocker mask.
+     * @param square The square the slider is on
+     * @param mask The squares that can block the slider
+     * @param magic The square's magic multiplier
+     * @param shift The square's index shift
+     * @param dirs {file, rank} direction of each ray
+     * @return the attack table
+     * @throws IllegalStateException If the magic multiplier maps two different attack sets
+     *                               to the same index
+     */
+    private static long[] fill(int square, long mask, long magic, int shift, int[][] dirs) {
+        long[] table = new long[1 << (64 - shift)];
+        boolean[] used = new boolean[table.length];
+        long blockers = 0L;
+        do {
+            long attacks = slide(square, blockers, dirs, false);
+            int index = (int) ((blockers * magic) >>> shift);
+            if(used[index] && table[index] != attacks) {
+                throw new IllegalStateException("Bad magic for square " + square);
+            }
+            used[index] = true;
+            table[index] = attacks;
+            // Carry-rippler trick to step to the next subset of the mask
+            blockers = (blockers - mask) & mask;
+        } while(blockers != 0);
+        return table;
+    }
+}
@@ -0,0 +1,378 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// A class to analyse a stream of positions, one FEN or EPD record per line, with a pool of
+// search workers. Results are written in input order, as EPD: the position and its original
+// operations, followed by the engine's predicted move (pm), predicted variation (pv),
+// evaluation in centipawns (ce), depth (acd) and nodes (acn). Lines that cannot be analysed
+// get a comment operation (c0) instead. An expected best move (bm) or move to avoid (am) in the
+// input is checked against the predicted move, which makes test suites easy to score.
+//
+// Workers may finish out of order, so their results wait in a reorder buffer until all earlier
+// lines are written. The buffer holds a fixed window of lines; once it is full, reading stops
+// until the oldest line is written, so memory use does not grow with the input.
+//
+// With an AnalysisCache, positions analysed before (deep enough, if a depth limit is set) are
+// answered from the cache without searching, and new results are added to it.
+public class BatchAnalysis {
+    private final int threads;
+    private final int maxDepth;
+    private final long maxNodes;
+    private final long maxMillis;
+    private final int hashMegabytes;
+    // Most lines being analysed or waiting to be written at once
+    private final int window;
+    private AnalysisCache cache;
+    // Counts of the last run
+    private long positions;
+    private long errors;
+    private long tested;
+    private long solved;
+
+    /**
+     * Constructs a new BatchAnalysis.
+     * @param threads Number of search workers
+     * @param maxDepth Deepest iteration per position
+     * @param maxNodes Node budget per position, or 0 for none
+     * @param maxMillis Time budget per position in milliseconds, or 0 for none
+     * @param hashMegabytes Size of each worker's transposition table
+     * @throws IllegalArgumentException If threads or maxDepth is not positive
+     */
+    public BatchAnalysis(int threads, int maxDepth, long maxNodes, long maxMillis, int hashMegabytes) {
+        if(threads < 1 || maxDepth < 1) {
+            throw new IllegalArgumentException("Threads and depth must be positive");
+        }
+        this.threads = threads;
+        this.maxDepth = maxDepth;
+        this.maxNodes = maxNodes;
+        this.maxMillis = maxMillis;
+        this.hashMegabytes = hashMegabytes;
+        window = Math.max(64, threads * 16);
+    }
+
+    /**
+     * Sets a cache to answer positions from before searching them, and to store results in.
+     * @param cache The cache, or null for none
+     */
+    public void setCache(AnalysisCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Analyses every line of the input, blocking until all results are written.
+     * Blank lines and lines starting with '#' are skipped.
+     * @param in Where to read positions
+     * @param out Where to write results, one line per position; flushed, not closed
+     * @return the number of positions analysed
+     * @throws IOException If reading or writing fails
+     * @throws InterruptedException If interrupted while waiting for the workers
+     */
+    public long run(BufferedReader in, Writer out) throws IOException, InterruptedException {
+        positions = 0;
+        errors = 0;
+        tested = 0;
+        solved = 0;
+        ThreadLocal<Worker> workers = ThreadLocal.withInitial(() -> new Worker(hashMegabytes));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        // Results by sequence number modulo the window, null until ready
+        Outcome[] ready = new Outcome[window];
+        long next = 0;
+        long submitted = 0;
+        try {
+            String line;
+            while((line = in.readLine()) != null) {
+                if(line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+                while(submitted - next == window) {
+                    write(take(ready, next++), out);
+                }
+                String record = line;
+                long sequence = submitted++;
+                pool.execute(() -> {
+                    Outcome outcome;
+                    try {
+                        outcome = workers.get().analyze(record);
+                    } catch(RuntimeException ex) {
+                        // Every line needs a result, or the lines after it would never be written
+                        outcome = new Outcome(record + " c0 \"failed: " + ex + "\";", true, false, false);
+                    }
+                    synchronized(ready) {
+                        ready[(int) (sequence % window)] = outcome;
+                        ready.notifyAll();
+                    }
+                });
+                // Write whatever is already done without waiting
+                while(next < submitted && peek(ready, next)) {
+                    write(take(ready, next++), out);
+                }
+            }
+            while(next < submitted) {
+                write(take(ready, next++), out);
+            }
+            out.flush();
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        return positions;
+    }
+
+    /**
+     * A private helper method to check if the result of a line is ready.
+     * @param ready The reorder buffer
+     * @param sequence The line's sequence number
+     * @return true if it is ready
+     */
+    private boolean peek(Outcome[] ready, long sequence) {
+        synchronized(ready) {
+            return ready[(int) (sequence % window)] != null;
+        }
+    }
+
+    /**
+     * A private helper method to wait for the result of a line and remove it from the buffer.
+     * @param ready The reorder buffer
+     * @param sequence The line's sequence number
+     * @return the result
+     * @throws InterruptedException If interrupted while waiting
+     */
+    private Outcome take(Outcome[] ready, long sequence) throws InterruptedException {
+        int slot = (int) (sequence % window);
+        synchronized(ready) {
+            while(ready[slot] == null) {
+                ready.wait();
+            }
+            Outcome outcome = ready[slot];
+            ready[slot] = null;
+            return outcome;
+        }
+    }
+
+    /**
+     * A private helper method to write one result and count it.
+     * @param outcome The result
+     * @param out Where to write
+     * @throws IOException If writing fails
+     */
+    private void write(Outcome outcome, Writer out) throws IOException {
+        positions++;
+        if(outcome.error) {
+            errors++;
+        }
+        if(outcome.tested) {
+            tested++;
+            if(outcome.solved) {
+                solved++;
+            }
+        }
+        out.write(outcome.text);
+        out.write('\n');
+    }
+
+    /**
+     * Analyses positions from a file, or standard input, and writes the results to standard
+     * output. A summary goes to standard error.
+     * Usage: java BatchAnalysis [file|-] [threads] [nodes] [millis] [depth] [hash MB] [cache dir]
+     * @param args The arguments
+     * @throws IOException If reading or writing fails
+     * @throws InterruptedException If interrupted while waiting for the workers
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String file = args.length > 0 ? args[0] : "-";
+        int threads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        long nodes = args.length > 2 ? Long.parseLong(args[2]) : 100_000;
+        long millis = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        int depth = args.length > 4 ? Integer.parseInt(args[4]) : Search.MAX_PLY;
+        int hash = args.length > 5 ? Integer.parseInt(args[5]) : 4;
+        BatchAnalysis batch = new BatchAnalysis(threads, depth, nodes, millis, hash);
+        AnalysisCache cache = args.length > 6 ? new AnalysisCache(Paths.get(args[6]), 1 << 20) : null;
+        batch.setCache(cache);
+        long start = System.nanoTime();
+        try(BufferedReader in = file.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), 1 << 16)
+                : Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+            batch.run(in, out);
+        } finally {
+            if(cache != null) {
+                cache.close();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("%d positions in %.1f s (%.1f per second), %d errors", batch.positions,
+                seconds, batch.positions / seconds, batch.errors);
+        if(batch.tested > 0) {
+            System.err.printf(", %d of %d solved", batch.solved, batch.tested);
+        }
+        if(cache != null) {
+            long[] stats = cache.getStats();
+            System.err.printf(", cache hits %d in memory and %d on disk, %d misses", stats[0],
+                    stats[1], stats[2]);
+        }
+        System.err.println();
+    }
+
+    // A class to hold the result of one line
+    private static class Outcome {
+        private final String text;
+        private final boolean error;
+        // Whether the line had a bm or am operation, and whether the predicted move satisfied it
+        private final boolean tested;
+        private final boolean solved;
+
+        /**
+         * Constructs a new Outcome.
+         * @param text The output line
+         * @param error Whether the line could not be analysed
+         * @param tested Whether the line had a bm or am operation
+         * @param solved Whether the predicted move satisfied it
+         */
+        private Outcome(String text, boolean error, boolean tested, boolean solved) {
+            this.text = text;
+            this.error = error;
+            this.tested = tested;
+            this.solved = solved;
+        }
+    }
+
+    // A class to hold one worker thread's Search, reused for every line the thread analyses
+    private class Worker {
+        private final Search search;
+        private int depth;
+
+        /**
+         * Constructs a new Worker with a Search of its own.
+         * @param megabytes Size of the Search's transposition table
+         */
+        private Worker(int megabytes) {
+            search = new Search(megabytes);
+            search.addListener(stats -> depth = stats.getDepth());
+        }
+
+        /**
+         * Analyses one line.
+         * @param line A FEN string, or an EPD record
+         * @return the result
+         */
+        private Outcome analyze(String line) {
+            String[] fields = line.trim().split("\\s+");
+            if(fields.length < 4) {
+                return new Outcome(line + " c0 \"not a position\";", true, false, false);
+            }
+            String position = String.join(" ", Arrays.copyOf(fields, 4));
+            // A FEN string ends with the move counters; anything else is EPD operations
+            int counters = fields.length >= 6 && fields[4].matches("\\d+") && fields[5].matches("\\d+") ? 6 : 4;
+            String clocks = counters == 6 ? fields[4] + " " + fields[5] : "0 1";
+            String operations = String.join(" ", Arrays.copyOfRange(fields, counters, fields.length));
+            String prefix = position + (operations.isEmpty() ? "" : " " + operations);
+            Chess game;
+            try {
+                game = new Chess(position + " " + clocks);
+            } catch(RuntimeException ex) {
+                return new Outcome(prefix + " c0 \"bad position\";", true, false, false);
+            }
+            if(Long.bitCount(game.bitboard(Chess.KING, Chess.WHITE)) != 1 ||
+                    Long.bitCount(game.bitboard(Chess.KING, Chess.BLACK)) != 1) {
+                return new Outcome(prefix + " c0 \"needs one king per side\";", true, false, false);
+            }
+            int[] moves = game.moveBuffer();
+            int n = game.generateMoves(moves);
+            if(n == 0) {
+                String end = game.inCheck() ? "checkmate" : "stalemate";
+                return new Outcome(prefix + " c0 \"" + end + "\";", false, false, false);
+            }
+            long hash = game.hash();
+            AnalysisCache.Entry cached = cache == null ? null
+                    : cache.get(game, maxDepth < Search.MAX_PLY ? maxDepth : 0);
+            // A hash collision could hand back a move from another position
+            boolean legal = false;
+            for(int i = 0; cached != null && i < n; i++) {
+                legal |= moves[i] == cached.move;
+            }
+            int move;
+            int score;
+            long nodes;
+            int[] principal;
+            if(legal) {
+                move = cached.move;
+                score = cached.score;
+                depth = cached.depth;
+                nodes = 0;
+                principal = new int[] {move};
+            } else {
+                // Fresh tables keep every result independent of the lines analysed before it
+                search.clear();
+                depth = 0;
+                move = search.search(game, maxDepth, maxNodes, maxMillis);
+                score = search.getScore();
+                nodes = search.getNodes();
+                principal = search.getPrincipalVariation();
+                if(cache != null && depth > 0) {
+                    try {
+                        cache.put(hash, move, score, depth);
+                    } catch(IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+            }
+            String predicted = game.toSAN(move);
+            List<String> variation = new ArrayList<>();
+            for(int played : principal) {
+                variation.add(game.toSAN(played));
+                game.doMove(played);
+            }
+            String result = prefix + " pm " + predicted + "; pv " + String.join(" ", variation) +
+                    "; ce " + score + "; acd " + depth + "; acn " + nodes + ";";
+            List<String> best = operands(operations, "bm");
+            List<String> avoid = operands(operations, "am");
+            String bare = stripCheck(predicted);
+            boolean tested = !best.isEmpty() || !avoid.isEmpty();
+            boolean solved = (best.isEmpty() || best.contains(bare)) && !avoid.contains(bare);
+            return new Outcome(result, false, tested, solved);
+        }
+    }
+
+    /**
+     * A private helper method to find the operands of an EPD operation, without check marks.
+     * @param operations The EPD operations, such as "bm Nf3 Nc3; id \"test 1\";"
+     * @param opcode The operation to find
+     * @return its operands, or an empty list if it is absent
+     */
+    private static List<String> operands(String operations, String opcode) {
+        List<String> found = new ArrayList<>();
+        for(String operation : operations.split(";")) {
+            String[] parts = operation.trim().split("\\s+");
+            if(parts[0].equals(opcode)) {
+                for(int i = 1; i < parts.length; i++) {
+                    found.add(stripCheck(parts[i]));
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * A private helper method to remove the check or mate mark from a move.
+     * @param san A move in Standard Algebraic Notation
+     * @return the move without a trailing '+' or '#'
+     */
+    private static String stripCheck(String san) {
+        return san.endsWith("+") || san.endsWith("#") ? san.substring(0, san.length() - 1) : san;
+    }
+}
@@ -0,0 +1,463 @@
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// A class to broadcast a live game to many spectators. Every move or take-back is encoded once
+// as a small binary frame, and the frames go into a ring shared by all subscribers. Publishing
+// costs the same however many spectators there are; each Subscription only keeps the sequence
+// number of the next frame it will read. A subscriber can be at most the ring's capacity behind.
+// One that falls further behind, or joins late, is resynced with a snapshot frame instead. The
+// snapshot is also encoded once, on every move.
+//
+// Frames are big-endian. They start with a type byte and the frame's sequence number (int):
+//
+//   MOVE      from, to, piece moved, piece captured (255 for none), promotion type (0 for none),
+//             flags (CHECK, CASTLE, EN_PASSANT), result (see Chess.result, 255 while the game
+//             goes on), then the mover's clock in milliseconds (int, -1 if untimed): 16 bytes
+//   UNDO      the last move was taken back; the position after it, packed by Position.pack, for
+//             spectators whose board starts after that move: 34 bytes
+//   SNAPSHOT  the position, packed by Position.pack, then White's and Black's clocks: 42 bytes
+//
+// Squares and piece codes are as in Chess.pieceAt. A SNAPSHOT with sequence number s stands for
+// every frame up to s. A Viewer applies frames to a board of its own.
+public class Broadcast {
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final byte MOVE = 1;
+    public static final byte UNDO = 2;
+    public static final byte SNAPSHOT = 3;
+    // Flags of a MOVE frame
+    public static final int CHECK = 1;
+    public static final int CASTLE = 2;
+    public static final int EN_PASSANT = 4;
+    private static final int MOVE_BYTES = 16;
+    private static final int UNDO_BYTES = 5 + Position.PACKED_BYTES;
+    private static final int SNAPSHOT_BYTES = 5 + Position.PACKED_BYTES + 8;
+
+    private final Chess game;
+    private final int capacity;
+    private final AtomicReferenceArray<byte[]> ring;
+    // Sequence number of the newest frame, and a snapshot as of that frame (or a newer one)
+    private volatile int published;
+    private volatile byte[] snapshot;
+    private final AtomicInteger subscribers;
+    // Notified on every publish, for subscribers waiting in await
+    private final Object signal;
+    // Everything below is only used by the publishing thread, holding the lock
+    private final int[] clocks;
+    private final int[] moveBuffer;
+
+    /**
+     * Constructs a new Broadcast with DEFAULT_CAPACITY frames of history.
+     * @param game The live game; from now on its moves must be made through this Broadcast
+     */
+    public Broadcast(Chess game) {
+        this(game, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs a new Broadcast.
+     * @param game The live game; from now on its moves must be made through this Broadcast
+     * @param capacity Frames a subscriber may fall behind before it is resynced
+     * @throws IllegalArgumentException If capacity is less than 1
+     */
+    public Broadcast(Chess game, int capacity) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.game = game;
+        this.capacity = capacity;
+        ring = new AtomicReferenceArray<>(capacity);
+        subscribers = new AtomicInteger();
+        signal = new Object();
+        clocks = new int[]{-1, -1};
+        moveBuffer = new int[Chess.MAX_MOVES];
+        snapshot = encodeSnapshot(0);
+    }
+
+    /**
+     * Plays a move on the game and broadcasts it.
+     * @param input The move, as makeMove reads it
+     * @param clockMillis The mover's remaining time after the move, or -1 if untimed
+     * @throws IllegalArgumentException If the move cannot be played
+     */
+    public synchronized void play(String input, int clockMillis) {
+        int last = game.lastMove();
+        int[] before = new int[64];
+        for(int sq = 0; sq < 64; sq++) {
+            before[sq] = game.pieceAt(sq);
+        }
+        game.makeMove(input);
+        if(game.lastMove() == last) {
+            throw new IllegalArgumentException(input + " is not a move");
+        }
+        publishMove(game.lastMove(), before, clockMillis);
+    }
+
+    /**
+     * Plays an encoded move on the game and broadcasts it.
+     * @param move The encoded move (see Chess.generateMoves)
+     * @param clockMillis The mover's remaining time after the move, or -1 if untimed
+     * @throws IllegalArgumentException If the move is illegal
+     */
+    public synchronized void play(int move, int clockMillis) {
+        int n = game.generateMoves(moveBuffer);
+        boolean legal = false;
+        for(int i = 0; i < n; i++) {
+            legal |= moveBuffer[i] == move;
+        }
+        if(!legal) {
+            throw new IllegalArgumentException("Illegal move " + Chess.moveName(move));
+        }
+        int[] before = new int[64];
+        for(int sq = 0; sq < 64; sq++) {
+            before[sq] = game.pieceAt(sq);
+        }
+        game.doMove(move);
+        publishMove(move, before, clockMillis);
+    }
+
+    /**
+     * Takes back the last move on the game and broadcasts it. Clocks are left as they are.
+     * @throws IllegalStateException If no move has been played
+     */
+    public synchronized void undo() {
+        if(game.lastMove() == 0) {
+            throw new IllegalStateException("No move to take back");
+        }
+        game.undoMove();
+        int seq = published + 1;
+        ByteBuffer frame = ByteBuffer.allocate(UNDO_BYTES).put(UNDO).putInt(seq);
+        game.pack(frame);
+        publish(frame.array(), seq);
+    }
+
+    /**
+     * Adds a spectator. Its first frame is a snapshot of the game as it is now.
+     * @return the subscription
+     */
+    public Subscription subscribe() {
+        subscribers.incrementAndGet();
+        return new Subscription();
+    }
+
+    /**
+     * Retrieves the number of open subscriptions.
+     * @return the subscriber count
+     */
+    public int getSubscribers() {
+        return subscribers.get();
+    }
+
+    /**
+     * Retrieves the sequence number of the newest frame.
+     * @return the sequence number, 0 before any move
+     */
+    public int getSequence() {
+        return published;
+    }
+
+    /**
+     * Times broadcasting a game of random moves to many subscribers, drained by a few threads.
+     * Usage: java Broadcast [subscribers] [moves] [reader threads]
+     * @param args The arguments
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int plies = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        Chess game = new Chess();
+        int boardBytes = game.toString().getBytes(StandardCharsets.UTF_8).length;
+        Broadcast broadcast = new Broadcast(game);
+        List<Subscription> subscriptions = new ArrayList<>();
+        for(int i = 0; i < count; i++) {
+            subscriptions.add(broadcast.subscribe());
+        }
+        long[] frames = new long[threads];
+        long[] bytes = new long[threads];
+        boolean[] done = {false};
+        List<Thread> readers = new ArrayList<>();
+        for(int t = 0; t < threads; t++) {
+            int id = t;
+            Thread reader = new Thread(() -> {
+                while(true) {
+                    boolean finished;
+                    synchronized(done) {
+                        finished = done[0];
+                    }
+                    for(int i = id; i < subscriptions.size(); i += threads) {
+                        for(ByteBuffer frame; (frame = subscriptions.get(i).poll()) != null; ) {
+                            frames[id]++;
+                            bytes[id] += frame.remaining();
+                        }
+                    }
+                    if(finished) {
+                        return;
+                    }
+                    Thread.yield();
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        SplittableRandom random = new SplittableRandom(1);
+        int[] moves = new int[Chess.MAX_MOVES];
+        long publishNanos = 0;
+        int played = 0;
+        for(; played < plies; played++) {
+            int n = game.generateMoves(moves);
+            if(n == 0 || game.result(n) >= 0) {
+                break;
+            }
+            long start = System.nanoTime();
+            broadcast.play(moves[random.nextInt(n)], -1);
+            publishNanos += System.nanoTime() - start;
+            Thread.sleep(1);
+        }
+        synchronized(done) {
+            done[0] = true;
+        }
+        for(Thread reader : readers) {
+            reader.join();
+        }
+        long totalFrames = Arrays.stream(frames).sum();
+        long totalBytes = Arrays.stream(bytes).sum();
+        long resyncs = subscriptions.stream().mapToLong(Subscription::getResyncs).sum();
+        System.out.printf("%d subscribers, %d moves: %.1f us per publish, %d frames (%d bytes) delivered, " +
+                "%d resyncs; full boards would have been %d bytes%n", count, played,
+                publishNanos / 1e3 / Math.max(1, played), totalFrames, totalBytes, resyncs,
+                (long) boardBytes * count * played);
+    }
+
+    /**
+     * A private helper method to encode and publish a move that has just been played.
+     * @param move The encoded move
+     * @param before The piece on each square before the move
+     * @param clockMillis The mover's remaining time, or -1 if untimed
+     */
+    private void publishMove(int move, int[] before, int clockMillis) {
+        int from = Chess.moveFrom(move);
+        int to = Chess.moveTo(move);
+        int piece = before[from];
+        int captured = before[to];
+        int flags = 0;
+        if(piece % 6 == Chess.PAWN && from % 8 != to % 8 && captured == Chess.EMPTY) {
+            captured = before[to - from > 0 ? to - 8 : to + 8];
+            flags |= EN_PASSANT;
+        }
+        if(piece % 6 == Chess.KING && Math.abs(from - to) == 2) {
+            flags |= CASTLE;
+        }
+        if(game.inCheck()) {
+            flags |= CHECK;
+        }
+        int mover = piece / 6;
+        clocks[mover] = clockMillis;
+        int seq = published + 1;
+        byte[] frame = ByteBuffer.allocate(MOVE_BYTES).put(MOVE).putInt(seq).put((byte) from).put((byte) to)
+                .put((byte) piece).put((byte) captured).put((byte) ((move >>> 12) & 7)).put((byte) flags)
+                .put((byte) game.result(game.generateMoves(moveBuffer))).putInt(clockMillis).array();
+        publish(frame, seq);
+    }
+
+    /**
+     * A private helper method to put a frame in the ring, refresh the snapshot and wake
+     * waiting subscribers.
+     * @param frame The encoded frame
+     * @param seq Its sequence number
+     */
+    private void publish(byte[] frame, int seq) {
+        ring.set(seq % capacity, frame);
+        snapshot = encodeSnapshot(seq);
+        published = seq;
+        synchronized(signal) {
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * A private helper method to encode a snapshot of the game.
+     * @param seq Sequence number of the last frame it includes
+     * @return the snapshot frame
+     */
+    private byte[] encodeSnapshot(int seq) {
+        ByteBuffer out = ByteBuffer.allocate(SNAPSHOT_BYTES).put(SNAPSHOT).putInt(seq);
+        game.pack(out);
+        return out.putInt(clocks[Chess.WHITE]).putInt(clocks[Chess.BLACK]).array();
+    }
+
+    // A class to represent one spectator's place in the broadcast. Frames are shared between
+    // subscribers and must not be modified; they are handed out as read-only buffers.
+    // A Subscription may be read by one thread at a time.
+    public class Subscription implements Closeable {
+        // Sequence number of the next frame to read, or -1 before the first snapshot
+        private int cursor;
+        private long resyncs;
+        private boolean closed;
+
+        /**
+         * Constructs a new Subscription, whose first frame is a snapshot of the game.
+         */
+        private Subscription() {
+            cursor = -1;
+        }
+
+        /**
+         * Retrieves the next frame without waiting.
+         * @return the frame, or null if there is no new frame
+         * @throws IllegalStateException If the subscription is closed
+         */
+        public ByteBuffer poll() {
+            if(closed) {
+                throw new IllegalStateException("Subscription is closed");
+            }
+            int last = published;
+            if(cursor < 0) {
+                return resync(false);
+            }
+            if(cursor > last) {
+                return null;
+            }
+            if(last - cursor >= capacity) {
+                return resync(true);
+            }
+            byte[] frame = ring.get(cursor % capacity);
+            // The slot may have been reused since published was read
+            if(ByteBuffer.wrap(frame).getInt(1) != cursor) {
+                return resync(true);
+            }
+            cursor++;
+            return ByteBuffer.wrap(frame).asReadOnlyBuffer();
+        }
+
+        /**
+         * Retrieves the next frame, waiting for one if needed.
+         * @param maxMillis Longest time to wait
+         * @return the frame, or null if none came in time
+         * @throws InterruptedException If interrupted while waiting
+         * @throws IllegalStateException If the subscription is closed
+         */
+        public ByteBuffer await(long maxMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + maxMillis;
+            synchronized(signal) {
+                while(true) {
+                    ByteBuffer frame = poll();
+                    long left = deadline - System.currentTimeMillis();
+                    if(frame != null || left <= 0) {
+                        return frame;
+                    }
+                    signal.wait(left);
+                }
+            }
+        }
+
+        /**
+         * Retrieves the number of times the subscriber fell too far behind and was resynced.
+         * @return the resync count
+         */
+        public long getResyncs() {
+            return resyncs;
+        }
+
+        /**
+         * Ends the subscription. Does nothing if already closed.
+         */
+        public void close() {
+            if(!closed) {
+                closed = true;
+                subscribers.decrementAndGet();
+            }
+        }
+
+        /**
+         * A private helper method to skip to the latest snapshot.
+         * @param behind Whether the subscriber fell behind, rather than just joined
+         * @return the snapshot frame
+         */
+        private ByteBuffer resync(boolean behind) {
+            byte[] frame = snapshot;
+            cursor = ByteBuffer.wrap(frame).getInt(1) + 1;
+            resyncs += behind ? 1 : 0;
+            return ByteBuffer.wrap(frame).asReadOnlyBuffer();
+        }
+    }
+
+    // A class to follow a broadcast on a board of its own, as a spectator's client would
+    public static class Viewer {
+        private Chess board;
+        private final int[] clocks;
+        private int sequence;
+
+        /**
+         * Constructs a new Viewer, which has no board until it applies a snapshot.
+         */
+        public Viewer() {
+            clocks = new int[]{-1, -1};
+            sequence = -1;
+        }
+
+        /**
+         * Applies a frame.
+         * @param frame The frame; its position is not changed
+         * @throws IllegalArgumentException If the frame is not the next one, or is unknown
+         */
+        public void apply(ByteBuffer frame) {
+            byte type = frame.get(frame.position());
+            int seq = frame.getInt(frame.position() + 1);
+            if(type == SNAPSHOT) {
+                ByteBuffer in = frame.duplicate();
+                in.position(in.position() + 5);
+                board = new Chess(Position.unpack(in));
+                clocks[Chess.WHITE] = in.getInt();
+                clocks[Chess.BLACK] = in.getInt();
+            } else if(board == null || seq != sequence + 1) {
+                throw new IllegalArgumentException("Frame " + seq + " does not follow " + sequence);
+            } else if(type == MOVE) {
+                int at = frame.position();
+                int move = frame.get(at + 5) | frame.get(at + 6) << 6 | frame.get(at + 9) << 12;
+                clocks[frame.get(at + 7) / 6] = frame.getInt(at + 12);
+                board.doMove(move);
+            } else if(type == UNDO && board.lastMove() != 0) {
+                board.undoMove();
+            } else if(type == UNDO) {
+                ByteBuffer in = frame.duplicate();
+                in.position(in.position() + 5);
+                board = new Chess(Position.unpack(in));
+            } else {
+                throw new IllegalArgumentException("Unknown frame type " + type);
+            }
+            sequence = seq;
+        }
+
+        /**
+         * Retrieves the board, or null before the first snapshot.
+         * @return the board
+         */
+        public Chess getBoard() {
+            return board;
+        }
+
+        /**
+         * Retrieves a player's clock.
+         * @param color WHITE or BLACK
+         * @return the remaining time in milliseconds, or -1 if untimed
+         */
+        public int getClock(int color) {
+            return clocks[color];
+        }
+
+        /**
+         * Retrieves the sequence number of the last frame applied.
+         * @return the sequence number, or -1 before the first snapshot
+         */
+        public int getSequence() {
+            return sequence;
+        }
+    }
+}
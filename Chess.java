@@ -5,6 +5,7 @@
 // CSE 123
 // C0: Abstract Strategy Games
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -12,22 +13,133 @@ import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 
-// A class to represent a game of Chess that implements the AbstractStrategyGame interface.
-public class Chess implements AbstractStrategyGame {
-    // Map to convert from abbreviations to piece names
-    private static final HashMap<String, String> ABBVS = new HashMap<>(Map.ofEntries(
-        Map.entry("K", "King"),
-        Map.entry("Q", "Queen"),
-        Map.entry("R", "Rook"),
-        Map.entry("N", "Knight"),
-        Map.entry("B", "Bishop"),
-        Map.entry("P", "Pawn")
+// A class to represent a game of Chess that implements the SearchableGame interface.
+public class Chess implements SearchableGame {
+    // Map to convert from abbreviations to piece types
+    private static final HashMap<String, Piece.Type> ABBVS = new HashMap<>(Map.ofEntries(
+        Map.entry("K", Piece.Type.KING),
+        Map.entry("Q", Piece.Type.QUEEN),
+        Map.entry("R", Piece.Type.ROOK),
+        Map.entry("N", Piece.Type.KNIGHT),
+        Map.entry("B", Piece.Type.BISHOP),
+        Map.entry("P", Piece.Type.PAWN)
     ));
+    // Most pieces of one type and color that can be on the board (2 originals + 8 promotions)
+    private static final int MAX_PIECES = 10;
+    // Upper bound on the number of legal moves in any position
+    public static final int MAX_MOVES = 256;
+    // Piece types and colors as used by the int-based API (the Type and Color ordinals)
+    public static final int KING = 0;
+    public static final int QUEEN = 1;
+    public static final int ROOK = 2;
+    public static final int KNIGHT = 3;
+    public static final int BISHOP = 4;
+    public static final int PAWN = 5;
+    public static final int WHITE = 0;
+    public static final int BLACK = 1;
+    // Marks the absence of a move; a1 to a1 can never be played
+    private static final int NO_MOVE = 0;
+    // Piece code of an empty square
+    public static final int EMPTY = -1;
+    // Cached Piece.Type.values(), which allocates a fresh array on every call
+    private static final Piece.Type[] TYPES = Piece.Type.values();
+    // Castling rights bits, indexed by [Color ordinal][0 for kingside, 1 for queenside]
+    private static final int[][] CASTLE_RIGHTS = {{1, 2}, {4, 8}};
+    // Castling rights kept when a piece moves from or to each square, indexed by Square index
+    private static final int[] CASTLE_MASK = new int[64];
+    static {
+        Arrays.fill(CASTLE_MASK, 15);
+        CASTLE_MASK[0] = ~2;
+        CASTLE_MASK[4] = ~3;
+        CASTLE_MASK[7] = ~1;
+        CASTLE_MASK[56] = ~8;
+        CASTLE_MASK[60] = ~12;
+        CASTLE_MASK[63] = ~4;
+    }
+    // Zobrist keys for hashing positions: one per piece code (see pieceAt) and Square index,
+    // one per set of castling rights, one per en passant file and one for Black to move
+    private static final long[][] PIECE_KEYS = new long[12][64];
+    private static final long[] CASTLE_KEYS = new long[16];
+    private static final long[] EP_KEYS = new long[8];
+    private static final long SIDE_KEY;
+    // Which totals of Knights, light-squared Bishops and dark-squared Bishops (of both colors,
+    // each capped at 2) can never give checkmate without Queens, Rooks or Pawns, indexed by
+    // knights * 9 + lightBishops * 3 + darkBishops
+    private static final boolean[] DEAD_MINORS = new boolean[27];
+    static {
+        for(int i = 0; i < DEAD_MINORS.length; i++) {
+            int knights = i / 9;
+            int light = i / 3 % 3;
+            int dark = i % 3;
+            // A lone minor piece, or Bishops that all stand on squares of one color
+            DEAD_MINORS[i] = knights + light + dark <= 1 || (knights == 0 && (light == 0 || dark == 0));
+        }
+    }
+    // Bits of materialKey holding the Queen, Rook and Pawn counts of both colors
+    private static final long HEAVY_MATERIAL = 0xF000FFL | 0xF000FFL << 24;
+    static {
+        // SplitMix64 with a fixed seed, so that hashes stay the same between runs
+        long seed = 0x43686573734B6579L;
+        for(long[] keys : PIECE_KEYS) {
+            for(int i = 0; i < keys.length; i++) {
+                keys[i] = mix(seed += 0x9E3779B97F4A7C15L);
+            }
+        }
+        for(int i = 1; i < CASTLE_KEYS.length; i++) {
+            CASTLE_KEYS[i] = mix(seed += 0x9E3779B97F4A7C15L);
+        }
+        for(int i = 0; i < EP_KEYS.length; i++) {
+            EP_KEYS[i] = mix(seed += 0x9E3779B97F4A7C15L);
+        }
+        SIDE_KEY = mix(seed + 0x9E3779B97F4A7C15L);
+    }
     // Array to let Color be iterable
     private final Piece.Color[] C = {Piece.Color.WHITE, Piece.Color.BLACK};
     private Board board;
-    // Map<"Piece Name", Map<Color, ArrayList<Piece>>>
-    private Map<String, Map<Piece.Color, ArrayList<Piece>>> pieces;
+    // Piece lists, indexed by [Type ordinal][Color ordinal][i]
+    private Piece[][][] pieces;
+    // Number of live pieces in each piece list, indexed by [Type ordinal][Color ordinal]
+    private int[][] counts;
+    // Position of the piece on each square within its piece list, indexed by Square index
+    private int[] listIndex;
+    // Square of each King, indexed by Color ordinal
+    private Square[] kingSquares;
+    // Bitboards (bit i set if Square index i is included, see Attacks) of each piece list,
+    // indexed by [Type ordinal][Color ordinal]
+    private long[][] bitboards;
+    // Bitboards of every Square occupied by each color, indexed by Color ordinal
+    private long[] occupied;
+    // Piece code (see pieceAt) on each square, or EMPTY, indexed by Square index
+    private byte[] mailbox;
+    // Promoted pieces taken back by undoMove, kept for reuse, indexed like pieces
+    private Piece[][][] spares;
+    private int[][] spareCounts;
+    // Scratch space for makeMove to collect the pieces that can reach a square
+    private Piece[] candidates;
+    // Scratch move list for queries on the current position
+    private int[] scratch;
+    // Move buffers handed out by moveBuffer, one per ply
+    private int[][] moveBuffers;
+    // Undo stack, one entry per move made through doMove
+    private int ply;
+    private int[] undoMoves;
+    private Piece[] undoCaptured;
+    private Piece[] undoPromoted;
+    private Square[] undoEp;
+    private int[] undoDraw50;
+    private int[] undoCastling;
+    private long[] undoHash;
+    // Bitmask of remaining castling rights (see CASTLE_RIGHTS)
+    private int castling;
+    // Zobrist hash of the pieces, castling rights and en passant square, when a capture there is
+    // possible (not the side to move)
+    private long hash;
+    // Zobrist hash of the pawns alone, for caching pawn structure evaluations
+    private long pawnHash;
+    // Piece counts packed as described in materialKey
+    private long material;
+    // Hashes of the positions before this game was copied from a Position, oldest first
+    private long[] history;
     // Log of moves to print once the game is over
     private String log;
     // Which Square en passant can be performed on
@@ -38,33 +150,18 @@ public class Chess implements AbstractStrategyGame {
     private int draw50;
     private boolean resigned;
     private int moves;
+    // Legal move calculations and attack queries made so far, counted while Metrics are enabled
+    private long legalQueries;
+    private long attackQueries;
+    // Mirrors piece additions and removals, if attached (see Observer)
+    private Observer observer;
 
     /**
      * Constructs a new Chess game based off of the input FEN string.
      * @param FEN (Forsyth-Edwards Notation) input
      */
     public Chess(String FEN) {
-        board = new Board();
-        pieces = new HashMap<>();
-        log = "";
-        draw = 0;
-        draw50 = 0;
-        resigned = false;
-        moves = 0;
-
-        Map<Piece.Color, ArrayList<Piece>> kings = new HashMap<>();
-        Map<Piece.Color, ArrayList<Piece>> queens = new HashMap<>();
-        Map<Piece.Color, ArrayList<Piece>> rooks = new HashMap<>();
-        Map<Piece.Color, ArrayList<Piece>> knights = new HashMap<>();
-        Map<Piece.Color, ArrayList<Piece>> bishops = new HashMap<>();
-        Map<Piece.Color, ArrayList<Piece>> pawns = new HashMap<>();
-        pieces.put("King", kings);
-        pieces.put("Queen", queens);
-        pieces.put("Rook", rooks);
-        pieces.put("Knight", knights);
-        pieces.put("Bishop", bishops);
-        pieces.put("Pawn", pawns);
-
+        initialize();
         // FEN limitations:
         // Castling specification doesn't work if rooks are not on the edges of the screen,
         // which shouldn't be a problem...?
@@ -84,27 +181,28 @@ public class Chess implements AbstractStrategyGame {
                     Piece.Color clr = ('B' <= c && c <= 'R') ? C[0] : C[1];
                     c = Character.toUpperCase(c);
                     sqr.piece = constructPiece(ABBVS.get(""+c), clr, sqr);
-                    if(c == 'K') {
-                        ((King) sqr.piece).canCastle =
-                                s[9].contains(clr.equals(C[0]) ? "K" : "k") ||
-                                s[9].contains(clr.equals(C[0]) ? "Q" : "q");
-                    } else if(c == 'R') {
-                        sqr.piece = new Rook(clr, sqr);
-                        if(sqr.file == 'a' && s[9].contains(clr.equals(C[0]) ? "Q" : "q")) {
-                            ((Rook) sqr.piece).canCastle = true;
-                        } else if(sqr.file == 'h' && s[9].contains(clr.equals(C[0]) ? "K" : "k")) {
-                            ((Rook) sqr.piece).canCastle = true;
-                        }
-                    }
-                    add(pieces.get(ABBVS.get(""+c)), clr, sqr.piece);
+                    add(sqr.piece);
                 }
                 // if(offset > 0) { offset--; }
             }
         }
+        // Only keep castling rights whose King and Rook are still on their starting squares
+        castling = 0;
+        String rights = "KQkq";
+        for(int i = 0; i < rights.length(); i++) {
+            Square corner = board.getSquare(i % 2 == 0 ? 'h' : 'a', i < 2 ? 1 : 8);
+            Square home = board.getSquare('e', i < 2 ? 1 : 8);
+            if(s[9].indexOf(rights.charAt(i)) >= 0 && corner.piece instanceof Rook &&
+                    corner.piece.color == C[i / 2] && home.piece instanceof King &&
+                    home.piece.color == C[i / 2]) {
+                castling |= CASTLE_RIGHTS[i / 2][i % 2];
+            }
+        }
         int fullMoves = Integer.parseInt(s[12]) - 1;
         moves = fullMoves * 2 + (s[8].equals("w") ? 0 : 1);
         ep = board.getSquare(s[10].equals("-") ? "z9" : s[10]);
         draw50 = Integer.parseInt(s[11]);
+        hash ^= CASTLE_KEYS[castling] ^ epKey(mailbox, ep == null ? EMPTY : ep.index, moves % 2);
     }
 
     /**
@@ -126,6 +224,69 @@ public class Chess implements AbstractStrategyGame {
         }
     }
 
+    /**
+     * Constructs a new Chess game from a snapshot. The new game shares nothing with the game
+     * the snapshot was taken from, but still detects repetitions of earlier positions.
+     * @param position The snapshot to start from
+     */
+    public Chess(Position position) {
+        initialize();
+        for(int sq = 0; sq < 64; sq++) {
+            int code = position.pieceAt(sq);
+            if(code != EMPTY) {
+                Square square = board.squares[sq];
+                square.piece = constructPiece(TYPES[code % 6], C[code / 6], square);
+                add(square.piece);
+            }
+        }
+        castling = position.castling;
+        moves = position.moves;
+        ep = position.epSquare() == EMPTY ? null : board.squares[position.epSquare()];
+        draw50 = position.halfmoveClock();
+        history = position.history;
+        log = position.log;
+        draw = position.draw;
+        resigned = position.resigned;
+        hash ^= CASTLE_KEYS[castling] ^ epKey(mailbox, ep == null ? EMPTY : ep.index, moves % 2);
+    }
+
+    /**
+     * A private helper method to set up an empty board with no moves played.
+     */
+    private void initialize() {
+        board = new Board();
+        pieces = new Piece[TYPES.length][C.length][MAX_PIECES];
+        counts = new int[TYPES.length][C.length];
+        listIndex = new int[64];
+        kingSquares = new Square[C.length];
+        bitboards = new long[TYPES.length][C.length];
+        occupied = new long[C.length];
+        mailbox = new byte[64];
+        Arrays.fill(mailbox, (byte) EMPTY);
+        spares = new Piece[TYPES.length][C.length][MAX_PIECES];
+        spareCounts = new int[TYPES.length][C.length];
+        candidates = new Piece[MAX_PIECES];
+        scratch = new int[MAX_MOVES];
+        moveBuffers = new int[0][];
+        ply = 0;
+        undoMoves = new int[0];
+        undoCaptured = new Piece[0];
+        undoPromoted = new Piece[0];
+        undoEp = new Square[0];
+        undoDraw50 = new int[0];
+        undoCastling = new int[0];
+        undoHash = new long[0];
+        hash = 0L;
+        pawnHash = 0L;
+        history = new long[0];
+        observer = null;
+        log = "";
+        draw = 0;
+        draw50 = 0;
+        resigned = false;
+        moves = 0;
+    }
+
     /**
      * Parses valid moves using Algebraic Notation.
      * @param input String to parse
@@ -145,21 +306,49 @@ public class Chess implements AbstractStrategyGame {
      * @throws IllegalArgumentException Or if trying to promote to Pawn or King.
      */
     public void makeMove(String input) {
+        if(!Metrics.ENABLED) {
+            playMove(input);
+            return;
+        }
+        long start = System.nanoTime();
+        long legal = legalQueries;
+        long attacks = attackQueries;
+        Metrics.MAKE_MOVE_CALLS.increment();
+        try {
+            playMove(input);
+        } catch(IllegalArgumentException ex) {
+            Metrics.rejected(ex.getMessage());
+            throw ex;
+        } finally {
+            Metrics.MAKE_MOVE_NANOS.record(System.nanoTime() - start);
+            Metrics.LEGAL_QUERIES_PER_MOVE.record(legalQueries - legal);
+            Metrics.ATTACK_QUERIES_PER_MOVE.record(attackQueries - attacks);
+        }
+    }
+
+    /**
+     * A private helper method that parses and plays a move for makeMove.
+     * @param input String to parse
+     */
+    private void playMove(String input) {
         if(input.length() < 2) {
             throw new IllegalArgumentException("Input is wrong");
         }
         // Create copy to modify, keep one to log
-        String move = new String(input);
-        Piece.Color color = C[getNextPlayer() - 1];
-        String selected = ABBVS.get(""+move.charAt(0));
+        String move = input;
+        Piece.Color color = C[moves % 2];
+        boolean castling = move.charAt(0) == 'O';
+        Piece.Type selected = ABBVS.get(""+move.charAt(0));
         if(selected == null) {
-            selected = move.charAt(0) == 'O' ? "Castle" : "Pawn";
+            selected = Piece.Type.PAWN;
         }
         int rankSpecifier = -1;
         char fileSpecifier = '\u0000';
         boolean capturing = false;
         boolean finished = false;
-        String promotion = null;
+        Piece.Type promotion = null;
+        // The move to play once the input has been validated
+        int chosen = NO_MOVE;
 
         // Handling special inputs
         if(input.equals("legal")) {
@@ -189,12 +378,11 @@ public class Chess implements AbstractStrategyGame {
         }
         
         // Parsing move
-        if(selected.equals("Castle")) {
-            castle((King) pieces.get("King").get(color).get(0), input);
+        if(castling && !finished) {
+            chosen = castle((King) kingSquares[color.ordinal()].piece, input);
             finished = true;
-            log += String.format("%1$-7s", " " + input);
         }
-        if(!selected.equals("Pawn")) {
+        if(selected != Piece.Type.PAWN) {
             move = move.substring(1);
         }
         if(charInRange(move, 0, '1', '8')) {
@@ -220,145 +408,91 @@ public class Chess implements AbstractStrategyGame {
         }
 
         // Promotion
-        if(selected.equals("Pawn") && move.length() > 3 &&
+        if(!finished && selected == Piece.Type.PAWN && move.length() > 3 &&
                 charInRange(move, move.length() - 2, '=', '=')) {
             if(!(move.charAt(move.length() - 3) == '8' || move.charAt(move.length() - 3) == '1')) {
                 throw new IllegalArgumentException("Wrong rank to promote");
             }
             String piece = ""+move.charAt(move.length() - 1);
-            if(ABBVS.get(piece) != null) {
-                promotion = piece;
+            promotion = ABBVS.get(piece);
+            if(promotion == null || promotion == Piece.Type.KING || promotion == Piece.Type.PAWN) {
+                throw new IllegalArgumentException("Can't promote to " + piece);
             }
             move = move.substring(0, 2);
-        } else if(selected.equals("Pawn") && (move.charAt(move.length() - 1) == '8' ||
-                move.charAt(move.length() - 1) == '1')) {
+        } else if(!finished && selected == Piece.Type.PAWN &&
+                (move.charAt(move.length() - 1) == '8' || move.charAt(move.length() - 1) == '1')) {
             throw new IllegalArgumentException("Promotion piece not specified");
         }
 
-        if(!finished && move.length() < 3) {
-            // To store legal moves and which pieces can get to them
-            Map<Square, List<Piece>> legal = new HashMap<>();
-            // Iterate through List of selected pieces
-            if(pieces.get(selected).get(color) != null) {
-                for(Piece p : pieces.get(selected).get(color)) {
-                    p.calcLegal();
-                    for(Square s : p.legalSquares) {
-                        if(legal.containsKey(s)) {
-                            legal.get(s).add(p);
-                        } else {
-                            legal.put(s, new ArrayList<>(Arrays.asList(p)));
-                        }
-                    }
-                }
-            } else {
+        if(!finished) {
+            Square dest = move.length() == 2 ? board.getSquare(move) : null;
+            if(dest == null) {
+                throw new IllegalArgumentException("Input is wrong");
+            }
+            int t = selected.ordinal();
+            int c = color.ordinal();
+            if(counts[t][c] == 0) {
                 throw new IllegalArgumentException("There are no more of those pieces");
             }
-            if(legal.containsKey(board.getSquare(move))) {
-                // Move is legal
-                Piece piece = null;
-                if(legal.get(board.getSquare(move)).size() == 1) {
-                    // Only one piece can get to this square
-                    piece = legal.get(board.getSquare(move)).get(0);
-                } else {
-                    // Unless wrong specifier, only one piece should apply
-                    if(rankSpecifier > 0) {
-                        for(Piece p : legal.get(board.getSquare(move))) {
-                            if(p.square.rank == rankSpecifier) {
-                                piece = p;
-                            }
-                        }
-                    } else if(fileSpecifier > 0) {
-                        for(Piece p : legal.get(board.getSquare(move))) {
-                            if(p.square.file == fileSpecifier) {
-                                piece = p;
-                            }
-                        }
-                    } else {
-                        throw new IllegalArgumentException("Piece not specified;" +
-                                "multiple pieces can reach that square.");
-                    }
+            // Collect every selected piece that can legally reach the destination
+            int found = 0;
+            for(int i = 0; i < counts[t][c]; i++) {
+                Piece p = pieces[t][c][i];
+                if((legalTargets(p) & 1L << dest.index) != 0) {
+                    candidates[found++] = p;
                 }
-                if(piece == null) {
-                    throw new IllegalArgumentException("Specified piece not found.");
-                }
-
-                // Capturing
-                if(board.getSquare(move).piece != null || board.getSquare(move).equals(ep)) {
-                    if(!capturing) {
-                        throw new IllegalArgumentException("There's a piece there!");
-                    }
-                    ArrayList<Piece> remove = null;
-                    if(board.getSquare(move).equals(ep)) {
-                        Square passed = board.getSquare(move).relSquare(0,
-                                color.equals(Piece.Color.WHITE) ? -1 : 1);
-                        remove = pieces.get(passed.piece.piece).get(Piece.oppColor(color));
-                        remove.remove(passed.piece);
-                        passed.piece = null;
-                    } else {
-                        remove = pieces.get(board.getSquare(move).piece.piece)
-                                .get(Piece.oppColor(color));
-                        remove.remove(board.getSquare(move).piece);
-                    }
-                    draw50 = -1;
-                } else if(capturing) {
-                    throw new IllegalArgumentException("There's no piece to capture...");
-                }
-
-                // Promotion
-                if(piece instanceof Pawn && promotion != null) {
-                    if(!(promotion.equals("Q") || promotion.equals("R") ||
-                            promotion.equals("N") || promotion.equals("B"))) {
-                        throw new IllegalArgumentException("Can't promote to " + promotion);
-                    }
-                    ArrayList<Piece> pawnList = pieces.get("Pawn").get(color);
-                    pawnList.remove(piece);
-                    Piece newPiece = constructPiece(ABBVS.get(promotion), color, piece.square);
-                    piece.square.piece = newPiece;
-                    add(pieces.get(ABBVS.get(promotion)), color, newPiece);
-                    piece = newPiece;
-                    draw50 = -1;
-                }
-
-                // Movement
-                board.getSquare(move).piece = piece;
-                board.getSquare(piece.square.toString()).piece = null;
-                piece.square = board.getSquare(move);
-                boolean newEp = false;
-
-                // Special movement
-                if(piece instanceof Pawn) {
-                    if(((Pawn) piece).canDouble) {
-                        if(piece.color.equals(Piece.Color.WHITE) && piece.square.rank == 4 ||
-                                piece.color.equals(Piece.Color.BLACK) && piece.square.rank == 5) {
-                            // Doubled
-                            ep = piece.square.relSquare(0,
-                                    piece.color.equals(Piece.Color.WHITE) ? -1 : 1);
-                            newEp = true;
+            }
+            if(found == 0) {
+                throw new IllegalArgumentException("No piece can legally reach that square.");
+            }
+            // Move is legal
+            Piece piece = null;
+            if(found == 1) {
+                // Only one piece can get to this square
+                piece = candidates[0];
+            } else {
+                // Unless wrong specifier, only one piece should apply
+                if(rankSpecifier > 0) {
+                    for(int i = 0; i < found; i++) {
+                        if(candidates[i].square.rank == rankSpecifier) {
+                            piece = candidates[i];
                         }
-                        ((Pawn) piece).canDouble = false;
                     }
-                    draw50 = -1;
-                } else if(piece instanceof King) {
-                    piece.calcLegal();
-                    if(((King) piece).canCastle) {
-                        ((King) piece).canCastle = false;
+                } else if(fileSpecifier > 0) {
+                    for(int i = 0; i < found; i++) {
+                        if(candidates[i].square.file == fileSpecifier) {
+                            piece = candidates[i];
+                        }
                     }
-                } else if(piece instanceof Rook && ((Rook) piece).canCastle) {
-                    ((Rook) piece).canCastle = false;
+                } else {
+                    throw new IllegalArgumentException("Piece not specified;" +
+                            "multiple pieces can reach that square.");
                 }
-                if(!newEp) {
-                    ep = null;
+            }
+            if(piece == null) {
+                throw new IllegalArgumentException("Specified piece not found.");
+            }
+
+            // Capturing
+            if(dest.piece != null || (piece.type == Piece.Type.PAWN && dest.equals(ep))) {
+                if(!capturing) {
+                    throw new IllegalArgumentException("There's a piece there!");
                 }
-            } else {
-                throw new IllegalArgumentException("No piece can legally reach that square.");
+            } else if(capturing) {
+                throw new IllegalArgumentException("There's no piece to capture...");
             }
+            chosen = encodeMove(piece.square, dest, promotion);
         }
         if(color.equals(Piece.Color.WHITE)) {
             log += "\n" + ((moves + 2) / 2) + ".";
         }
         log += String.format("%1$-7s", " " + input);
-        draw50++;
-        moves++;
+        if(chosen != NO_MOVE) {
+            doMove(chosen);
+        } else {
+            draw50++;
+            moves++;
+        }
     }
 
     /**
@@ -374,57 +508,46 @@ public class Chess implements AbstractStrategyGame {
      * @return true if the game is over
      */
     public boolean isGameOver() {
+        if(!Metrics.ENABLED) {
+            return checkGameOver();
+        }
+        long start = System.nanoTime();
+        try {
+            return checkGameOver();
+        } finally {
+            Metrics.GAME_OVER_NANOS.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * A private helper method that checks the game end conditions for isGameOver. It only
+     * reads the game, so it is safe to call from several threads at once (see LiveGame).
+     * @return true if the game is over
+     */
+    private boolean checkGameOver() {
         if(resigned || draw > 1) {
             return true;
         }
-        for(int i = 0; i < 2; i++) {
-            Piece king = pieces.get("King").get(C[i]).get(0);
-            king.calcLegal();
-            if(king.square.isAttacked(Piece.oppColor(king.color)) &&
-                    king.legalSquares.size() == 0) {
-                for(String type : pieces.keySet()) {
-                    if(pieces.get(type).get(C[i]) != null) {
-                        for(Piece piece : pieces.get(type).get(C[i])) {
-                            piece.calcLegal();
-                            if(piece.legalSquares.size() > 0) {
-                                return false;
-                            }
-                        }
-                    }
-                }
-                String last = log.substring(log.lastIndexOf(" ") + 1) + "#";
-                log = log.substring(0, (log.length() - last.length()) - 1) + last;
-                return true;
-            } else {
-                // Stalemate
-                int legalMoves = 0;
-                for(String type : pieces.keySet()) {
-                    if(pieces.get(type).get(C[i]) != null) {
-                        for(Piece piece : pieces.get(type).get(C[i])) {
-                            piece.calcLegal();
-                            if(piece.legalSquares.size() > 0) {
-                                legalMoves += piece.legalSquares.size();
-                            }
-                        }
-                    }
-                }
-                if(legalMoves == 0) {
-                    draw = 2;
-                    return true;
-                }
-                // Dead position
-                boolean hasPieces = false;
-                for(String type : pieces.keySet()) {
-                    if(pieces.get(type).get(C[i]) == null ||
-                            pieces.get(type).get(C[i]).size() > 0) {
-                        hasPieces = true;
-                    }
-                }
-                if(!hasPieces) {
+        // Dead position: neither player can checkmate, so neither can be checkmated either
+        if(insufficientMaterial()) {
+            return true;
+        }
+        // Checkmate or stalemate: only the player to move can run out of moves
+        // TODO: Threefold repitition
+        return !hasLegalMove();
+    }
+
+    /**
+     * A private helper method to check if the player to move has a legal move (castling aside).
+     * @return true if any piece of the player to move can move
+     */
+    private boolean hasLegalMove() {
+        int c = moves % 2;
+        for(int t = 0; t < TYPES.length; t++) {
+            for(int i = 0; i < counts[t][c]; i++) {
+                if(legalTargets(pieces[t][c][i]) != 0) {
                     return true;
                 }
-                // TODO: Extend Dead Position draw rule
-                // TODO: Threefold repitition
             }
         }
         return false;
@@ -432,11 +555,34 @@ public class Chess implements AbstractStrategyGame {
 
     /**
      * Returns the winner of the game.
-     * @return 1 if White won, 2 if Black won, and 0 if there was a draw
+     * @return 1 if White won, 2 if Black won, 0 if there was a draw, or -1 if the game is not over
      */
     public int getWinner() {
-        System.out.println(log);
-        return draw > 1 ? 0 : moves % 2 == 0 ? 2 : 1;
+        if(!isGameOver()) {
+            return -1;
+        }
+        if(draw > 1) {
+            return 0;
+        }
+        // The player to move resigned or is checkmated, unless the position is a dead draw
+        // or a stalemate
+        if(!resigned && (insufficientMaterial() || !inCheck())) {
+            return 0;
+        }
+        return moves % 2 == 0 ? 2 : 1;
+    }
+
+    /**
+     * Retrieves the log of the moves made through makeMove, with a checkmating move marked.
+     * @return the move log
+     */
+    public String getLog() {
+        // Moves played through doMove are not logged, so there may be nothing to mark
+        if(log.isEmpty() || resigned || draw > 1 || hasLegalMove() || !inCheck()) {
+            return log;
+        }
+        String marked = log.stripTrailing();
+        return marked.endsWith("#") ? marked : marked + "#";
     }
 
     /**
@@ -737,6 +883,19 @@ public class Chess implements AbstractStrategyGame {
         return out;
     }
 
+    /**
+     * A helper method that will return every legal move for the specified color.
+     * @param color the color to retrieve legal moves from (WHITE or BLACK)
+     * @return The list of legal moves
+     * @throws IllegalArgumentException If color is neither WHITE nor BLACK
+     */
+    public List<String> getAllLegalMoves(int color) {
+        if(color != WHITE && color != BLACK) {
+            throw new IllegalArgumentException("No color " + color);
+        }
+        return getAllLegalMoves(C[color]);
+    }
+
     /**
      * A helper method that will return every legal move for the specified color.
      * @param color the Color to retrieve legal moves from
@@ -744,12 +903,15 @@ public class Chess implements AbstractStrategyGame {
      */
     public List<String> getAllLegalMoves(Piece.Color color) {
         List<String> moves = new ArrayList<>();
-        for(String key : pieces.keySet()) {
-            if(pieces.get(key) != null && pieces.get(key).get(color) != null) {
-                for(Piece p : pieces.get(key).get(color)) {
-                    p.calcLegal();
-                    moves.add(String.format("%s@%s: %s", p, p.square, p.legalSquares));
+        for(Piece.Type type : TYPES) {
+            for(int i = 0; i < counts[type.ordinal()][color.ordinal()]; i++) {
+                Piece p = pieces[type.ordinal()][color.ordinal()][i];
+                // Collected here rather than through calcLegal, so the pieces are left untouched
+                List<Square> squares = new ArrayList<>();
+                for(long legal = legalTargets(p); legal != 0; legal &= legal - 1) {
+                    squares.add(board.squares[Long.numberOfTrailingZeros(legal)]);
                 }
+                moves.add(String.format("%s@%s: %s", p, p.square, squares));
             }
         }
         return moves;
@@ -765,70 +927,801 @@ public class Chess implements AbstractStrategyGame {
 
     /**
      * A private helper method to streamline creating the different Chess pieces.
-     * @param type The name of the piece to create
+     * @param type The type of piece to create
      * @param color The color of the piece
      * @param square The square the piece is on
      * @return The constructed piece
      */
-    private Piece constructPiece(String type, Piece.Color color, Square square) {
-        if(type.equals("King")) {
-            return new King(color, square);
-        } else if(type.equals("Queen")) {
-            return new Queen(color, square);
-        } else if(type.equals("Rook")) {
-            return new Rook(color, square);
-        } else if(type.equals("Knight")) {
-            return new Knight(color, square);
-        } else if(type.equals("Bishop")) {
-            return new Bishop(color, square);
-        } else if(type.equals("Pawn")) {
-            return new Pawn(color, square);
+    private Piece constructPiece(Piece.Type type, Piece.Color color, Square square) {
+        switch(type) {
+            case KING: return new King(color, square);
+            case QUEEN: return new Queen(color, square);
+            case ROOK: return new Rook(color, square);
+            case KNIGHT: return new Knight(color, square);
+            case BISHOP: return new Bishop(color, square);
+            case PAWN: return new Pawn(color, square);
         }
         return null;
     }
 
     /**
-     * A private helper method to streamline adding Pieces to the specified map.
-     * @param map The map to add Pieces to
-     * @param color The color of the Piece
+     * A private helper method to append a Piece to the end of its piece list.
+     * The Piece must already be placed on its square.
      * @param piece The piece
      */
-    private void add(Map<Piece.Color, ArrayList<Piece>> map, Piece.Color color, Piece piece) {
-        if(map.containsKey(color)) {
-            map.get(color).add(piece);
-        } else {
-            map.put(color, new ArrayList<Piece>(Arrays.asList(piece)));
+    private void add(Piece piece) {
+        int t = piece.type.ordinal();
+        int c = piece.color.ordinal();
+        pieces[t][c][counts[t][c]] = piece;
+        listIndex[piece.square.index] = counts[t][c]++;
+        hash ^= PIECE_KEYS[c * 6 + t][piece.square.index];
+        if(piece.type == Piece.Type.PAWN) {
+            pawnHash ^= PIECE_KEYS[c * 6 + t][piece.square.index];
+        }
+        if(piece.type != Piece.Type.KING) {
+            material += 1L << materialShift(t, c, piece.square.index);
+        }
+        bitboards[t][c] |= 1L << piece.square.index;
+        occupied[c] |= 1L << piece.square.index;
+        mailbox[piece.square.index] = (byte) (c * 6 + t);
+        if(observer != null) {
+            observer.add(c * 6 + t, piece.square.index);
+        }
+        if(piece.type == Piece.Type.KING) {
+            kingSquares[c] = piece.square;
+        }
+    }
+
+    /**
+     * A private helper method to remove a Piece from its piece list in constant time
+     * by swapping the last Piece of the list into its slot.
+     * The Piece must still be on its square.
+     * @param piece The piece
+     */
+    private void remove(Piece piece) {
+        int t = piece.type.ordinal();
+        int c = piece.color.ordinal();
+        int i = listIndex[piece.square.index];
+        Piece last = pieces[t][c][--counts[t][c]];
+        pieces[t][c][i] = last;
+        listIndex[last.square.index] = i;
+        pieces[t][c][counts[t][c]] = null;
+        hash ^= PIECE_KEYS[c * 6 + t][piece.square.index];
+        if(piece.type == Piece.Type.PAWN) {
+            pawnHash ^= PIECE_KEYS[c * 6 + t][piece.square.index];
+        }
+        if(piece.type != Piece.Type.KING) {
+            material -= 1L << materialShift(t, c, piece.square.index);
         }
+        bitboards[t][c] &= ~(1L << piece.square.index);
+        occupied[c] &= ~(1L << piece.square.index);
+        mailbox[piece.square.index] = (byte) EMPTY;
+        if(observer != null) {
+            observer.remove(c * 6 + t, piece.square.index);
+        }
+    }
+
+    /**
+     * A private helper method to find where a piece is counted in materialKey. A Bishop never
+     * changes the color of its square, so only adding and removing pieces changes the key.
+     * @param type The Type ordinal, not KING
+     * @param color The Color ordinal
+     * @param square The Square index of the piece
+     * @return the shift of its 4-bit count
+     */
+    private static int materialShift(int type, int color, int square) {
+        int field = type == BISHOP ? BISHOP - 1 + ((square >>> 3 ^ square) & 1) : type == PAWN ? 5 : type - 1;
+        return color * 24 + field * 4;
+    }
+
+    /**
+     * A private helper method to move a Piece to another (empty) square while keeping
+     * the piece list index and King squares up to date.
+     * @param piece The piece to move
+     * @param dest The Square to move the piece to
+     */
+    private void relocate(Piece piece, Square dest) {
+        long move = 1L << piece.square.index | 1L << dest.index;
+        bitboards[piece.type.ordinal()][piece.color.ordinal()] ^= move;
+        occupied[piece.color.ordinal()] ^= move;
+        long[] keys = PIECE_KEYS[piece.color.ordinal() * 6 + piece.type.ordinal()];
+        hash ^= keys[piece.square.index] ^ keys[dest.index];
+        if(piece.type == Piece.Type.PAWN) {
+            pawnHash ^= keys[piece.square.index] ^ keys[dest.index];
+        }
+        listIndex[dest.index] = listIndex[piece.square.index];
+        mailbox[dest.index] = mailbox[piece.square.index];
+        mailbox[piece.square.index] = (byte) EMPTY;
+        if(observer != null) {
+            observer.remove(mailbox[dest.index], piece.square.index);
+            observer.add(mailbox[dest.index], dest.index);
+        }
+        piece.square.piece = null;
+        dest.piece = piece;
+        piece.square = dest;
+        if(piece.type == Piece.Type.KING) {
+            kingSquares[piece.color.ordinal()] = dest;
+        }
+    }
+
+    /**
+     * A private helper method to calculate the squares a piece can legally move to
+     * (castling aside).
+     * @param piece The piece to move
+     * @return the squares as a bitboard
+     */
+    private long legalTargets(Piece piece) {
+        if(Metrics.ENABLED) {
+            legalQueries++;
+        }
+        long targets = piece.targets();
+        int c = piece.color.ordinal();
+        int from = piece.square.index;
+        int king = kingSquares[c].index;
+        long all = occupied[0] | occupied[1];
+        long epBit = ep == null || piece.type != Piece.Type.PAWN ? 0L : 1L << ep.index;
+        // A piece off the King's lines can only expose it to a check it is already in
+        if(piece.type != Piece.Type.KING && (targets & epBit) == 0 &&
+                (Attacks.RAYS[king] & (1L << from)) == 0 && !attacked(king, 1 - c, all, 0L)) {
+            return targets;
+        }
+        long legal = 0L;
+        long rest = targets;
+        while(rest != 0) {
+            int to = Long.numberOfTrailingZeros(rest);
+            long toBit = rest & -rest;
+            rest &= rest - 1;
+            long occ = (all & ~(1L << from)) | toBit;
+            // A piece captured on the destination no longer attacks
+            long gone = toBit;
+            if((toBit & epBit) != 0) {
+                long passed = c == 0 ? toBit >>> 8 : toBit << 8;
+                occ &= ~passed;
+                gone |= passed;
+            }
+            if(!attacked(piece.type == Piece.Type.KING ? to : king, 1 - c, occ, gone)) {
+                legal |= toBit;
+            }
+        }
+        return legal;
+    }
+
+    /**
+     * A private helper method to check if any piece of a color attacks a square.
+     * @param square Index of the square to check
+     * @param c Color ordinal of the attacking side
+     * @param occ Every occupied square
+     * @param gone Squares whose pieces should be treated as captured
+     * @return true if the square is attacked
+     */
+    private boolean attacked(int square, int c, long occ, long gone) {
+        if(Metrics.ENABLED) {
+            attackQueries++;
+        }
+        long[] queens = bitboards[Piece.Type.QUEEN.ordinal()];
+        return (Attacks.KNIGHT[square] & bitboards[Piece.Type.KNIGHT.ordinal()][c] & ~gone) != 0 ||
+                (Attacks.KING[square] & bitboards[Piece.Type.KING.ordinal()][c]) != 0 ||
+                (Attacks.PAWN[1 - c][square] & bitboards[Piece.Type.PAWN.ordinal()][c] & ~gone) != 0 ||
+                (Attacks.bishop(square, occ) & (bitboards[Piece.Type.BISHOP.ordinal()][c] |
+                        queens[c]) & ~gone) != 0 ||
+                (Attacks.rook(square, occ) & (bitboards[Piece.Type.ROOK.ordinal()][c] |
+                        queens[c]) & ~gone) != 0;
     }
 
     /**
      * A private helper method to handle castling.
      * @param king The King to castle
      * @param move The move in Algebraic Notation (e.g. O-O)
+     * @return the encoded castling move
      * @throws IllegalArgumentException If castling is impossible in the current board state
      */
-    private void castle(King king, String move) {
-        Rook rook = (Rook) pieces.get("Rook").get(king.color).get(move.equals("O-O") ? 1 : 0);
-        int dir = move.equals("O-O") ? 1 : -1;
-        if(king.canCastle && rook.canCastle &&
-                !king.square.isAttacked(Piece.oppColor(king.color)) &&
-                king.square.relSquare(dir, 0).piece == null &&
-                !king.square.relSquare(dir, 0).isAttacked(Piece.oppColor(king.color)) &&
-                king.square.relSquare(dir * 2, 0).piece == null &&
-                !king.square.relSquare(dir * 2, 0).isAttacked(Piece.oppColor(king.color))) {
-            Square kDest = king.square.relSquare(dir * 2, 0);
-            Square rDest = king.square.relSquare(dir, 0);
-            kDest.piece = king;
-            king.square.piece = null;
-            king.square = kDest;
-            king.canCastle = false;
-            rDest.piece = rook;
-            rook.square.piece = null;
-            rook.square = rDest;
-            rook.canCastle = false;
+    private int castle(King king, String move) {
+        int dir = move.startsWith("O-O-O") ? -1 : 1;
+        if(canCastle(king.color.ordinal(), dir)) {
+            return encodeMove(king.square, king.square.relSquare(dir * 2, 0), null);
+        }
+        throw new IllegalArgumentException("Can't castle");
+    }
+
+    /**
+     * A private helper method to check if a King can castle in the given direction.
+     * @param c Color ordinal of the King
+     * @param dir 1 to castle kingside, -1 to castle queenside
+     * @return true if castling is legal
+     */
+    private boolean canCastle(int c, int dir) {
+        if((castling & CASTLE_RIGHTS[c][dir > 0 ? 0 : 1]) == 0) {
+            return false;
+        }
+        Square king = kingSquares[c];
+        Piece.Color opp = C[1 - c];
+        // Every square between the King and the Rook must be empty
+        for(Square s = king.relSquare(dir, 0); s.file != 'a' && s.file != 'h';
+                s = s.relSquare(dir, 0)) {
+            if(s.piece != null) {
+                return false;
+            }
+        }
+        return !king.isAttacked(opp) && !king.relSquare(dir, 0).isAttacked(opp) &&
+                !king.relSquare(dir * 2, 0).isAttacked(opp);
+    }
+
+    /**
+     * Generates every legal move for the player to move.
+     * Moves are encoded as ints (see encodeMove) so that no objects are allocated.
+     * @param buffer Array to write the moves into, at least MAX_MOVES long
+     * @return the number of moves written
+     */
+    public int generateMoves(int[] buffer) {
+        if(!Metrics.ENABLED) {
+            return generateMoves(moves % 2, buffer);
+        }
+        long start = System.nanoTime();
+        try {
+            return generateMoves(moves % 2, buffer);
+        } finally {
+            Metrics.MOVE_GEN_NANOS.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Hands out a reusable move buffer for the current ply, so a search can keep
+     * one move list per level of its tree without allocating.
+     * @return a buffer at least MAX_MOVES long, owned by the current ply
+     */
+    public int[] moveBuffer() {
+        if(ply >= moveBuffers.length) {
+            moveBuffers = Arrays.copyOf(moveBuffers, Math.max(ply + 1, moveBuffers.length * 2));
+        }
+        if(moveBuffers[ply] == null) {
+            moveBuffers[ply] = new int[MAX_MOVES];
+        }
+        return moveBuffers[ply];
+    }
+
+    /**
+     * A private helper method to generate every legal move of one color.
+     * @param c Color ordinal of the moving side
+     * @param buffer Array to write the moves into
+     * @return the number of moves written
+     */
+    private int generateMoves(int c, int[] buffer) {
+        int n = 0;
+        for(int t = 0; t < TYPES.length; t++) {
+            for(int i = 0; i < counts[t][c]; i++) {
+                Piece p = pieces[t][c][i];
+                long legal = legalTargets(p);
+                while(legal != 0) {
+                    int dest = Long.numberOfTrailingZeros(legal);
+                    legal &= legal - 1;
+                    int move = p.square.index | dest << 6;
+                    if(TYPES[t] == Piece.Type.PAWN && (dest >= 56 || dest < 8)) {
+                        for(int promo = Piece.Type.QUEEN.ordinal();
+                                promo <= Piece.Type.BISHOP.ordinal(); promo++) {
+                            buffer[n++] = move | promo << 12;
+                        }
+                    } else {
+                        buffer[n++] = move;
+                    }
+                }
+            }
+        }
+        for(int dir = -1; dir < 2; dir += 2) {
+            if(canCastle(c, dir)) {
+                buffer[n++] = encodeMove(kingSquares[c], kingSquares[c].relSquare(dir * 2, 0), null);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Plays an encoded move without any validation. The move must come from
+     * generateMoves on the current position.
+     * @param move The encoded move
+     */
+    public void doMove(int move) {
+        if(ply == undoMoves.length) {
+            growUndoStack();
+        }
+        if(observer != null) {
+            observer.push();
+        }
+        Square from = board.squares[moveFrom(move)];
+        Square to = board.squares[moveTo(move)];
+        Piece piece = from.piece;
+        int c = piece.color.ordinal();
+        undoMoves[ply] = move;
+        undoEp[ply] = ep;
+        undoDraw50[ply] = draw50;
+        undoCastling[ply] = castling;
+        undoHash[ply] = hash;
+        hash ^= CASTLE_KEYS[castling] ^ epKey(mailbox, ep == null ? EMPTY : ep.index, c);
+
+        // Capturing
+        Square taken = to;
+        if(piece.type == Piece.Type.PAWN && to == ep) {
+            taken = to.relSquare(0, c == 0 ? -1 : 1);
+        }
+        Piece captured = taken.piece;
+        if(captured != null) {
+            remove(captured);
+            taken.piece = null;
+        }
+        undoCaptured[ply] = captured;
+
+        // Movement
+        relocate(piece, to);
+        if(piece.type == Piece.Type.KING && Math.abs(to.file - from.file) == 2) {
+            Square corner = board.getSquare(to.file > from.file ? 'h' : 'a', to.rank);
+            relocate(corner.piece, to.relSquare(to.file > from.file ? -1 : 1, 0));
+        }
+
+        // Promotion
+        int promo = (move >>> 12) & 7;
+        undoPromoted[ply] = null;
+        if(promo != 0) {
+            remove(piece);
+            Piece newPiece = obtainPiece(TYPES[promo], piece.color, to);
+            to.piece = newPiece;
+            add(newPiece);
+            undoPromoted[ply] = piece;
+        }
+
+        ep = null;
+        if(piece.type == Piece.Type.PAWN && Math.abs(to.rank - from.rank) == 2) {
+            ep = from.relSquare(0, c == 0 ? 1 : -1);
+        }
+        castling &= CASTLE_MASK[from.index] & CASTLE_MASK[to.index];
+        hash ^= CASTLE_KEYS[castling] ^ epKey(mailbox, ep == null ? EMPTY : ep.index, 1 - c);
+        draw50 = (piece.type == Piece.Type.PAWN || captured != null) ? 0 : draw50 + 1;
+        moves++;
+        ply++;
+    }
+
+    /**
+     * Takes back the last move played through doMove (or makeMove).
+     */
+    public void undoMove() {
+        // The observer restores its own state, so it does not need the reverse changes
+        Observer saved = observer;
+        observer = null;
+        ply--;
+        moves--;
+        int move = undoMoves[ply];
+        Square from = board.squares[moveFrom(move)];
+        Square to = board.squares[moveTo(move)];
+        Piece piece = to.piece;
+        if(undoPromoted[ply] != null) {
+            remove(piece);
+            spares[piece.type.ordinal()][piece.color.ordinal()]
+                    [spareCounts[piece.type.ordinal()][piece.color.ordinal()]++] = piece;
+            piece = undoPromoted[ply];
+            to.piece = piece;
+            piece.square = to;
+            add(piece);
+        }
+        relocate(piece, from);
+        if(piece.type == Piece.Type.KING && Math.abs(to.file - from.file) == 2) {
+            Square rook = to.relSquare(to.file > from.file ? -1 : 1, 0);
+            relocate(rook.piece, board.getSquare(to.file > from.file ? 'h' : 'a', to.rank));
+        }
+        Piece captured = undoCaptured[ply];
+        if(captured != null) {
+            captured.square.piece = captured;
+            add(captured);
+        }
+        ep = undoEp[ply];
+        draw50 = undoDraw50[ply];
+        castling = undoCastling[ply];
+        hash = undoHash[ply];
+        observer = saved;
+        if(observer != null) {
+            observer.pop();
+        }
+    }
+
+    /**
+     * Attaches an Observer, which is reset to the current position and then told about every
+     * change doMove makes. Replaces any Observer attached before.
+     * @param observer The observer, or null to detach
+     */
+    public void setObserver(Observer observer) {
+        this.observer = observer;
+        if(observer != null) {
+            observer.reset(this);
+        }
+    }
+
+    /**
+     * Packs a move into an int: bits 0-5 hold the origin Square index, bits 6-11 the
+     * destination Square index and bits 12-14 the Type ordinal promoted to (0 if none).
+     * @param from Square the piece moves from
+     * @param to Square the piece moves to
+     * @param promotion Type to promote to, or null
+     * @return the encoded move
+     */
+    private static int encodeMove(Square from, Square to, Piece.Type promotion) {
+        return from.index | to.index << 6 | (promotion == null ? 0 : promotion.ordinal() << 12);
+    }
+
+    /**
+     * Retrieves the last move played through doMove or makeMove.
+     * @return the encoded move, or 0 if no move has been played on this board
+     */
+    public int lastMove() {
+        return ply == 0 ? NO_MOVE : undoMoves[ply - 1];
+    }
+
+    /**
+     * Retrieves the origin of an encoded move.
+     * @param move The encoded move
+     * @return the origin square, from 0 (a1) to 63 (h8)
+     */
+    public static int moveFrom(int move) {
+        return move & 63;
+    }
+
+    /**
+     * Retrieves the destination of an encoded move.
+     * @param move The encoded move
+     * @return the destination square, from 0 (a1) to 63 (h8)
+     */
+    public static int moveTo(int move) {
+        return (move >>> 6) & 63;
+    }
+
+    /**
+     * Formats an encoded move in coordinate notation (e.g. e2e4 or e7e8q).
+     * @param move The encoded move
+     * @return the move's name
+     */
+    public static String moveName(int move) {
+        String name = "" + (char)('a' + moveFrom(move) % 8) + (moveFrom(move) / 8 + 1) +
+                (char)('a' + moveTo(move) % 8) + (moveTo(move) / 8 + 1);
+        int promo = (move >>> 12) & 7;
+        return promo == 0 ? name : name + "kqrnbp".charAt(promo);
+    }
+
+    /**
+     * Formats an encoded move in Standard Algebraic Notation, as makeMove reads it.
+     * @param move The encoded move, legal in the current position
+     * @return the move, such as "Nbd7", "exd5", "e8=Q+" or "O-O"
+     */
+    public String toSAN(int move) {
+        int from = moveFrom(move);
+        int to = moveTo(move);
+        int code = mailbox[from];
+        int type = code % 6;
+        String dest = "" + (char)('a' + to % 8) + (to / 8 + 1);
+        String san;
+        if(type == KING && Math.abs(to - from) == 2) {
+            san = to > from ? "O-O" : "O-O-O";
+        } else if(type == PAWN) {
+            san = isCapture(move) ? (char)('a' + from % 8) + "x" + dest : dest;
+            int promo = (move >>> 12) & 7;
+            if(promo != 0) {
+                san += "=" + "KQRNBP".charAt(promo);
+            }
         } else {
-            throw new IllegalArgumentException("Can't castle");
+            // Name the file, rank or both when another such piece can reach the same square
+            boolean ambiguous = false;
+            boolean sameFile = false;
+            boolean sameRank = false;
+            int n = generateMoves(scratch);
+            for(int i = 0; i < n; i++) {
+                int other = moveFrom(scratch[i]);
+                if(other != from && moveTo(scratch[i]) == to && mailbox[other] == code) {
+                    ambiguous = true;
+                    sameFile |= other % 8 == from % 8;
+                    sameRank |= other / 8 == from / 8;
+                }
+            }
+            String file = "" + (char)('a' + from % 8);
+            String rank = "" + (from / 8 + 1);
+            san = "KQRNBP".charAt(type) + (!ambiguous ? "" : !sameFile ? file : !sameRank ? rank
+                    : file + rank) + (isCapture(move) ? "x" : "") + dest;
+        }
+        doMove(move);
+        if(inCheck()) {
+            san += generateMoves(scratch) == 0 ? "#" : "+";
+        }
+        undoMove();
+        return san;
+    }
+
+    /**
+     * A private helper method to fetch a promoted piece, reusing one released by undoMove
+     * when possible.
+     * @param type The type of piece
+     * @param color The color of the piece
+     * @param square The square the piece is on
+     * @return the piece
+     */
+    private Piece obtainPiece(Piece.Type type, Piece.Color color, Square square) {
+        int t = type.ordinal();
+        int c = color.ordinal();
+        if(spareCounts[t][c] == 0) {
+            return constructPiece(type, color, square);
+        }
+        Piece piece = spares[t][c][--spareCounts[t][c]];
+        spares[t][c][spareCounts[t][c]] = null;
+        piece.square = square;
+        return piece;
+    }
+
+    /**
+     * A private helper method to double the capacity of the undo stack.
+     */
+    private void growUndoStack() {
+        int size = Math.max(64, undoMoves.length * 2);
+        undoMoves = Arrays.copyOf(undoMoves, size);
+        undoCaptured = Arrays.copyOf(undoCaptured, size);
+        undoPromoted = Arrays.copyOf(undoPromoted, size);
+        undoEp = Arrays.copyOf(undoEp, size);
+        undoDraw50 = Arrays.copyOf(undoDraw50, size);
+        undoCastling = Arrays.copyOf(undoCastling, size);
+        undoHash = Arrays.copyOf(undoHash, size);
+    }
+
+    /**
+     * Retrieves the Zobrist hash of the current position, which is the same for
+     * every game that reaches it.
+     * @return the hash
+     */
+    public long hash() {
+        return moves % 2 == 0 ? hash : hash ^ SIDE_KEY;
+    }
+
+    /**
+     * Retrieves the Zobrist hash of the pawns alone, kept up to date as moves are made.
+     * Positions with the same pawns have the same pawn hash, whatever else differs.
+     * @return the pawn hash, or 0 if there are no pawns
+     */
+    public long pawnHash() {
+        return pawnHash;
+    }
+
+    /**
+     * Computes the hash of a position given in the flat form Position uses.
+     * @param mailbox Piece code on each square, or EMPTY
+     * @param moves Plies played since the start of the game
+     * @param castling Castling rights bitmask
+     * @param epSquare En passant square, or EMPTY
+     * @return the hash, as hash() would return it
+     */
+    static long hashOf(byte[] mailbox, int moves, int castling, int epSquare) {
+        long h = CASTLE_KEYS[castling] ^ epKey(mailbox, epSquare, moves % 2);
+        for(int sq = 0; sq < 64; sq++) {
+            if(mailbox[sq] != EMPTY) {
+                h ^= PIECE_KEYS[mailbox[sq]][sq];
+            }
+        }
+        return moves % 2 == 0 ? h : h ^ SIDE_KEY;
+    }
+
+    /**
+     * A private helper method to find the en passant part of the hash. The square only counts
+     * when a pawn of the side to move stands next to the pawn that was pushed, so that a double
+     * push nobody can take en passant does not keep transpositions apart.
+     * @param mailbox Piece code on each square, or EMPTY
+     * @param epSquare En passant square, or EMPTY
+     * @param color Color of the side to move
+     * @return the key to XOR into the hash, or 0 if en passant cannot be performed
+     */
+    private static long epKey(byte[] mailbox, int epSquare, int color) {
+        if(epSquare == EMPTY) {
+            return 0L;
+        }
+        // The pushed pawn is just past the en passant square, seen from the side to move
+        int pushed = epSquare + (color == WHITE ? -8 : 8);
+        int file = epSquare % 8;
+        int pawn = color * 6 + PAWN;
+        if((file > 0 && mailbox[pushed - 1] == pawn) || (file < 7 && mailbox[pushed + 1] == pawn)) {
+            return EP_KEYS[file];
         }
+        return 0L;
+    }
+
+    /**
+     * Writes the current position in the packed form of Position.pack, without taking
+     * a snapshot.
+     * @param out Where to write Position.PACKED_BYTES bytes
+     */
+    public void pack(ByteBuffer out) {
+        Position.pack(out, mailbox, moves, castling, ep == null ? EMPTY : ep.index, draw50);
+    }
+
+    /**
+     * Retrieves the color of the player to move, without checking if the game is over.
+     * @return WHITE or BLACK
+     */
+    public int sideToMove() {
+        return moves % 2;
+    }
+
+    /**
+     * Retrieves which player's turn it is, without checking if the game is over.
+     * @return 1 for White, 2 for Black
+     */
+    public int playerToMove() {
+        return moves % 2 + 1;
+    }
+
+    /**
+     * Retrieves the buffer size generateMoves needs.
+     * @return MAX_MOVES
+     */
+    public int maxMoves() {
+        return MAX_MOVES;
+    }
+
+    /**
+     * Decides if the game is over, without the side effects of isGameOver. A single repetition
+     * counts as a draw, since whoever could avoid it could also have avoided the first one.
+     * @param legalMoves Number of legal moves generateMoves returned for the current position
+     * @return 1 if White won, 2 if Black won, 0 for a draw, or -1 if the game goes on
+     */
+    public int result(int legalMoves) {
+        if(legalMoves == 0) {
+            return !inCheck() ? 0 : moves % 2 == 0 ? 2 : 1;
+        }
+        if(draw50 >= 100 || isRepetition() || insufficientMaterial()) {
+            return 0;
+        }
+        return -1;
+    }
+
+    /**
+     * Checks if neither player can possibly checkmate: only Kings remain, plus one Knight or
+     * Bishop, or any number of Bishops that all stand on squares of one color. Takes constant
+     * time, so searches can call it at every node.
+     * @return true if the position is a dead draw
+     */
+    public boolean insufficientMaterial() {
+        if((material & HEAVY_MATERIAL) != 0) {
+            return false;
+        }
+        int knights = (int) (material >>> 8 & 0xF) + (int) (material >>> 32 & 0xF);
+        int light = (int) (material >>> 16 & 0xF) + (int) (material >>> 40 & 0xF);
+        int dark = (int) (material >>> 12 & 0xF) + (int) (material >>> 36 & 0xF);
+        return DEAD_MINORS[Math.min(knights, 2) * 9 + Math.min(light, 2) * 3 + Math.min(dark, 2)];
+    }
+
+    /**
+     * Retrieves the material signature of the position, which is kept up to date as pieces are
+     * captured and promoted. Positions with the same pieces share a key, so it can select
+     * specialized endgame evaluation or tablebase probing. Each count takes 4 bits: White's
+     * Queens, Rooks, Knights, dark-squared Bishops, light-squared Bishops and Pawns from bit 0,
+     * then Black's in the same order from bit 24. Kings are not counted.
+     * @return the signature
+     */
+    public long materialKey() {
+        return material;
+    }
+
+    /**
+     * Reads the number of pieces of one kind from a material signature.
+     * @param materialKey The signature (see materialKey)
+     * @param type The piece type (QUEEN to PAWN)
+     * @param color The piece color (WHITE or BLACK)
+     * @return the count, with Bishops on both square colors added together
+     * @throws IllegalArgumentException If type is KING or out of range
+     */
+    public static int materialCount(long materialKey, int type, int color) {
+        if(type < QUEEN || type > PAWN) {
+            throw new IllegalArgumentException("No count for type " + type);
+        }
+        int count = (int) (materialKey >>> materialShift(type, color, 0) & 0xF);
+        if(type == BISHOP) {
+            count += (int) (materialKey >>> materialShift(type, color, 1) & 0xF);
+        }
+        return count;
+    }
+
+    /**
+     * Checks if the player to move is in check.
+     * @return true if the King of the player to move is attacked
+     */
+    public boolean inCheck() {
+        int c = moves % 2;
+        return attacked(kingSquares[c].index, 1 - c, occupied[0] | occupied[1], 0L);
+    }
+
+    /**
+     * Checks if an encoded move captures a piece.
+     * @param move The encoded move, legal in the current position
+     * @return true if the move is a capture (including en passant)
+     */
+    public boolean isCapture(int move) {
+        Square to = board.squares[moveTo(move)];
+        return to.piece != null ||
+                (to == ep && board.squares[moveFrom(move)].piece.type == Piece.Type.PAWN);
+    }
+
+    /**
+     * Retrieves the piece on a square.
+     * @param square The square, from 0 (a1) to 63 (h8)
+     * @return the piece code (color * 6 + type), or -1 if the square is empty
+     */
+    public int pieceAt(int square) {
+        return mailbox[square];
+    }
+
+    /**
+     * Retrieves the squares holding one kind of piece.
+     * @param type The piece type (KING to PAWN)
+     * @param color The piece color (WHITE or BLACK)
+     * @return the squares as a bitboard (bit i set if square i holds such a piece)
+     */
+    public long bitboard(int type, int color) {
+        return bitboards[type][color];
+    }
+
+    /**
+     * Retrieves the number of plies since the last capture or pawn move.
+     * @return the halfmove clock
+     */
+    public int halfmoveClock() {
+        return draw50;
+    }
+
+    /**
+     * Checks if the current position already occurred since the last capture or pawn move.
+     * @return true if the position is a repetition
+     */
+    public boolean isRepetition() {
+        int known = Math.min(draw50, ply + history.length);
+        for(int back = 2; back <= known; back += 2) {
+            if(hashBefore(back) == hash) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes an immutable snapshot of the game: a flat copy of the board and the state needed
+     * to continue from it. Moves made afterwards do not affect the snapshot, so it can be
+     * handed to other threads.
+     * @return the snapshot
+     */
+    public Position snapshot() {
+        long[] recent = new long[Math.min(draw50, ply + history.length)];
+        for(int i = 0; i < recent.length; i++) {
+            recent[i] = hashBefore(recent.length - i);
+        }
+        return new Position(mailbox.clone(), moves, castling, ep == null ? EMPTY : ep.index,
+                draw50, hash(), recent, log, draw, resigned);
+    }
+
+    /**
+     * Copies the game through a snapshot.
+     * @return an independent game in the same state
+     */
+    public Chess copy() {
+        return new Chess(snapshot());
+    }
+
+    /**
+     * A private helper method to look up the hash of an earlier position, reaching into the
+     * history of the game this one was copied from if needed.
+     * @param back Number of plies to go back, at most ply + history.length
+     * @return the hash, without the side to move
+     */
+    private long hashBefore(int back) {
+        int i = ply - back;
+        return i >= 0 ? undoHash[i] : history[history.length + i];
+    }
+
+    /**
+     * A private helper method to scramble the bits of a long (the SplitMix64 finalizer).
+     * @param z The value to scramble
+     * @return the scrambled value
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
     }
 
     /**
@@ -846,39 +1739,57 @@ public class Chess implements AbstractStrategyGame {
         return false;
     }
 
+    // An interface for objects that mirror the pieces on the board incrementally, such as
+    // evaluation accumulators. Squares and piece codes are as in pieceAt.
+    public interface Observer {
+        /**
+         * Called when attached: rebuild from scratch.
+         * @param game The game, to read the position from
+         */
+        void reset(Chess game);
+
+        /**
+         * Called before doMove changes anything: save the current state.
+         */
+        void push();
+
+        /**
+         * Called after undoMove: go back to the state saved by the matching push.
+         */
+        void pop();
+
+        /**
+         * Called when a piece appears on a square.
+         * @param code The piece code
+         * @param square The square
+         */
+        void add(int code, int square);
+
+        /**
+         * Called when a piece leaves a square.
+         * @param code The piece code
+         * @param square The square
+         */
+        void remove(int code, int square);
+    }
+
     // A class to represent the King
     private class King extends Piece {
-        private boolean canCastle;
-
         /**
          * Constructs a new King.
          * @param color Color of the King
          * @param square Square the King is on
          */
         public King(Piece.Color color, Square square) {
-            super(color, "King", square);
-            canCastle = true;
+            super(color, Piece.Type.KING, square);
         }
 
         /**
-         * Calculates the King's current legal moves.
+         * Calculates the squares the King could move to, ignoring checks.
+         * @return the squares as a bitboard
          */
-        public void calcLegal() {
-            legalSquares.clear();
-            square.piece = null;
-            for(int vert = -1; vert < 2; vert++) {
-                for(int hori = -1; hori < 2; hori++) {
-                    addIfLegal(hori, vert);
-                }
-            }
-            ArrayList<Square> temp = new ArrayList<>();
-            for(Square s : legalSquares) {
-                if(!s.equals(square) && !s.isAttacked(Piece.oppColor(color))) {
-                    temp.add(s);
-                }
-            }
-            square.piece = this;
-            legalSquares = temp;
+        public long targets() {
+            return Attacks.KING[square.index] & ~occupied[color.ordinal()];
         }
     }
 
@@ -890,50 +1801,37 @@ public class Chess implements AbstractStrategyGame {
          * @param square Square the Queen is on
          */
         public Queen(Piece.Color color, Square square) {
-            super(color, "Queen", square);
+            super(color, Piece.Type.QUEEN, square);
         }
 
         /**
-         * Calculates the Queen's current legal moves.
+         * Calculates the squares the Queen could move to, ignoring checks.
+         * @return the squares as a bitboard
          */
-        public void calcLegal() {
-            legalSquares.clear();
-            int i;
-            for(int vert = -1; vert < 2; vert++) {
-                for(int hori = -1; hori < 2; hori++) {
-                    i = 1;
-                    while(addIfLegal(hori * i, vert * i++));
-                }
-            }
+        public long targets() {
+            return Attacks.queen(square.index, occupied[0] | occupied[1]) &
+                    ~occupied[color.ordinal()];
         }
     }
 
     // A class to represent the Rook
     private class Rook extends Piece {
-        private boolean canCastle;
-
         /**
          * Constructs a new Rook.
          * @param color Color of the Rook
          * @param square Square the Rook is on
          */
         public Rook(Piece.Color color, Square square) {
-            super(color, "Rook", square);
-            canCastle = true;
+            super(color, Piece.Type.ROOK, square);
         }
 
         /**
-         * Calculates the Rook's current legal moves.
+         * Calculates the squares the Rook could move to, ignoring checks.
+         * @return the squares as a bitboard
          */
-        public void calcLegal() {
-            legalSquares.clear();
-            int i;
-            for(int dir = -1; dir < 2; dir += 2) {
-                i = 1;
-                while(addIfLegal(dir * i++, 0));
-                i = 1;
-                while(addIfLegal(0, dir * i++));
-            }
+        public long targets() {
+            return Attacks.rook(square.index, occupied[0] | occupied[1]) &
+                    ~occupied[color.ordinal()];
         }
     }
 
@@ -945,20 +1843,15 @@ public class Chess implements AbstractStrategyGame {
          * @param square Square the Knight is on
          */
         public Knight(Piece.Color color, Square square) {
-            super(color, "Knight", square);
+            super(color, Piece.Type.KNIGHT, square);
         }
 
         /**
-         * Calculates the Knight's current legal moves.
+         * Calculates the squares the Knight could move to, ignoring checks.
+         * @return the squares as a bitboard
          */
-        public void calcLegal() {
-            legalSquares.clear();
-            for(int primary = -2; primary < 3; primary += 4) {
-                for(int offset = -1; offset < 2; offset += 2) {
-                    addIfLegal(offset, primary);
-                    addIfLegal(primary, offset);
-                }
-            }
+        public long targets() {
+            return Attacks.KNIGHT[square.index] & ~occupied[color.ordinal()];
         }
     }
 
@@ -970,48 +1863,45 @@ public class Chess implements AbstractStrategyGame {
          * @param square Square the Bishop is on
          */
         public Bishop(Piece.Color color, Square square) {
-            super(color, "Bishop", square);
+            super(color, Piece.Type.BISHOP, square);
         }
 
         /**
-         * Calculates the Bishop's current legal moves.
+         * Calculates the squares the Bishop could move to, ignoring checks.
+         * @return the squares as a bitboard
          */
-        public void calcLegal() {
-            legalSquares.clear();
-            int i;
-            for(int vert = -1; vert < 2; vert += 2) {
-                for(int hori = -1; hori < 2; hori += 2) {
-                    i = 1;
-                    while(addIfLegal(hori * i, vert * i++));
-                }
-            }
+        public long targets() {
+            return Attacks.bishop(square.index, occupied[0] | occupied[1]) &
+                    ~occupied[color.ordinal()];
         }
     }
 
     // A class to represent the Pawn
     private class Pawn extends Piece {
-        private boolean canDouble;
-
         /**
          * Constructs a new Pawn.
          * @param color Color of the Pawn
          * @param square Square the Pawn is on
          */
         public Pawn(Piece.Color color, Square square) {
-            super(color, "Pawn", square);
-            canDouble = true;
+            super(color, Piece.Type.PAWN, square);
         }
 
         /**
-         * Calculates the Pawn's current legal moves.
+         * Calculates the squares the Pawn could move to, ignoring checks.
+         * @return the squares as a bitboard
          */
-        public void calcLegal() {
-            legalSquares.clear();
-            int colorDir = color.equals(Piece.Color.WHITE) ? 1 : -1;
-            addIfLegal(0, colorDir);
-            if(canDouble) { addIfLegal(0, 2 * colorDir); }
-            addIfCapturable(-1, colorDir, color);
-            addIfCapturable(1, colorDir, color);
+        public long targets() {
+            int c = color.ordinal();
+            long empty = ~(occupied[0] | occupied[1]);
+            long bit = 1L << square.index;
+            long push = (c == 0 ? bit << 8 : bit >>> 8) & empty;
+            // Pawns still on their starting rank may advance two squares
+            if(push != 0 && square.rank == (c == 0 ? 2 : 7)) {
+                push |= (c == 0 ? push << 8 : push >>> 8) & empty;
+            }
+            long enemies = occupied[1 - c] | (ep == null ? 0L : 1L << ep.index);
+            return push | (Attacks.PAWN[c][square.index] & enemies);
         }
     }
 
@@ -1021,26 +1911,33 @@ public class Chess implements AbstractStrategyGame {
             WHITE,
             BLACK
         }
-        protected static final Map<Color, Map<String, String>> ICONS = Map.of(
-                Color.WHITE, Map.of("King","♔","Queen","♕","Rook","♖",
-                        "Knight","♘","Bishop","♗","Pawn","♙"),
-                Color.BLACK, Map.of("King","♚","Queen","♛","Rook","♜",
-                        "Knight","♞","Bishop","♝","Pawn","♟"));
+        private enum Type {
+            KING,
+            QUEEN,
+            ROOK,
+            KNIGHT,
+            BISHOP,
+            PAWN
+        }
+        // Icons indexed by [Color ordinal][Type ordinal]
+        protected static final String[][] ICONS = {
+                {"♔", "♕", "♖", "♘", "♗", "♙"},
+                {"♚", "♛", "♜", "♞", "♝", "♟"}};
         protected List<Square> legalSquares;
         protected Square square;
         protected Color color;
-        private String piece;
+        private Type type;
 
         /**
          * Constructs a new Piece.
          * @param color Color of the Piece
-         * @param piece Name of the Piece
+         * @param type Type of the Piece
          * @param square Square the Piece is on
          */
-        public Piece(Color color, String piece, Square square) {
+        public Piece(Color color, Type type, Square square) {
             this.legalSquares = new ArrayList<>();
             this.color = color;
-            this.piece = piece;
+            this.type = type;
             this.square = square;
         }
 
@@ -1053,66 +1950,6 @@ public class Chess implements AbstractStrategyGame {
             return color.equals(Color.WHITE) ? Color.BLACK : Color.WHITE;
         }
 
-        /**
-         * A helper method to add the square defined by the offsets to the list of legal moves
-         * if the move is legal.
-         * @param fileOffset Horizontal offset from the piece's current square
-         * @param rankOffset Vertical offset from the piece's current square
-         * @return true if the square was added or
-         *         if the caller can continue searching for legal squares
-         */
-        public boolean addIfLegal(int fileOffset, int rankOffset) {
-            Square tSqr = square.relSquare(fileOffset, rankOffset);
-            if(tSqr != null) {
-                // Check if square can be moved to
-                if(tSqr.piece == null || tSqr.piece.color.equals(oppColor(color))) {
-                    // Temporarily make the move
-                    Piece temp = tSqr.piece;
-                    tSqr.piece = this;
-                    square = tSqr;
-                    tSqr.relSquare(-fileOffset, -rankOffset).piece = null;
-                    // Verify this move will not put/keep King in check
-                    if(pieces.get("King").get(color).get(0).square.isAttacked(oppColor(color))) {
-                        // Restore game state
-                        tSqr.piece = temp;
-                        square = tSqr.relSquare(-fileOffset, -rankOffset);
-                        square.piece = this;
-                        // King is still in check by this move, keep searching
-                        return true;
-                    }
-                    // Restore game state
-                    tSqr.piece = temp;
-                    square = tSqr.relSquare(-fileOffset, -rankOffset);
-                    square.piece = this;
-                    // Add move
-                    legalSquares.add(tSqr);
-                    return tSqr.piece == null;
-                }
-            }
-            // Stop checking
-            return false;
-        }
-
-        /**
-         * A helper method to add the square defined by the offests to the list of legal moves
-         * if the move results in a capture.
-         * @param fileOffset Horizontal offset from the piece's current square
-         * @param rankOffset Vertical offset from the piece's current square
-         * @param color Color of the piece
-         * @return true if the square was added or
-         *         if the caller can continue searching for legal squares
-         */
-        public boolean addIfCapturable(int fileOffset, int rankOffset, Color color) {
-            char tFile = (char)(square.file + fileOffset);
-            int tRank = square.rank + rankOffset;
-            if(Board.isLegal(tFile, tRank) &&
-                    (square.relSquare(fileOffset, rankOffset).piece != null ||
-                    square.relSquare(fileOffset, rankOffset).equals(ep))) {
-                return addIfLegal(fileOffset, rankOffset);
-            }
-            return false;
-        }
-
         /**
          * A method to check if two pieces are the same.
          * @return true if the pieces are the same
@@ -1120,7 +1957,7 @@ public class Chess implements AbstractStrategyGame {
         public boolean equals(Object obj) {
             if(obj instanceof Piece) {
                 Piece o = (Piece) obj;
-                return (this.piece.equals(o.piece) && this.color.equals(o.color) &&
+                return (this.type == o.type && this.color == o.color &&
                         this.square.equals(o.square));
             }
             return false;
@@ -1131,24 +1968,41 @@ public class Chess implements AbstractStrategyGame {
          * @return the icon of this piece
          */
         public String toString() {
-            return ICONS.get(color).get(piece);
+            return ICONS[color.ordinal()][type.ordinal()];
         }
 
         /**
          * Calculates the piece's current legal moves.
          */
-        public abstract void calcLegal();
+        public void calcLegal() {
+            legalSquares.clear();
+            long legal = legalTargets(this);
+            while(legal != 0) {
+                legalSquares.add(board.squares[Long.numberOfTrailingZeros(legal)]);
+                legal &= legal - 1;
+            }
+        }
+
+        /**
+         * Calculates the squares the piece could move to, ignoring checks.
+         * @return the squares as a bitboard
+         */
+        public abstract long targets();
     }
 
     // A class to represent the Chess board
     private class Board {
         private Square[][] board;
+        // The same Squares, indexed by Square index
+        private Square[] squares;
 
         public Board() {
             board = new Square[8][8];
+            squares = new Square[64];
             for(int i = 0; i < 8; i++) {
                 for(int j = 0; j < 8; j++) {
                     board[i][j] = new Square(this, (char)('a' + j), 8 - i);
+                    squares[board[i][j].index] = board[i][j];
                 }
             }
         }
@@ -1191,6 +2045,8 @@ public class Chess implements AbstractStrategyGame {
         private Board board;
         private char file;
         private int rank;
+        // 0 (a1) to 63 (h8), rank-major
+        private int index;
         private Piece piece;
 
         /**
@@ -1202,6 +2058,7 @@ public class Chess implements AbstractStrategyGame {
             this.board = board;
             this.file = file;
             this.rank = rank;
+            this.index = (rank - 1) * 8 + (file - 'a');
         }
 
         /**
@@ -1223,60 +2080,7 @@ public class Chess implements AbstractStrategyGame {
          * @return true if this square is in the legal squares of the specified color
          */
         public boolean isAttacked(Piece.Color color) {
-            Square square;
-            // King?
-            // Check in any direction if a King is there
-            // If there is, check if this square is protected by a friendly piece
-            for(int vert = -1; vert < 2; vert++) {
-                for(int hori = -1; hori < 2; hori++) {
-                    square = relSquare(hori, vert);
-                    if(square != null && square.piece instanceof King &&
-                            square.piece.color.equals(color)){
-                        return true;
-                    }
-                }
-            }
-            // Queen/Rook/Bishop?
-            int i;
-            for(int vert = -1; vert < 2; vert++) {
-                for(int hori = -1; hori < 2; hori++) {
-                    i = 1;
-                    square = relSquare(hori * i, vert * i);
-                    while(square != null && !square.equals(this) && square.piece == null) {
-                        square = relSquare(hori * ++i, vert * i);
-                    }
-                    if(square != null && (square.piece instanceof Queen ||
-                            ((vert != 0 && hori != 0) ? square.piece instanceof Bishop :
-                            square.piece instanceof Rook)) && square.piece.color.equals(color)) {
-                        return true;
-                    }
-                }
-            }
-            // Knight
-            for(int primary = -2; primary < 3; primary += 4) {
-                for(int offset = -1; offset < 2; offset += 2) {
-                    square = relSquare(offset, primary);
-                    if(square != null && square.piece instanceof Knight &&
-                            square.piece.color.equals(color)) {
-                        return true;
-                    }
-                    square = relSquare(primary, offset);
-                    if(square != null && square.piece instanceof Knight &&
-                            square.piece.color.equals(color)) {
-                        return true;
-                    }
-                }
-            }
-            // Pawn
-            int searchDir = color.equals(Piece.Color.WHITE) ? -1 : 1;
-            for(int offset = -1; offset < 2; offset += 2) {
-                square = relSquare(offset, searchDir);
-                if(square != null && square.piece instanceof Pawn &&
-                        square.piece.color.equals(color)) {
-                    return true;
-                }
-            }
-            return false;
+            return attacked(index, color.ordinal(), occupied[0] | occupied[1], 0L);
         }
 
         /**
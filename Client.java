@@ -1,7 +1,18 @@
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
 
 public class Client {
-    public static void main(String[] args) {
+    /**
+     * Plays a game on the console. With no arguments, both players are human; otherwise the
+     * engine plays one side, thinking on the opponent's time unless told not to. With a cache
+     * directory, the engine plays positions it analysed before from its AnalysisCache, and
+     * adds the result of every search to it.
+     * Usage: java Client [white|black] [millis per move] [ponder|noponder] [cache dir]
+     * @param args The arguments
+     * @throws IOException If the cache cannot be read or written
+     */
+    public static void main(String[] args) throws IOException {
         Scanner console = new Scanner(System.in);
         // String pre = "Rxh8 Ke7 Raxa8 Kd7 Rh6 Kc7 Ra1 Kb7 Rb1 Ka7 Kd2 Ka8 Kc3 Ka7 Kb4 Kb8 Kb5 Ka8 Kb6 Kb8";
         // String pre = "e4 e5 Nf3 d6 d4 Bg4 dxe5 Bxf3 Qxf3 dxe5 Bc4 Nf6 Qb3 Qe7 Nc3 c6 Bg5 b5 Nxb5 cxb5 Bxb5 Nbd7 O-O-O Rd8 Rxd7 Rxd7 Rd1 Qe6 Bxd7 Nxd7";
@@ -11,6 +22,12 @@ public class Client {
         String FEN_STANDARD = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
         String AverbakhVKotov = "r1bq1rk1/pp1nbppp/2pp1n2/4p3/2PPP3/2N2N2/PP2BPPP/R1BQ1RK1 w - - 0 8";
         Chess game = new Chess();
+        // Player the engine plays, if any, and its budget per move
+        int engine = args.length > 0 ? (args[0].equals("white") ? 1 : args[0].equals("black") ? 2 : 0) : 0;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+        Search search = new Search();
+        Ponderer ponderer = args.length > 2 && args[2].equals("noponder") ? null : new Ponderer(search);
+        AnalysisCache cache = args.length > 3 ? new AnalysisCache(Paths.get(args[3]), 1 << 16) : null;
 
         System.out.println(game.instructions());
         System.out.println();
@@ -18,13 +35,53 @@ public class Client {
         while (!game.isGameOver()) {
             System.out.println(game);
             System.out.printf("Player %d's turn.\n", game.getNextPlayer());
+            if (game.getNextPlayer() == engine) {
+                long start = System.nanoTime();
+                AnalysisCache.Entry cached = cache != null ? cache.get(game, 0) : null;
+                int move;
+                boolean hit = false;
+                if (cached != null) {
+                    if (ponderer != null) {
+                        ponderer.abort();
+                    }
+                    move = cached.move;
+                } else {
+                    move = ponderer != null ? ponderer.finish(game, millis) : 0;
+                    hit = move != 0;
+                    if (!hit) {
+                        move = search.search(game, Search.MAX_PLY, 0, millis);
+                    }
+                    if (cache != null && search.getDepth() > 0) {
+                        cache.put(game.hash(), move, search.getScore(), search.getDepth());
+                        // One result per move is cheap to write out, and survives an abrupt exit
+                        cache.flush();
+                    }
+                }
+                String san = game.toSAN(move);
+                System.out.printf("Engine plays %s (%d ms%s)\n", san, (System.nanoTime() - start) / 1_000_000,
+                        hit ? ", ponder hit" : cached != null ? ", from cache" : "");
+                game.makeMove(san);
+                // A cached result has no line to ponder on
+                int[] line = cached != null ? new int[0] : search.getPrincipalVariation();
+                if (ponderer != null && line.length > 1 && !game.isGameOver()) {
+                    ponderer.start(game, line[1]);
+                }
+                continue;
+            }
             try {
                 game.makeMove(console);
             } catch (IllegalArgumentException ex) {
                 System.out.println("**Illegal move: " + ex.getMessage());
             }
         }
+        if (ponderer != null) {
+            ponderer.abort();
+        }
+        if (cache != null) {
+            cache.close();
+        }
         System.out.println(game);
+        System.out.println(game.getLog());
         int winner = game.getWinner();
         if (winner > 0) {
             System.out.printf("Player %d wins!\n", winner);
@@ -0,0 +1,738 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// A class to search one position with several worker processes, by splitting its root moves.
+// The coordinator listens on a socket; workers (java DistributedSearch worker host port) connect,
+// and each is handed one root move at a time: the position in Position's packed form, the move
+// and the depth. A worker plays the move, searches the reply to depth - 1 with its own Search
+// (keeping its transposition table between tasks), or only resolves captures when that depth
+// is 0, and sends back the score and line. Root moves are handed out best first, as ordered by
+// a shallow local search, and every one gets an exact score, so the result ranks all the moves.
+//
+// Workers send a heartbeat every HEARTBEAT_MILLIS. One that stays silent for TIMEOUT_MILLIS, or
+// whose connection drops, is dropped, and its task goes back to the front of the queue. Once the
+// queue is empty, an idle worker steals the task that has been running the longest by starting
+// it too; the first result wins, and the other worker is told to cancel. This also keeps a slow
+// worker from holding up the end of the search.
+//
+// Messages are a type byte followed by big-endian fields. Workers see only the packed position,
+// so repetitions of positions before the root are not detected.
+public class DistributedSearch implements Closeable {
+    static final long HEARTBEAT_MILLIS = 250;
+    static final long TIMEOUT_MILLIS = 3000;
+    private static final int PROTOCOL = 1;
+    // Worker to coordinator: protocol version
+    private static final byte HELLO = 1;
+    // Coordinator to worker: task ID, packed position, move, depth
+    private static final byte TASK = 2;
+    // Worker to coordinator: task ID, score, nodes, line length, line
+    private static final byte RESULT = 3;
+    // Worker to coordinator: nothing
+    private static final byte HEARTBEAT = 4;
+    // Coordinator to worker: task ID
+    private static final byte CANCEL = 5;
+    // Coordinator to worker: nothing
+    private static final byte SHUTDOWN = 6;
+
+    private final ServerSocket server;
+    // Everything below is guarded by this
+    private final List<Link> links;
+    private final Deque<Task> pending;
+    private final Map<Integer, Task> running;
+    private final List<Process> processes;
+    private int nextTaskId;
+    private int remaining;
+    private boolean closed;
+
+    /**
+     * Constructs a new DistributedSearch listening for workers on the loopback interface.
+     * @param port Port to listen on, or 0 for any free port
+     * @throws IOException If the port cannot be opened
+     */
+    public DistributedSearch(int port) throws IOException {
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        links = new ArrayList<>();
+        pending = new ArrayDeque<>();
+        running = new HashMap<>();
+        processes = new ArrayList<>();
+        Thread acceptor = new Thread(this::accept, "coordinator-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Thread monitor = new Thread(this::monitor, "coordinator-monitor");
+        monitor.setDaemon(true);
+        monitor.start();
+    }
+
+    /**
+     * Retrieves the port workers should connect to.
+     * @return the port
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Starts worker processes on this machine, with the same Java and class path as this one.
+     * They are shut down by close.
+     * @param count Number of workers
+     * @param hashMegabytes Size of each worker's transposition table
+     * @throws IOException If a process cannot be started
+     */
+    public void launchLocalWorkers(int count, int hashMegabytes) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        for(int i = 0; i < count; i++) {
+            Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    "DistributedSearch", "worker", "localhost", String.valueOf(getPort()),
+                    String.valueOf(hashMegabytes)).inheritIO().start();
+            synchronized(this) {
+                processes.add(process);
+            }
+        }
+    }
+
+    /**
+     * Waits until enough workers are connected.
+     * @param count Workers to wait for
+     * @param maxMillis Longest time to wait
+     * @return true if they connected in time
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public synchronized boolean awaitWorkers(int count, long maxMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxMillis;
+        while(links.size() < count) {
+            long left = deadline - System.currentTimeMillis();
+            if(left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Retrieves the number of connected workers.
+     * @return the worker count
+     */
+    public synchronized int getWorkers() {
+        return links.size();
+    }
+
+    /**
+     * Searches the current position of a game to a fixed depth on the connected workers,
+     * blocking until every root move has its score.
+     * @param game The game to search; it is not modified
+     * @param depth Depth to search each root move to, counting the move itself
+     * @return the result
+     * @throws IllegalArgumentException If depth is less than 1, or the game has no legal moves
+     * @throws IllegalStateException If there are no workers, or all of them are lost
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public Result search(Chess game, int depth) throws InterruptedException {
+        if(depth < 1) {
+            throw new IllegalArgumentException("Depth must be positive");
+        }
+        int[] order = rootOrder(game, depth);
+        if(order.length == 0) {
+            throw new IllegalArgumentException("No legal moves");
+        }
+        ByteBuffer packed = ByteBuffer.allocate(Position.PACKED_BYTES);
+        game.pack(packed);
+        byte[] position = packed.array();
+        long start = System.nanoTime();
+        List<Task> tasks = new ArrayList<>();
+        synchronized(this) {
+            if(links.isEmpty()) {
+                throw new IllegalStateException("No workers connected");
+            }
+            for(int move : order) {
+                Task task = new Task(nextTaskId++, position, move, depth);
+                tasks.add(task);
+                running.put(task.id, task);
+                pending.addLast(task);
+            }
+            remaining = tasks.size();
+            assign();
+            try {
+                while(remaining > 0) {
+                    if(links.isEmpty()) {
+                        throw new IllegalStateException("All workers were lost");
+                    }
+                    wait();
+                }
+            } finally {
+                for(Task task : tasks) {
+                    running.remove(task.id);
+                    pending.remove(task);
+                }
+            }
+        }
+        return new Result(tasks, System.nanoTime() - start);
+    }
+
+    /**
+     * Shuts down the workers and stops listening.
+     * @throws IOException If the socket cannot be closed
+     */
+    public void close() throws IOException {
+        List<Link> open;
+        List<Process> started;
+        synchronized(this) {
+            closed = true;
+            open = new ArrayList<>(links);
+            started = new ArrayList<>(processes);
+            notifyAll();
+        }
+        for(Link link : open) {
+            try {
+                synchronized(link.out) {
+                    link.out.writeByte(SHUTDOWN);
+                    link.out.flush();
+                }
+            } catch(IOException ex) {
+                // Already gone
+            }
+            link.socket.close();
+        }
+        server.close();
+        for(Process process : started) {
+            try {
+                if(!process.waitFor(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    process.destroy();
+                }
+            } catch(InterruptedException ex) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Runs a worker, or times searches with increasing numbers of local workers.
+     * Usage: java DistributedSearch worker host port [hash MB]
+     *        java DistributedSearch bench depth workers [FEN]
+     * @param args The arguments
+     * @throws IOException If a connection fails
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if(args.length >= 3 && args[0].equals("worker")) {
+            work(args[1], Integer.parseInt(args[2]), args.length > 3 ? Integer.parseInt(args[3]) : 64);
+        } else if(args.length >= 3 && args[0].equals("bench")) {
+            int depth = Integer.parseInt(args[1]);
+            int workers = Integer.parseInt(args[2]);
+            Chess game = args.length > 3 ? new Chess(args[3]) : new Chess();
+            double base = 0;
+            for(int count = 1; count <= workers; count *= 2) {
+                try(DistributedSearch coordinator = new DistributedSearch(0)) {
+                    coordinator.launchLocalWorkers(count, 64);
+                    if(!coordinator.awaitWorkers(count, 30_000)) {
+                        throw new IllegalStateException("Workers did not connect");
+                    }
+                    Result result = coordinator.search(game, depth);
+                    double seconds = result.getElapsedNanos() / 1e9;
+                    base = count == 1 ? seconds : base;
+                    System.out.printf("%d workers: %.2f s, speedup %.2f, %d nodes, best %s %d%n", count,
+                            seconds, base / seconds, result.getNodes(), Chess.moveName(result.getBestMove()),
+                            result.getScore());
+                }
+            }
+        } else {
+            System.out.println("Usage: java DistributedSearch worker <host> <port> [hash MB] | " +
+                    "bench <depth> <workers> [FEN]");
+        }
+    }
+
+    /**
+     * A private helper method to order the root moves best first with a shallow local search.
+     * @param game The game
+     * @param depth Depth of the distributed search
+     * @return the legal moves, best first
+     */
+    private static int[] rootOrder(Chess game, int depth) {
+        Chess copy = game.copy();
+        int[] moves = copy.moveBuffer();
+        int n = copy.generateMoves(moves);
+        int[] order = Arrays.copyOf(moves, n);
+        if(n < 2 || depth < 3) {
+            return order;
+        }
+        Search search = new Search(1);
+        search.setMultiPV(n);
+        int[] ranked = new int[n];
+        int[] found = {0};
+        search.addListener(stats -> {
+            if(stats.getDepth() == 2 && stats.getPrincipalVariation().length > 0) {
+                ranked[found[0]++] = stats.getPrincipalVariation()[0];
+            }
+        });
+        search.search(copy, 2, 0, 0);
+        return found[0] == n ? ranked : order;
+    }
+
+    /**
+     * A private helper method to hand tasks to idle workers: queued tasks first, then a
+     * second copy of the longest running task that has only one. Called holding the lock.
+     */
+    private void assign() {
+        for(Link link : new ArrayList<>(links)) {
+            if(link.current != null) {
+                continue;
+            }
+            Task task = pending.pollFirst();
+            if(task == null) {
+                for(Task candidate : running.values()) {
+                    if(!candidate.done && candidate.assigned.size() == 1 &&
+                            (task == null || candidate.started < task.started)) {
+                        task = candidate;
+                    }
+                }
+            }
+            if(task == null) {
+                return;
+            }
+            link.current = task;
+            task.assigned.add(link);
+            if(task.started == 0) {
+                task.started = System.nanoTime();
+            }
+            try {
+                synchronized(link.out) {
+                    link.out.writeByte(TASK);
+                    link.out.writeInt(task.id);
+                    link.out.write(task.position);
+                    link.out.writeInt(task.move);
+                    link.out.writeByte(task.depth);
+                    link.out.flush();
+                }
+            } catch(IOException ex) {
+                drop(link);
+            }
+        }
+    }
+
+    /**
+     * A private helper method to record a worker's result. Called holding the lock.
+     * @param link The worker
+     * @param id The task ID
+     * @param score The score of the reply, for the player replying
+     * @param nodes Nodes searched
+     * @param line The reply's principal variation
+     */
+    private void finish(Link link, int id, int score, long nodes, int[] line) {
+        link.current = null;
+        Task task = running.get(id);
+        if(task != null) {
+            task.assigned.remove(link);
+            task.nodes += nodes;
+            if(!task.done) {
+                task.done = true;
+                // Back up the reply's score to the root, one ply further from any mate
+                score = -score;
+                score += score > Search.MATE - Search.MAX_PLY ? -1 : score < -Search.MATE + Search.MAX_PLY ? 1 : 0;
+                task.score = score;
+                task.line = new int[line.length + 1];
+                task.line[0] = task.move;
+                System.arraycopy(line, 0, task.line, 1, line.length);
+                remaining--;
+                for(Link other : task.assigned) {
+                    try {
+                        synchronized(other.out) {
+                            other.out.writeByte(CANCEL);
+                            other.out.writeInt(id);
+                            other.out.flush();
+                        }
+                    } catch(IOException ex) {
+                        // Its reader thread will notice and drop it
+                    }
+                }
+            }
+        }
+        assign();
+        notifyAll();
+    }
+
+    /**
+     * A private helper method to drop a worker and requeue its task. Called holding the lock.
+     * @param link The worker
+     */
+    private void drop(Link link) {
+        if(!links.remove(link)) {
+            return;
+        }
+        try {
+            link.socket.close();
+        } catch(IOException ex) {
+            // Nothing more to do with it
+        }
+        Task task = link.current;
+        link.current = null;
+        if(task != null && !task.done) {
+            task.assigned.remove(link);
+            if(task.assigned.isEmpty() && running.containsKey(task.id)) {
+                pending.addFirst(task);
+            }
+        }
+        assign();
+        notifyAll();
+    }
+
+    /**
+     * A private helper method to accept worker connections until closed.
+     */
+    private void accept() {
+        while(!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Link link = new Link(socket);
+                if(link.in.readByte() != HELLO || link.in.readInt() != PROTOCOL) {
+                    socket.close();
+                    continue;
+                }
+                synchronized(this) {
+                    if(closed) {
+                        socket.close();
+                        return;
+                    }
+                    links.add(link);
+                    assign();
+                    notifyAll();
+                }
+                Thread reader = new Thread(() -> read(link), "coordinator-link");
+                reader.setDaemon(true);
+                reader.start();
+            } catch(IOException ex) {
+                // A failed handshake, or the server socket was closed
+            }
+        }
+    }
+
+    /**
+     * A private helper method to read one worker's messages until its connection drops.
+     * @param link The worker
+     */
+    private void read(Link link) {
+        try {
+            while(true) {
+                byte type = link.in.readByte();
+                link.lastSeen = System.nanoTime();
+                if(type == RESULT) {
+                    int id = link.in.readInt();
+                    int score = link.in.readInt();
+                    long nodes = link.in.readLong();
+                    int[] line = new int[link.in.readUnsignedShort()];
+                    for(int i = 0; i < line.length; i++) {
+                        line[i] = link.in.readInt();
+                    }
+                    synchronized(this) {
+                        finish(link, id, score, nodes, line);
+                    }
+                } else if(type != HEARTBEAT) {
+                    throw new IOException("Unexpected message " + type);
+                }
+            }
+        } catch(IOException ex) {
+            synchronized(this) {
+                drop(link);
+            }
+        }
+    }
+
+    /**
+     * A private helper method to drop workers that stopped sending heartbeats.
+     */
+    private void monitor() {
+        while(!server.isClosed()) {
+            try {
+                Thread.sleep(HEARTBEAT_MILLIS);
+            } catch(InterruptedException ex) {
+                return;
+            }
+            long now = System.nanoTime();
+            synchronized(this) {
+                for(Link link : new ArrayList<>(links)) {
+                    if(now - link.lastSeen > TIMEOUT_MILLIS * 1_000_000) {
+                        drop(link);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A private helper method to run a worker until the coordinator shuts it down or goes away.
+     * @param host Coordinator host
+     * @param port Coordinator port
+     * @param megabytes Size of the transposition table
+     * @throws IOException If the connection cannot be made
+     */
+    private static void work(String host, int port, int megabytes) throws IOException {
+        Socket socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        synchronized(out) {
+            out.writeByte(HELLO);
+            out.writeInt(PROTOCOL);
+            out.flush();
+        }
+        Search search = new Search(megabytes);
+        BlockingQueue<byte[]> tasks = new LinkedBlockingQueue<>();
+        // ID of the task being searched or -1, and of the last task cancelled
+        int[] current = {-1, -1};
+        // The search clears its stop flag when it begins, so a cancel that arrives just
+        // before then is caught at the end of the first iteration
+        search.addListener(stats -> {
+            synchronized(current) {
+                if(current[0] == current[1]) {
+                    search.stop();
+                }
+            }
+        });
+
+        Thread searcher = new Thread(() -> {
+            try {
+                while(true) {
+                    ByteBuffer task = ByteBuffer.wrap(tasks.take());
+                    int id = task.getInt();
+                    Chess game = new Chess(Position.unpack(task));
+                    int move = task.getInt();
+                    int depth = task.get();
+                    synchronized(current) {
+                        current[0] = id;
+                    }
+                    game.doMove(move);
+                    if(depth > 1) {
+                        search.search(game, depth - 1, 0, 0);
+                    } else {
+                        // The root move is the whole depth, so only captures are searched
+                        search.quiescence(game);
+                    }
+                    synchronized(current) {
+                        current[0] = -1;
+                    }
+                    int[] line = search.getPrincipalVariation();
+                    synchronized(out) {
+                        out.writeByte(RESULT);
+                        out.writeInt(id);
+                        out.writeInt(search.getScore());
+                        out.writeLong(search.getNodes());
+                        out.writeShort(line.length);
+                        for(int played : line) {
+                            out.writeInt(played);
+                        }
+                        out.flush();
+                    }
+                }
+            } catch(InterruptedException | IOException ex) {
+                // Shutting down
+            }
+        }, "worker-search");
+        searcher.setDaemon(true);
+        searcher.start();
+
+        Thread heartbeat = new Thread(() -> {
+            try {
+                while(true) {
+                    synchronized(out) {
+                        out.writeByte(HEARTBEAT);
+                        out.flush();
+                    }
+                    Thread.sleep(HEARTBEAT_MILLIS);
+                }
+            } catch(InterruptedException | IOException ex) {
+                // Shutting down
+            }
+        }, "worker-heartbeat");
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+
+        try {
+            while(true) {
+                byte type = in.readByte();
+                if(type == TASK) {
+                    byte[] task = new byte[4 + Position.PACKED_BYTES + 4 + 1];
+                    in.readFully(task);
+                    tasks.add(task);
+                } else if(type == CANCEL) {
+                    int id = in.readInt();
+                    synchronized(current) {
+                        current[1] = id;
+                        if(current[0] == id) {
+                            search.stop();
+                        }
+                    }
+                } else if(type == SHUTDOWN) {
+                    break;
+                } else {
+                    throw new IOException("Unexpected message " + type);
+                }
+            }
+        } catch(EOFException ex) {
+            // The coordinator went away
+        } finally {
+            socket.close();
+        }
+    }
+
+    // A class to represent one root move to search
+    private static class Task {
+        private final int id;
+        private final byte[] position;
+        private final int move;
+        private final int depth;
+        // Workers searching it, and when the first one started
+        private final List<Link> assigned;
+        private long started;
+        private boolean done;
+        private int score;
+        private int[] line;
+        private long nodes;
+
+        /**
+         * Constructs a new Task, not yet assigned to any worker.
+         * @param id Number identifying the Task in messages
+         * @param position The root position, packed by Position.pack
+         * @param move The root move to search
+         * @param depth Depth of the whole search, counting the root move
+         */
+        private Task(int id, byte[] position, int move, int depth) {
+            this.id = id;
+            this.position = position;
+            this.move = move;
+            this.depth = depth;
+            assigned = new ArrayList<>();
+        }
+    }
+
+    // A class to represent a connected worker
+    private static class Link {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private volatile long lastSeen;
+        // Task being searched, guarded by the coordinator's lock
+        private Task current;
+
+        /**
+         * Constructs a new Link.
+         * @param socket The worker's connection
+         * @throws IOException If its streams cannot be opened
+         */
+        private Link(Socket socket) throws IOException {
+            this.socket = socket;
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            lastSeen = System.nanoTime();
+        }
+    }
+
+    // A class to hold the outcome of a distributed search
+    public static class Result {
+        // Root moves and their scores, best first
+        private final int[] moves;
+        private final int[] scores;
+        private final int[] principalVariation;
+        private final long nodes;
+        private final long elapsedNanos;
+
+        /**
+         * Constructs a new Result.
+         * @param tasks The finished Tasks, one per root move, in the shallow search's order
+         * @param elapsedNanos Time the search took, in nanoseconds
+         */
+        private Result(List<Task> tasks, long elapsedNanos) {
+            List<Task> sorted = new ArrayList<>(tasks);
+            // Stable, so equal scores keep the shallow search's order
+            sorted.sort((a, b) -> Integer.compare(b.score, a.score));
+            moves = new int[sorted.size()];
+            scores = new int[sorted.size()];
+            long total = 0;
+            for(int i = 0; i < sorted.size(); i++) {
+                moves[i] = sorted.get(i).move;
+                scores[i] = sorted.get(i).score;
+                total += sorted.get(i).nodes;
+            }
+            principalVariation = sorted.get(0).line;
+            nodes = total;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Retrieves the best root move.
+         * @return the move (see Chess.generateMoves)
+         */
+        public int getBestMove() {
+            return moves[0];
+        }
+
+        /**
+         * Retrieves the score of the best move.
+         * @return the score in centipawns for the player to move
+         */
+        public int getScore() {
+            return scores[0];
+        }
+
+        /**
+         * Retrieves the expected line, starting with the best move.
+         * @return a copy of the moves
+         */
+        public int[] getPrincipalVariation() {
+            return principalVariation.clone();
+        }
+
+        /**
+         * Retrieves every root move, best first.
+         * @return a copy of the moves
+         */
+        public int[] getMoves() {
+            return moves.clone();
+        }
+
+        /**
+         * Retrieves the scores of the root moves, in the order of getMoves.
+         * @return a copy of the scores
+         */
+        public int[] getScores() {
+            return scores.clone();
+        }
+
+        /**
+         * Retrieves the number of nodes all workers searched, including the nodes of both
+         * workers when a Task was stolen.
+         * @return the node count
+         */
+        public long getNodes() {
+            return nodes;
+        }
+
+        /**
+         * Retrieves the time the search took.
+         * @return the elapsed time in nanoseconds
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+}
@@ -0,0 +1,801 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// A class to store chess games compactly in an archive file that can be read in any order.
+// Every move is stored as its rank among the legal moves of its position, in the order of a
+// cheap guess at how likely each is to be played (captures of valuable pieces, recaptures,
+// promotions and castling first, then moves towards the centre), so most moves get a small rank.
+// The ranks of each block of games are coded with a canonical Huffman code built for that block.
+// Decoding replays the games through the move generator, so every stored game is legal.
+//
+// File layout: a 32-byte header (magic, version, game count, block count, games per block,
+// block index offset), the blocks, then the block index (offset and length of each block).
+// A block holds the code lengths of the 256 possible ranks packed in nibbles, then for each
+// game a varint ply count, a varint length of its code in bits and a flags byte (the result,
+// plus CUSTOM_START if the packed start position follows), then the code of all its games.
+// Numbers are big-endian. A game is read by decoding only its block's directory and its own bits.
+public class GameArchive implements Closeable {
+    public static final int DEFAULT_BLOCK_GAMES = 1024;
+
+    private static final int MAGIC = 0x47415243;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int INDEX_ENTRY_BYTES = 12;
+    private static final int SYMBOLS = 256;
+    private static final int MAX_CODE_BITS = 15;
+    // Flags byte: the result (a PositionIndex constant) in the low two bits, and this flag
+    private static final int CUSTOM_START = 4;
+    // Rough piece values used to guess move order, indexed by type (KING to PAWN)
+    private static final int[] VALUES = {0, 9, 5, 3, 3, 1};
+    // Closeness of each square to the centre, from -1 in the corners to 5
+    private static final int[] CENTER = new int[64];
+
+    static {
+        for(int sq = 0; sq < 64; sq++) {
+            CENTER[sq] = 6 - (Math.abs(2 * (sq % 8) - 7) + Math.abs(2 * (sq / 8) - 7)) / 2;
+        }
+    }
+
+    private final FileChannel channel;
+    private final long games;
+    private final int blockGames;
+    private final long[] offsets;
+    private final int[] lengths;
+    // Everything below is guarded by this: the last block read, and a board at the standard
+    // start position that games are replayed on and then taken back
+    private int cachedIndex;
+    private Block cached;
+    private final Chess board;
+    private final int[] moves;
+    private final long[] keys;
+
+    /**
+     * Opens an archive written by a Writer.
+     * @param file The archive file
+     * @throws IOException If the file cannot be read
+     * @throws IllegalArgumentException If the file is not a complete game archive
+     */
+    public GameArchive(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            if(channel.size() < HEADER_BYTES || readFully(header, 0) != HEADER_BYTES ||
+                    header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IllegalArgumentException("Not a game archive: " + file);
+            }
+            games = header.getLong(8);
+            int blocks = header.getInt(16);
+            blockGames = header.getInt(20);
+            long indexOffset = header.getLong(24);
+            ByteBuffer index = ByteBuffer.allocate(blocks * INDEX_ENTRY_BYTES);
+            if(readFully(index, indexOffset) != index.capacity()) {
+                throw new IllegalArgumentException("Truncated game archive: " + file);
+            }
+            offsets = new long[blocks];
+            lengths = new int[blocks];
+            for(int i = 0; i < blocks; i++) {
+                offsets[i] = index.getLong(i * INDEX_ENTRY_BYTES);
+                lengths[i] = index.getInt(i * INDEX_ENTRY_BYTES + 8);
+            }
+        } catch(IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+        cachedIndex = -1;
+        board = new Chess();
+        moves = new int[Chess.MAX_MOVES];
+        keys = new long[Chess.MAX_MOVES];
+    }
+
+    /**
+     * Retrieves the number of games in the archive.
+     * @return the game count
+     */
+    public long size() {
+        return games;
+    }
+
+    /**
+     * Reads one game. Reading games in order is fastest, as each block is read only once.
+     * @param index The game's position in the archive, from 0
+     * @return the game
+     * @throws IOException If the file cannot be read
+     * @throws IllegalArgumentException If there is no such game, or its block is corrupt
+     */
+    public synchronized Game read(long index) throws IOException {
+        if(index < 0 || index >= games) {
+            throw new IllegalArgumentException("No game " + index + " in an archive of " + games);
+        }
+        int blockIndex = (int) (index / blockGames);
+        if(blockIndex != cachedIndex) {
+            ByteBuffer bytes = ByteBuffer.allocate(lengths[blockIndex]);
+            if(readFully(bytes, offsets[blockIndex]) != bytes.capacity()) {
+                throw new IllegalArgumentException("Truncated block " + blockIndex);
+            }
+            bytes.flip();
+            cached = new Block(bytes);
+            cachedIndex = blockIndex;
+        }
+        Block block = cached;
+        int g = (int) (index % blockGames);
+        Chess game = block.starts[g] == null ? board : new Chess(block.starts[g]);
+        int[] played = new int[block.plies[g]];
+        long bit = block.bitOffsets[g];
+        int mask = (1 << block.maxBits) - 1;
+        try {
+            for(int ply = 0; ply < played.length; ply++) {
+                int at = (int) (bit >>> 3);
+                int window = (block.bits[at] & 0xFF) << 16 | (block.bits[at + 1] & 0xFF) << 8 |
+                        (block.bits[at + 2] & 0xFF);
+                int entry = block.table[(window >>> (24 - (int) (bit & 7) - block.maxBits)) & mask];
+                bit += entry & 15;
+                int rank = entry >>> 4;
+                int n = game.generateMoves(moves);
+                if(entry == 0 || rank >= n || bit > block.bitOffsets[g + 1]) {
+                    throw new IllegalArgumentException("Corrupt game " + index);
+                }
+                rankMoves(game, moves, n, keys);
+                Arrays.sort(keys, 0, n);
+                played[ply] = (int) (keys[n - 1 - rank] & 0x7FFF);
+                game.doMove(played[ply]);
+            }
+        } finally {
+            while(game == board && board.lastMove() != 0) {
+                board.undoMove();
+            }
+        }
+        return new Game(block.starts[g], played, block.flags[g] & 3);
+    }
+
+    /**
+     * Closes the file.
+     * @throws IOException If the file cannot be closed
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Packs, reads or times an archive from the command line.
+     * Usage: java GameArchive pack games.txt archive.bin (one game's movetext per line)
+     *        java GameArchive get archive.bin index...
+     *        java GameArchive bench archive.bin
+     * @param args The arguments
+     * @throws IOException If a file cannot be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length >= 3 && args[0].equals("pack")) {
+            long start = System.nanoTime();
+            long games;
+            long plies;
+            // The games are streamed, so the input may be far larger than the heap
+            Path input = Paths.get(args[1]);
+            try(BufferedReader in = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+                    Writer writer = new Writer(Paths.get(args[2]))) {
+                String line;
+                while((line = in.readLine()) != null) {
+                    if(!line.isBlank()) {
+                        try {
+                            writer.addGame(line, PositionIndex.parseResult(line));
+                        } catch(IllegalArgumentException ex) {
+                            System.err.println(ex.getMessage());
+                        }
+                    }
+                }
+                games = writer.size();
+                plies = writer.plies();
+            }
+            // The archive is complete once the writer is closed
+            long bytes = Files.size(Paths.get(args[2]));
+            System.out.printf("Packed %d games, %d plies, in %d bytes (%.2f bits per ply) in %.1fs%n",
+                    games, plies, bytes, bytes * 8.0 / Math.max(1, plies), (System.nanoTime() - start) / 1e9);
+        } else if(args.length >= 3 && args[0].equals("get")) {
+            try(GameArchive archive = new GameArchive(Paths.get(args[1]))) {
+                for(int i = 2; i < args.length; i++) {
+                    System.out.println(archive.read(Long.parseLong(args[i])).toMovetext());
+                }
+            }
+        } else if(args.length >= 2 && args[0].equals("bench")) {
+            try(GameArchive archive = new GameArchive(Paths.get(args[1]))) {
+                long start = System.nanoTime();
+                long plies = 0;
+                for(long i = 0; i < archive.size(); i++) {
+                    plies += archive.read(i).length();
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("Decoded %d games, %d plies in %.2fs (%.0f plies/s)%n", archive.size(),
+                        plies, seconds, plies / seconds);
+            }
+        } else {
+            System.out.println("Usage: java GameArchive pack <games> <archive> | get <archive> <index...> | " +
+                    "bench <archive>");
+        }
+    }
+
+    /**
+     * A private helper method to read from the file until a buffer is full or the file ends.
+     * @param buffer The buffer to fill
+     * @param offset Where to start reading
+     * @return the number of bytes read
+     * @throws IOException If the file cannot be read
+     */
+    private int readFully(ByteBuffer buffer, long offset) throws IOException {
+        int total = 0;
+        while(buffer.hasRemaining()) {
+            int read = channel.read(buffer, offset + total);
+            if(read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * A private helper method to order the legal moves of a position by how likely they are
+     * to be played. Sorting the keys ascending puts the likeliest move last. Ties are broken
+     * by the moves' encodings, as the generator's order depends on the board's history.
+     * @param game The game
+     * @param moves The legal moves
+     * @param n Number of legal moves
+     * @param keys Where to write each move's key: its guess, then the encoded move in the low 15 bits
+     */
+    private static void rankMoves(Chess game, int[] moves, int n, long[] keys) {
+        int last = game.lastMove();
+        int recapture = last == 0 ? -1 : Chess.moveTo(last);
+        for(int i = 0; i < n; i++) {
+            int move = moves[i];
+            int from = Chess.moveFrom(move);
+            int to = Chess.moveTo(move);
+            int piece = game.pieceAt(from) % 6;
+            int victim = game.pieceAt(to);
+            int promotion = (move >>> 12) & 7;
+            int guess = 0;
+            if(victim != Chess.EMPTY) {
+                guess += 64 + 8 * VALUES[victim % 6] - VALUES[piece];
+            } else if(piece == Chess.PAWN && from % 8 != to % 8) {
+                guess += 64 + 8 - 1;
+            }
+            if(to == recapture) {
+                guess += 32;
+            }
+            if(promotion != 0) {
+                guess += promotion == Chess.QUEEN ? 96 : -64;
+            }
+            if(piece == Chess.KING) {
+                guess += Math.abs(from - to) == 2 ? 48 : -8;
+            } else if(piece != Chess.PAWN) {
+                guess += CENTER[to] - CENTER[from];
+            }
+            keys[i] = (long) guess << 15 | move;
+        }
+    }
+
+    /**
+     * A private helper method to find the lengths of a Huffman code no longer than
+     * MAX_CODE_BITS. If the optimal code is too long, the counts are flattened and it is
+     * built again.
+     * @param counts How often each symbol occurs
+     * @return the code length of each symbol, 0 for unused ones
+     */
+    private static int[] codeLengths(long[] counts) {
+        long[] weights = counts.clone();
+        while(true) {
+            int[] lengths = new int[SYMBOLS];
+            int[] parent = new int[2 * SYMBOLS];
+            PriorityQueue<long[]> queue = new PriorityQueue<>((a, b) ->
+                    a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+            for(int s = 0; s < SYMBOLS; s++) {
+                if(weights[s] > 0) {
+                    queue.add(new long[]{weights[s], s});
+                }
+            }
+            if(queue.size() == 1) {
+                lengths[(int) queue.poll()[1]] = 1;
+                return lengths;
+            }
+            int next = SYMBOLS;
+            while(queue.size() > 1) {
+                long[] a = queue.poll();
+                long[] b = queue.poll();
+                parent[(int) a[1]] = next;
+                parent[(int) b[1]] = next;
+                queue.add(new long[]{a[0] + b[0], next++});
+            }
+            int longest = 0;
+            for(int s = 0; s < SYMBOLS; s++) {
+                if(weights[s] > 0) {
+                    for(int node = s; node != next - 1; node = parent[node]) {
+                        lengths[s]++;
+                    }
+                    longest = Math.max(longest, lengths[s]);
+                }
+            }
+            if(longest <= MAX_CODE_BITS) {
+                return lengths;
+            }
+            for(int s = 0; s < SYMBOLS; s++) {
+                weights[s] = weights[s] > 0 ? (weights[s] + 1) / 2 : 0;
+            }
+        }
+    }
+
+    /**
+     * A private helper method to assign canonical codes: shorter codes first, and codes of
+     * one length in symbol order.
+     * @param lengths The code length of each symbol
+     * @return the code of each symbol
+     */
+    private static int[] canonicalCodes(int[] lengths) {
+        int[] codes = new int[SYMBOLS];
+        int code = 0;
+        for(int length = 1; length <= MAX_CODE_BITS; length++) {
+            for(int s = 0; s < SYMBOLS; s++) {
+                if(lengths[s] == length) {
+                    codes[s] = code++;
+                }
+            }
+            code <<= 1;
+        }
+        return codes;
+    }
+
+    /**
+     * A private helper method to write a varint (7 bits per byte, low bits first).
+     * @param out Where to write
+     * @param value The non-negative number
+     */
+    private static void writeVarLong(ByteBuffer out, long value) {
+        while(value >= 0x80) {
+            out.put((byte) (value | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * A private helper method to read a varint (7 bits per byte, low bits first).
+     * @param in Where to read
+     * @return the number
+     */
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for(int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if(b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    // A class to represent a game read from an archive
+    public static class Game {
+        // Start position, or null for the standard one
+        public final Position start;
+        // Result, as a PositionIndex constant (DRAW, WHITE_WINS, BLACK_WINS or UNKNOWN)
+        public final int result;
+        private final int[] moves;
+
+        /**
+         * Constructs a new Game.
+         * @param start Start position, or null for the standard one
+         * @param moves The moves (see Chess.generateMoves); copied
+         * @param result DRAW, WHITE_WINS, BLACK_WINS or UNKNOWN, as in PositionIndex
+         */
+        public Game(Position start, int[] moves, int result) {
+            this.start = start;
+            this.moves = moves.clone();
+            this.result = result;
+        }
+
+        /**
+         * Retrieves the moves of the game.
+         * @return a copy of the moves, encoded as by Chess.generateMoves
+         */
+        public int[] getMoves() {
+            return moves.clone();
+        }
+
+        /**
+         * Retrieves the number of plies in the game.
+         * @return the ply count
+         */
+        public int length() {
+            return moves.length;
+        }
+
+        /**
+         * Plays the game out on a new board.
+         * @return the board, at the game's final position
+         */
+        public Chess replay() {
+            Chess game = start == null ? new Chess() : new Chess(start);
+            for(int move : moves) {
+                game.doMove(move);
+            }
+            return game;
+        }
+
+        /**
+         * Formats the game's moves in Standard Algebraic Notation with move numbers and the
+         * result, as PositionIndex.parseMoves and parseResult read them.
+         * @return the movetext
+         */
+        public String toMovetext() {
+            Chess game = start == null ? new Chess() : new Chess(start);
+            String fen = start == null ? "" : start.toFEN();
+            int number = start == null ? 1 : Integer.parseInt(fen.substring(fen.lastIndexOf(' ') + 1));
+            StringBuilder text = new StringBuilder();
+            for(int move : moves) {
+                if(game.sideToMove() == Chess.WHITE || text.length() == 0) {
+                    text.append(number).append(game.sideToMove() == Chess.WHITE ? ". " : "... ");
+                }
+                number += game.sideToMove() == Chess.BLACK ? 1 : 0;
+                text.append(game.toSAN(move)).append(' ');
+                game.doMove(move);
+            }
+            return text.append(result == PositionIndex.WHITE_WINS ? "1-0" : result == PositionIndex.BLACK_WINS ?
+                    "0-1" : result == PositionIndex.DRAW ? "1/2-1/2" : "*").toString();
+        }
+    }
+
+    // A class to hold one decoded block: its directory and decoding table, and its code
+    private static class Block {
+        private final int[] plies;
+        private final int[] flags;
+        private final Position[] starts;
+        // Where each game's code starts, plus where the last one ends
+        private final long[] bitOffsets;
+        // Symbol << 4 | code length, indexed by the next maxBits bits; 0 for unused codes
+        private final int[] table;
+        private final int maxBits;
+        // The code, followed by two zero bytes so that reads never run past the end
+        private final byte[] bits;
+
+        /**
+         * Constructs a new Block by decoding its header: the code lengths, which are turned
+         * into a lookup table, and the length, offset and start position of each game.
+         * @param in The block, positioned at its start
+         * @throws IllegalArgumentException If the block is corrupt
+         */
+        private Block(ByteBuffer in) {
+            int count = in.getInt();
+            int[] codeLengths = new int[SYMBOLS];
+            int longest = 1;
+            for(int s = 0; s < SYMBOLS; s += 2) {
+                int b = in.get() & 0xFF;
+                codeLengths[s] = b >>> 4;
+                codeLengths[s + 1] = b & 15;
+                longest = Math.max(longest, Math.max(b >>> 4, b & 15));
+            }
+            maxBits = longest;
+            table = new int[1 << maxBits];
+            int[] codes = canonicalCodes(codeLengths);
+            for(int s = 0; s < SYMBOLS; s++) {
+                int length = codeLengths[s];
+                if(length > 0) {
+                    int first = codes[s] << (maxBits - length);
+                    Arrays.fill(table, first, first + (1 << (maxBits - length)), s << 4 | length);
+                }
+            }
+            plies = new int[count];
+            flags = new int[count];
+            starts = new Position[count];
+            bitOffsets = new long[count + 1];
+            for(int g = 0; g < count; g++) {
+                plies[g] = (int) readVarLong(in);
+                bitOffsets[g + 1] = bitOffsets[g] + readVarLong(in);
+                flags[g] = in.get();
+                if((flags[g] & CUSTOM_START) != 0) {
+                    starts[g] = Position.unpack(in);
+                }
+            }
+            bits = new byte[in.remaining() + 2];
+            in.get(bits, 0, in.remaining());
+            if(bitOffsets[count] > (long) (bits.length - 2) * 8) {
+                throw new IllegalArgumentException("Corrupt block");
+            }
+        }
+    }
+
+    // A class to write an archive. Games are kept in memory one block at a time, and the
+    // header is written last, so an archive that was not closed is never mistaken for one.
+    public static class Writer implements Closeable {
+        private final FileChannel channel;
+        private final int blockGames;
+        private final List<long[]> index;
+        private long offset;
+        private long games;
+        private long plies;
+        // The current block: each game's ranks, flags and start position, and rank counts
+        private final List<byte[]> ranks;
+        private final List<Integer> flags;
+        private final List<Position> starts;
+        private final long[] counts;
+        private final Chess board;
+        private final int[] moves;
+        private final long[] keys;
+        private boolean closed;
+
+        /**
+         * Constructs a new Writer with DEFAULT_BLOCK_GAMES games per block.
+         * @param file The archive file to create or replace
+         * @throws IOException If the file cannot be opened
+         */
+        public Writer(Path file) throws IOException {
+            this(file, DEFAULT_BLOCK_GAMES);
+        }
+
+        /**
+         * Constructs a new Writer. Larger blocks compress slightly better; smaller ones make
+         * reading one game cheaper.
+         * @param file The archive file to create or replace
+         * @param blockGames Games per block
+         * @throws IOException If the file cannot be opened
+         * @throws IllegalArgumentException If blockGames is less than 1
+         */
+        public Writer(Path file, int blockGames) throws IOException {
+            if(blockGames < 1) {
+                throw new IllegalArgumentException("Blocks must hold at least one game");
+            }
+            this.blockGames = blockGames;
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            offset = HEADER_BYTES;
+            index = new ArrayList<>();
+            ranks = new ArrayList<>();
+            flags = new ArrayList<>();
+            starts = new ArrayList<>();
+            counts = new long[SYMBOLS];
+            board = new Chess();
+            moves = new int[Chess.MAX_MOVES];
+            keys = new long[Chess.MAX_MOVES];
+        }
+
+        /**
+         * Adds a game from the standard start position.
+         * @param movetext The game's moves in Algebraic Notation, as PositionIndex.parseMoves reads them
+         * @param result DRAW, WHITE_WINS, BLACK_WINS or UNKNOWN, as in PositionIndex
+         * @throws IOException If a block cannot be written
+         * @throws IllegalArgumentException If a move is illegal or the result is invalid;
+         *         nothing of the game is added
+         */
+        public void addGame(String movetext, int result) throws IOException {
+            List<String> names = PositionIndex.parseMoves(movetext);
+            int[] played = new int[names.size()];
+            try {
+                for(int ply = 0; ply < played.length; ply++) {
+                    played[ply] = findMove(names.get(ply));
+                    if(played[ply] != 0) {
+                        board.doMove(played[ply]);
+                        continue;
+                    }
+                    // Not in the exact form toSAN writes, so let makeMove make sense of it
+                    int last = board.lastMove();
+                    try {
+                        board.makeMove(names.get(ply));
+                    } catch(IllegalArgumentException ex) {
+                        throw new IllegalArgumentException("Move " + names.get(ply) + ": " + ex.getMessage());
+                    }
+                    if(board.lastMove() == last) {
+                        throw new IllegalArgumentException(names.get(ply) + " is not a move");
+                    }
+                    played[ply] = board.lastMove();
+                }
+            } finally {
+                while(board.lastMove() != 0) {
+                    board.undoMove();
+                }
+            }
+            addGame(null, played, result);
+        }
+
+        /**
+         * Adds a game.
+         * @param start The start position, or null for the standard one
+         * @param played The encoded moves (see Chess.generateMoves)
+         * @param result DRAW, WHITE_WINS, BLACK_WINS or UNKNOWN, as in PositionIndex
+         * @throws IOException If a block cannot be written
+         * @throws IllegalArgumentException If a move is illegal or the result is invalid;
+         *         nothing of the game is added
+         * @throws IllegalStateException If the Writer is closed
+         */
+        public void addGame(Position start, int[] played, int result) throws IOException {
+            if(closed) {
+                throw new IllegalStateException("Writer is closed");
+            }
+            if(result < PositionIndex.DRAW || result > PositionIndex.UNKNOWN) {
+                throw new IllegalArgumentException("Bad result " + result);
+            }
+            Chess game = start == null ? board : new Chess(start);
+            byte[] gameRanks = new byte[played.length];
+            try {
+                for(int ply = 0; ply < played.length; ply++) {
+                    int n = game.generateMoves(moves);
+                    rankMoves(game, moves, n, keys);
+                    int found = -1;
+                    for(int i = 0; i < n; i++) {
+                        found = moves[i] == played[ply] ? i : found;
+                    }
+                    if(found < 0) {
+                        throw new IllegalArgumentException("Illegal move " + Chess.moveName(played[ply]) +
+                                " at ply " + ply);
+                    }
+                    int rank = 0;
+                    for(int i = 0; i < n; i++) {
+                        rank += keys[i] > keys[found] ? 1 : 0;
+                    }
+                    gameRanks[ply] = (byte) rank;
+                    game.doMove(played[ply]);
+                }
+            } finally {
+                while(game == board && board.lastMove() != 0) {
+                    board.undoMove();
+                }
+            }
+            for(byte rank : gameRanks) {
+                counts[rank & 0xFF]++;
+            }
+            ranks.add(gameRanks);
+            flags.add(result | (start == null ? 0 : CUSTOM_START));
+            starts.add(start);
+            games++;
+            plies += played.length;
+            if(ranks.size() == blockGames) {
+                writeBlock();
+            }
+        }
+
+        /**
+         * Retrieves the number of games added.
+         * @return the game count
+         */
+        public long size() {
+            return games;
+        }
+
+        /**
+         * Retrieves the number of plies added.
+         * @return the ply count
+         */
+        public long plies() {
+            return plies;
+        }
+
+        /**
+         * Writes the last block, the block index and the header, and closes the file.
+         * Does nothing if already closed.
+         * @throws IOException If the file cannot be written
+         */
+        public void close() throws IOException {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if(!ranks.isEmpty()) {
+                    writeBlock();
+                }
+                ByteBuffer out = ByteBuffer.allocate(index.size() * INDEX_ENTRY_BYTES);
+                for(long[] entry : index) {
+                    out.putLong(entry[0]).putInt((int) entry[1]);
+                }
+                out.flip();
+                long indexOffset = offset;
+                write(out, indexOffset);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putInt(VERSION).putLong(games).putInt(index.size())
+                        .putInt(blockGames).putLong(indexOffset).flip();
+                write(header, 0);
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        }
+
+        /**
+         * A private helper method to find a move written exactly as toSAN writes it, which is
+         * much faster than makeMove. Only moves to the square the name ends with are named.
+         * @param name The move in Standard Algebraic Notation
+         * @return the encoded move, or 0 if none matches
+         */
+        private int findMove(String name) {
+            String bare = name.replaceAll("[+#]+$", "");
+            int at = bare.indexOf('=') > 0 ? bare.indexOf('=') - 2 : bare.length() - 2;
+            boolean castles = bare.startsWith("O-O");
+            if(!castles && (at < 0 || bare.charAt(at) < 'a' || bare.charAt(at) > 'h' ||
+                    bare.charAt(at + 1) < '1' || bare.charAt(at + 1) > '8')) {
+                return 0;
+            }
+            int to = castles ? -1 : (bare.charAt(at) - 'a') + 8 * (bare.charAt(at + 1) - '1');
+            int n = board.generateMoves(moves);
+            for(int i = 0; i < n; i++) {
+                if((castles || Chess.moveTo(moves[i]) == to) &&
+                        board.toSAN(moves[i]).replaceAll("[+#]+$", "").equals(bare)) {
+                    return moves[i];
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * A private helper method to code the current block and append it to the file.
+         * @throws IOException If the file cannot be written
+         */
+        private void writeBlock() throws IOException {
+            int[] codeLengths = codeLengths(counts);
+            int[] codes = canonicalCodes(codeLengths);
+            long bitCount = 0;
+            long[] gameBits = new long[ranks.size()];
+            for(int g = 0; g < ranks.size(); g++) {
+                for(byte rank : ranks.get(g)) {
+                    gameBits[g] += codeLengths[rank & 0xFF];
+                }
+                bitCount += gameBits[g];
+            }
+            ByteBuffer out = ByteBuffer.allocate((int) (4 + SYMBOLS / 2 +
+                    ranks.size() * (10 + 10 + 1 + Position.PACKED_BYTES) + (bitCount + 7) / 8));
+            out.putInt(ranks.size());
+            for(int s = 0; s < SYMBOLS; s += 2) {
+                out.put((byte) (codeLengths[s] << 4 | codeLengths[s + 1]));
+            }
+            for(int g = 0; g < ranks.size(); g++) {
+                writeVarLong(out, ranks.get(g).length);
+                writeVarLong(out, gameBits[g]);
+                out.put((byte) (int) flags.get(g));
+                if(starts.get(g) != null) {
+                    starts.get(g).pack(out);
+                }
+            }
+            long accumulator = 0;
+            int pending = 0;
+            for(byte[] gameRanks : ranks) {
+                for(byte rank : gameRanks) {
+                    accumulator = accumulator << codeLengths[rank & 0xFF] | codes[rank & 0xFF];
+                    pending += codeLengths[rank & 0xFF];
+                    while(pending >= 8) {
+                        pending -= 8;
+                        out.put((byte) (accumulator >>> pending));
+                    }
+                }
+            }
+            if(pending > 0) {
+                out.put((byte) (accumulator << (8 - pending)));
+            }
+            out.flip();
+            index.add(new long[]{offset, out.remaining()});
+            int length = out.remaining();
+            write(out, offset);
+            offset += length;
+            ranks.clear();
+            flags.clear();
+            starts.clear();
+            Arrays.fill(counts, 0);
+        }
+
+        /**
+         * A private helper method to write a whole buffer at a position in the file.
+         * @param buffer The bytes to write
+         * @param position Where to write them
+         * @throws IOException If the file cannot be written
+         */
+        private void write(ByteBuffer buffer, long position) throws IOException {
+            while(buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+}
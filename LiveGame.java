@@ -0,0 +1,184 @@
+import java.util.List;
+
+// A class to share a live game between the thread that plays it and any number of threads that
+// watch it, such as observers of a server game. Moves go through the LiveGame, one writer at a
+// time, and each one publishes an immutable View: a version number and a snapshot of the game.
+// Readers take the current View without locking and query it, so they never block the player,
+// nor each other, and never see a half-made move.
+//
+// A View answers queries with a board of its own, rebuilt from the snapshot by the first reader
+// that needs it and then shared. This relies on the Chess queries a View makes (toString,
+// getAllLegalMoves, isGameOver, getNextPlayer, getWinner and getLog) only reading the game.
+public class LiveGame {
+    // Written only by the thread holding the lock
+    private final Chess game;
+    private long version;
+    private volatile View view;
+
+    /**
+     * Constructs a new LiveGame from the standard start position.
+     */
+    public LiveGame() {
+        this(new Chess().snapshot());
+    }
+
+    /**
+     * Constructs a new LiveGame.
+     * @param start The position to start from
+     */
+    public LiveGame(Position start) {
+        game = new Chess(start);
+        view = new View(0, start);
+    }
+
+    /**
+     * Makes a move and publishes the new position.
+     * @param input The move, as Chess.makeMove reads it
+     * @throws IllegalArgumentException If the move cannot be played
+     */
+    public synchronized void makeMove(String input) {
+        game.makeMove(input);
+        publish();
+    }
+
+    /**
+     * Takes back the last move and publishes the new position.
+     * @throws IllegalStateException If no move has been played
+     */
+    public synchronized void undoMove() {
+        if(game.lastMove() == 0) {
+            throw new IllegalStateException("No move to take back");
+        }
+        game.undoMove();
+        publish();
+    }
+
+    /**
+     * Retrieves the game as of the latest move. The View never changes, so a reader can make
+     * several queries on it and get answers about the same position.
+     * @return the current View
+     */
+    public View view() {
+        return view;
+    }
+
+    /**
+     * Formats the current board state.
+     * @return a String representation of the Chess board
+     */
+    public String toString() {
+        return view.toString();
+    }
+
+    /**
+     * A private helper method to publish the position after a change, holding the lock.
+     */
+    private void publish() {
+        view = new View(++version, game.snapshot());
+    }
+
+    // A class to hold one published version of a LiveGame
+    public static class View {
+        private final long version;
+        private final Position position;
+        // Built on first use; readers racing to build it each make one, and any of them will do
+        private volatile Chess board;
+
+        /**
+         * Constructs a new View.
+         * @param version The version
+         * @param position The snapshot of the game
+         */
+        private View(long version, Position position) {
+            this.version = version;
+            this.position = position;
+        }
+
+        /**
+         * Retrieves the version: 0 at the start, then one more for each move or take-back.
+         * @return the version
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Retrieves the position.
+         * @return the snapshot
+         */
+        public Position getPosition() {
+            return position;
+        }
+
+        /**
+         * Copies the game, for a reader that wants to analyse it or play moves on it.
+         * @return an independent game in this View's state
+         */
+        public Chess copy() {
+            return new Chess(position);
+        }
+
+        /**
+         * Lists the legal moves of one color (see Chess.getAllLegalMoves).
+         * @param color The color to retrieve legal moves from (Chess.WHITE or Chess.BLACK)
+         * @return The list of legal moves
+         * @throws IllegalArgumentException If color is neither WHITE nor BLACK
+         */
+        public List<String> getAllLegalMoves(int color) {
+            return board().getAllLegalMoves(color);
+        }
+
+        /**
+         * Checks if the game is over (see Chess.isGameOver).
+         * @return true if the game is over
+         */
+        public boolean isGameOver() {
+            return board().isGameOver();
+        }
+
+        /**
+         * Retrieves which player's turn it is (see Chess.getNextPlayer).
+         * @return 1 for White, 2 for Black, or -1 if the game is over
+         */
+        public int getNextPlayer() {
+            return board().getNextPlayer();
+        }
+
+        /**
+         * Returns the winner of the game (see Chess.getWinner).
+         * @return 1 if White won, 2 if Black won, 0 if there was a draw, or -1 if the game is not over
+         */
+        public int getWinner() {
+            return board().getWinner();
+        }
+
+        /**
+         * Retrieves the log of the moves made (see Chess.getLog).
+         * @return the move log
+         */
+        public String getLog() {
+            return board().getLog();
+        }
+
+        /**
+         * Formats the board state.
+         * @return a String representation of the Chess board
+         */
+        public String toString() {
+            return board().toString();
+        }
+
+        /**
+         * A private helper method to get the board queries are answered with.
+         * @return the board, which must never be changed
+         */
+        private Chess board() {
+            Chess built = board;
+            if(built == null) {
+                built = new Chess(position);
+                board = built;
+            }
+            return built;
+        }
+    }
+}
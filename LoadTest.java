@@ -0,0 +1,423 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// A class to measure how many concurrent games one node can host. Each simulated player runs on
+// its own thread and plays games through the same calls a client makes: makeMove with a move in
+// Algebraic Notation, then isGameOver and getNextPlayer. Moves come from a corpus of recorded
+// games, one movetext per line, or are picked at random from the legal moves. Players wait a
+// think time between moves, drawn from a configurable distribution.
+//
+// Latency is measured per move from the makeMove call to the end of the status calls, so think
+// time is not counted, and recorded in a Metrics.Histogram. Allocation is read from each
+// player's thread, where the JVM supports it, over the same span. Measurements start after a
+// warm-up period, so the JIT has compiled the hot paths by then.
+public class LoadTest {
+    // Longest game a player plays before starting a new one, in plies
+    public static final int MAX_PLIES = 300;
+
+    private final int players;
+    private final List<List<String>> corpus = new ArrayList<>();
+    private ThinkTime thinkTime = ThinkTime.none();
+    private long seed = 1;
+
+    /**
+     * Constructs a new LoadTest whose players pick random legal moves.
+     * @param players Number of simulated players
+     * @throws IllegalArgumentException If players is not positive
+     */
+    public LoadTest(int players) {
+        this(players, new ArrayList<>());
+    }
+
+    /**
+     * Constructs a new LoadTest whose players replay recorded games, each player starting at a
+     * different game and moving on to the next one when a game ends.
+     * @param players Number of simulated players
+     * @param games Movetext of each game, as PositionIndex.parseMoves reads it; if empty,
+     *              players pick random legal moves instead
+     * @throws IllegalArgumentException If players is not positive
+     */
+    public LoadTest(int players, List<String> games) {
+        if(players < 1) {
+            throw new IllegalArgumentException("Need at least one player");
+        }
+        this.players = players;
+        for(String game : games) {
+            List<String> moves = PositionIndex.parseMoves(game);
+            if(!moves.isEmpty()) {
+                corpus.add(moves);
+            }
+        }
+    }
+
+    /**
+     * Sets how long players wait before each move.
+     * @param thinkTime The distribution of waits
+     */
+    public void setThinkTime(ThinkTime thinkTime) {
+        this.thinkTime = thinkTime;
+    }
+
+    /**
+     * Sets the seed of the random moves and think times, so runs can be repeated.
+     * @param seed The seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Runs the test, blocking until it finishes.
+     * @param warmupMillis Time to play before measuring
+     * @param millis Time to measure for
+     * @return the measurements
+     * @throws IllegalArgumentException If a time is negative
+     * @throws InterruptedException If the calling thread is interrupted while waiting
+     */
+    public Result run(long warmupMillis, long millis) throws InterruptedException {
+        if(warmupMillis < 0 || millis < 0) {
+            throw new IllegalArgumentException("Times cannot be negative");
+        }
+        Result result = new Result(players);
+        AtomicInteger nextGame = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(players);
+        SplittableRandom seeds = new SplittableRandom(seed);
+        List<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < players; i++) {
+            SplittableRandom random = seeds.split();
+            Thread thread = new Thread(() -> {
+                try {
+                    play(result, nextGame, random);
+                } finally {
+                    done.countDown();
+                }
+            }, "player-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        for(Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            Thread.sleep(warmupMillis);
+            long start = System.nanoTime();
+            result.measuring = true;
+            Thread.sleep(millis);
+            result.measuring = false;
+            result.nanos = System.nanoTime() - start;
+        } finally {
+            result.stopped = true;
+            for(Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+        done.await();
+        return result;
+    }
+
+    /**
+     * A private helper method to run one player until the test stops.
+     * @param result Where to record measurements
+     * @param nextGame Index of the next corpus game to replay
+     * @param random The player's random numbers
+     */
+    private void play(Result result, AtomicInteger nextGame, SplittableRandom random) {
+        com.sun.management.ThreadMXBean allocations = allocationBean();
+        while(!result.stopped) {
+            Chess game = new Chess();
+            List<String> recorded = corpus.isEmpty() ? null
+                    : corpus.get(Math.floorMod(nextGame.getAndIncrement(), corpus.size()));
+            int[] legal = game.moveBuffer();
+            int plies = recorded == null ? MAX_PLIES : Math.min(MAX_PLIES, recorded.size());
+            boolean over = false;
+            for(int ply = 0; ply < plies && !over && !result.stopped; ply++) {
+                String move;
+                if(recorded != null) {
+                    move = recorded.get(ply);
+                } else {
+                    int n = game.generateMoves(legal);
+                    if(n == 0) {
+                        break;
+                    }
+                    move = game.toSAN(legal[random.nextInt(n)]);
+                }
+                try {
+                    Thread.sleep(thinkTime.millis(random));
+                } catch(InterruptedException ex) {
+                    return;
+                }
+                boolean measuring = result.measuring;
+                long bytes = measuring && allocations != null ? allocations.getCurrentThreadAllocatedBytes() : 0;
+                long start = System.nanoTime();
+                try {
+                    game.makeMove(move);
+                    over = game.isGameOver() || game.getNextPlayer() < 0;
+                } catch(IllegalArgumentException ex) {
+                    // A corpus move that does not parse: count it and start another game
+                    if(measuring) {
+                        result.errors.increment();
+                    }
+                    break;
+                }
+                if(measuring) {
+                    result.latency.record(System.nanoTime() - start);
+                    if(allocations != null) {
+                        result.allocated.add(allocations.getCurrentThreadAllocatedBytes() - bytes);
+                    }
+                }
+            }
+            if(result.measuring) {
+                result.games.increment();
+            }
+        }
+    }
+
+    /**
+     * A private helper method to find the JVM's per-thread allocation counter.
+     * @return the bean, or null if the JVM does not count allocations
+     */
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        if(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                return bean;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs a load test from the command line. The results are printed to standard output as one
+     * line of JSON, for trend tracking, and as a summary to standard error.
+     * Usage: java LoadTest players seconds [think time] [corpus file]
+     * where the think time is 0, const:MS, uniform:MIN:MAX or exp:MEAN, in milliseconds.
+     * @param args The arguments
+     * @throws IOException If the corpus cannot be read
+     * @throws InterruptedException If interrupted while waiting for the test
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int players = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        List<String> games = new ArrayList<>();
+        if(args.length > 3) {
+            for(String line : Files.readAllLines(Paths.get(args[3]))) {
+                if(!line.isBlank() && !line.startsWith("#")) {
+                    games.add(line);
+                }
+            }
+        }
+        LoadTest test = new LoadTest(players, games);
+        if(args.length > 2) {
+            test.setThinkTime(ThinkTime.parse(args[2]));
+        }
+        Result result = test.run(Math.min(5000, seconds * 200L), seconds * 1000L);
+        System.out.println(result.toJSON());
+        System.err.println(result);
+    }
+
+    // A class to describe how long players think before a move: a fixed time, a time drawn
+    // uniformly from a range, or an exponentially distributed time, as when moves arrive
+    // independently of each other
+    public static class ThinkTime {
+        private final String name;
+        private final double low;
+        private final double high;
+
+        /**
+         * Constructs a new ThinkTime.
+         * @param name Kind of distribution: none, const, uniform or exp
+         * @param low Shortest time in milliseconds, or the mean of exp
+         * @param high Longest time in milliseconds, or the mean of exp
+         */
+        private ThinkTime(String name, double low, double high) {
+            this.name = name;
+            this.low = low;
+            this.high = high;
+        }
+
+        /**
+         * Retrieves a ThinkTime of no wait at all, which gives the most load per player.
+         * @return the ThinkTime
+         */
+        public static ThinkTime none() {
+            return new ThinkTime("none", 0, 0);
+        }
+
+        /**
+         * Retrieves a fixed ThinkTime.
+         * @param millis The wait in milliseconds
+         * @return the ThinkTime
+         * @throws IllegalArgumentException If millis is negative
+         */
+        public static ThinkTime constant(double millis) {
+            if(millis < 0) {
+                throw new IllegalArgumentException("Think time cannot be negative");
+            }
+            return new ThinkTime("const", millis, millis);
+        }
+
+        /**
+         * Retrieves a ThinkTime drawn uniformly from a range.
+         * @param min The shortest wait in milliseconds
+         * @param max The longest wait in milliseconds
+         * @return the ThinkTime
+         * @throws IllegalArgumentException If min is negative or greater than max
+         */
+        public static ThinkTime uniform(double min, double max) {
+            if(min < 0 || min > max) {
+                throw new IllegalArgumentException("Invalid think time range");
+            }
+            return new ThinkTime("uniform", min, max);
+        }
+
+        /**
+         * Retrieves an exponentially distributed ThinkTime.
+         * @param mean The mean wait in milliseconds
+         * @return the ThinkTime
+         * @throws IllegalArgumentException If mean is negative
+         */
+        public static ThinkTime exponential(double mean) {
+            if(mean < 0) {
+                throw new IllegalArgumentException("Think time cannot be negative");
+            }
+            return new ThinkTime("exp", mean, mean);
+        }
+
+        /**
+         * Parses a ThinkTime written as 0, const:MS, uniform:MIN:MAX or exp:MEAN.
+         * @param text The text to parse
+         * @return the ThinkTime
+         * @throws IllegalArgumentException If text is not in one of those forms
+         */
+        public static ThinkTime parse(String text) {
+            String[] parts = text.split(":");
+            try {
+                if(parts.length == 1 && Double.parseDouble(parts[0]) == 0) {
+                    return none();
+                } else if(parts.length == 2 && parts[0].equals("const")) {
+                    return constant(Double.parseDouble(parts[1]));
+                } else if(parts.length == 3 && parts[0].equals("uniform")) {
+                    return uniform(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+                } else if(parts.length == 2 && parts[0].equals("exp")) {
+                    return exponential(Double.parseDouble(parts[1]));
+                }
+            } catch(NumberFormatException ex) {
+                throw new IllegalArgumentException("Bad think time: " + text, ex);
+            }
+            throw new IllegalArgumentException("Bad think time: " + text);
+        }
+
+        /**
+         * Draws a wait.
+         * @param random Where to draw it from
+         * @return the wait in whole milliseconds
+         */
+        public long millis(SplittableRandom random) {
+            double millis;
+            if(name.equals("uniform")) {
+                millis = low + random.nextDouble() * (high - low);
+            } else if(name.equals("exp")) {
+                millis = -low * Math.log(1 - random.nextDouble());
+            } else {
+                millis = low;
+            }
+            return Math.round(millis);
+        }
+
+        /**
+         * Formats the ThinkTime as parse reads it.
+         * @return a String representation of the ThinkTime
+         */
+        public String toString() {
+            if(name.equals("none")) {
+                return "0";
+            }
+            return name.equals("uniform") ? name + ":" + low + ":" + high : name + ":" + low;
+        }
+    }
+
+    // A class to hold the measurements of a run
+    public static class Result {
+        private final int players;
+        private final Metrics.Histogram latency = new Metrics.Histogram();
+        private final LongAdder allocated = new LongAdder();
+        private final LongAdder games = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private volatile boolean measuring;
+        private volatile boolean stopped;
+        private long nanos;
+
+        /**
+         * Constructs a new Result, which measures nothing until the warm-up is over.
+         * @param players Number of simulated players
+         */
+        private Result(int players) {
+            this.players = players;
+        }
+
+        /**
+         * Retrieves the number of moves measured.
+         * @return the count
+         */
+        public long moves() {
+            return latency.count();
+        }
+
+        /**
+         * Retrieves the number of moves played per second while measuring.
+         * @return the throughput
+         */
+        public double movesPerSecond() {
+            return nanos == 0 ? 0 : moves() * 1e9 / nanos;
+        }
+
+        /**
+         * Estimates a quantile of the move latency.
+         * @param q The quantile, from 0 to 1
+         * @return the latency in nanoseconds
+         */
+        public long latencyNanos(double q) {
+            return latency.quantile(q);
+        }
+
+        /**
+         * Retrieves the bytes allocated per move.
+         * @return the mean, or 0 if the JVM does not count allocations
+         */
+        public double bytesPerMove() {
+            return moves() == 0 ? 0 : (double) allocated.sum() / moves();
+        }
+
+        /**
+         * Formats the results as one line of JSON.
+         * @return the JSON object
+         */
+        public String toJSON() {
+            return String.format(Locale.ROOT, "{\"players\":%d,\"seconds\":%.3f,\"moves\":%d,\"games\":%d," +
+                    "\"errors\":%d,\"movesPerSecond\":%.1f,\"p50Nanos\":%d,\"p99Nanos\":%d,\"p999Nanos\":%d," +
+                    "\"bytesPerMove\":%.1f}", players, nanos / 1e9, moves(), games.sum(), errors.sum(),
+                    movesPerSecond(), latencyNanos(0.5), latencyNanos(0.99), latencyNanos(0.999), bytesPerMove());
+        }
+
+        /**
+         * Formats the results.
+         * @return a String representation of the results
+         */
+        public String toString() {
+            return String.format(Locale.ROOT, "%d players: %d moves in %.1f s (%.1f per second), %d games, " +
+                    "%d errors%nlatency p50 %.1f us, p99 %.1f us, p99.9 %.1f us; %.0f bytes allocated per move",
+                    players, moves(), nanos / 1e9, movesPerSecond(), games.sum(), errors.sum(),
+                    latencyNanos(0.5) / 1e3, latencyNanos(0.99) / 1e3, latencyNanos(0.999) / 1e3, bytesPerMove());
+        }
+    }
+}
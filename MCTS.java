@@ -0,0 +1,363 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A class to choose moves in any SearchableGame by Monte Carlo Tree Search: UCT selection,
+// random playouts and a tree shared by all worker threads. Threads entering a node add a
+// virtual loss to it, steering the others towards different lines until they back up their
+// result. The subtree of the position reached is kept for the next search.
+public class MCTS {
+    // Default UCT exploration constant, sqrt(2) for rewards between 0 and 1
+    public static final double DEFAULT_EXPLORATION = Math.sqrt(2);
+    // Default longest playout before it is scored as a draw, in plies
+    public static final int DEFAULT_PLAYOUT_PLIES = 200;
+    // How deep below the old root to look for the new root when reusing the tree
+    private static final int REUSE_DEPTH = 4;
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private final int threads;
+    private final double exploration;
+    private final int playoutPlies;
+    private final AtomicLong playouts;
+    private volatile Node root;
+    private volatile boolean stopped;
+
+    /**
+     * Constructs a new MCTS with the default exploration constant and playout length.
+     * @param threads Number of worker threads
+     */
+    public MCTS(int threads) {
+        this(threads, DEFAULT_EXPLORATION, DEFAULT_PLAYOUT_PLIES);
+    }
+
+    /**
+     * Constructs a new MCTS.
+     * @param threads Number of worker threads
+     * @param exploration UCT exploration constant
+     * @param playoutPlies Longest playout before it is scored as a draw
+     * @throws IllegalArgumentException If threads or playoutPlies is not positive
+     */
+    public MCTS(int threads, double exploration, int playoutPlies) {
+        if(threads < 1 || playoutPlies < 1) {
+            throw new IllegalArgumentException("Threads and playout length must be positive");
+        }
+        this.threads = threads;
+        this.exploration = exploration;
+        this.playoutPlies = playoutPlies;
+        playouts = new AtomicLong();
+    }
+
+    /**
+     * Searches the current position of a game until a limit is reached.
+     * The game itself is not modified; every thread works on its own copy.
+     * @param game The game to search
+     * @param maxPlayouts Playout budget, or 0 for none
+     * @param maxMillis Time budget in milliseconds, or 0 for none
+     * @return the most visited move, or 0 if the game is over
+     * @throws IllegalArgumentException If neither limit is given
+     */
+    public int search(SearchableGame game, long maxPlayouts, long maxMillis) {
+        if(maxPlayouts <= 0 && maxMillis <= 0) {
+            throw new IllegalArgumentException("A playout or time limit is required");
+        }
+        root = reuse(game.hash());
+        if(expand(root, game, new int[game.maxMoves()]).length == 0) {
+            return 0;
+        }
+        playouts.set(0);
+        stopped = false;
+        long deadline = maxMillis > 0 ? System.nanoTime() + maxMillis * 1_000_000 : Long.MAX_VALUE;
+        long budget = maxPlayouts > 0 ? maxPlayouts : Long.MAX_VALUE;
+        List<Thread> workers = new ArrayList<>();
+        for(int i = 0; i < threads; i++) {
+            SearchableGame copy = game.copy();
+            long seed = System.nanoTime() ^ (i + 1) * 0x9E3779B97F4A7C15L;
+            Thread worker = new Thread(() -> work(copy, seed, budget, deadline), "mcts-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        try {
+            for(Thread worker : workers) {
+                worker.join();
+            }
+        } catch(InterruptedException ex) {
+            stopped = true;
+            Thread.currentThread().interrupt();
+        }
+        Node best = bestChild(root);
+        return best == null ? 0 : best.move;
+    }
+
+    /**
+     * Asks a running search to stop as soon as possible. Safe to call from any thread.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Discards the search tree.
+     */
+    public void clear() {
+        root = null;
+    }
+
+    /**
+     * Retrieves the number of playouts run by the last search.
+     * @return the playout count
+     */
+    public long getPlayouts() {
+        return playouts.get();
+    }
+
+    /**
+     * Retrieves the visits of the root, including those inherited from earlier searches.
+     * @return the visit count
+     */
+    public int getRootVisits() {
+        Node current = root;
+        return current == null ? 0 : current.visits.get();
+    }
+
+    /**
+     * Retrieves the expected score of the move the last search chose.
+     * @return the fraction of points its playouts earned for the player to move, from 0 to 1
+     */
+    public double getScore() {
+        Node best = root == null ? null : bestChild(root);
+        return best == null || best.visits.get() == 0 ? 0.5
+                : best.score.get() / (2.0 * best.visits.get());
+    }
+
+    /**
+     * A private helper method to run iterations on one thread until a limit is reached.
+     * @param game This thread's copy of the game, at the root position
+     * @param seed Seed of this thread's random number generator
+     * @param budget Playouts to run over all threads
+     * @param deadline System.nanoTime() at which to stop
+     */
+    private void work(SearchableGame game, long seed, long budget, long deadline) {
+        int[] buffer = new int[game.maxMoves()];
+        Node[] path = new Node[playoutPlies + 1];
+        long random = seed == 0 ? 1 : seed;
+        while(!stopped) {
+            long count = playouts.incrementAndGet();
+            if(count > budget || ((count & 63) == 0 && System.nanoTime() > deadline)) {
+                playouts.decrementAndGet();
+                stopped = true;
+                break;
+            }
+            random = iterate(game, buffer, path, random);
+        }
+    }
+
+    /**
+     * A private helper method to run one iteration: select a leaf, expand it, play out a random
+     * game from it and back the result up the path. The game is returned to the root position.
+     * @param game The game, at the root position
+     * @param buffer Move buffer for the playout
+     * @param path Nodes visited during selection
+     * @param random State of the random number generator
+     * @return the new state of the random number generator
+     */
+    private long iterate(SearchableGame game, int[] buffer, Node[] path, long random) {
+        Node node = root;
+        int length = 0;
+        path[length++] = node;
+        node.virtual.incrementAndGet();
+        // Selection and expansion
+        while(true) {
+            Node[] children = node.children;
+            if(children == null) {
+                if(node.visits.get() == 0 && node != root) {
+                    break;
+                }
+                children = expand(node, game, buffer);
+            }
+            if(children.length == 0 || length == path.length) {
+                break;
+            }
+            node = select(node, children);
+            game.doMove(node.move);
+            if(node.hash == 0) {
+                node.hash = game.hash();
+            }
+            path[length++] = node;
+            node.virtual.incrementAndGet();
+        }
+        // Simulation
+        int result = node.result;
+        int played = 0;
+        if(result < 0) {
+            for(; played + length <= playoutPlies; played++) {
+                int n = game.generateMoves(buffer);
+                result = game.result(n);
+                if(result >= 0) {
+                    break;
+                }
+                random ^= random << 13;
+                random ^= random >>> 7;
+                random ^= random << 17;
+                game.doMove(buffer[(int) ((random >>> 1) % n)]);
+            }
+            result = Math.max(result, 0);
+        }
+        for(int i = 0; i < played + length - 1; i++) {
+            game.undoMove();
+        }
+        // Backpropagation, in half points for the player who moved into each node
+        for(int i = 0; i < length; i++) {
+            Node visited = path[i];
+            visited.score.addAndGet(result == 0 ? 1 : result == visited.mover ? 2 : 0);
+            visited.visits.incrementAndGet();
+            visited.virtual.decrementAndGet();
+        }
+        return random;
+    }
+
+    /**
+     * A private helper method to pick the child with the highest UCT value, counting
+     * virtual losses as visits that scored nothing.
+     * @param node The parent
+     * @param children Its children
+     * @return the child to descend into
+     */
+    private Node select(Node node, Node[] children) {
+        double logParent = Math.log(Math.max(1, node.visits.get() + node.virtual.get()));
+        Node best = null;
+        double bestValue = Double.NEGATIVE_INFINITY;
+        for(Node child : children) {
+            int n = child.visits.get() + child.virtual.get();
+            if(n == 0) {
+                return child;
+            }
+            double value = child.score.get() / (2.0 * n) + exploration * Math.sqrt(logParent / n);
+            if(value > bestValue) {
+                bestValue = value;
+                best = child;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * A private helper method to create the children of a node, once.
+     * @param node The node
+     * @param game The game, at the node's position
+     * @param buffer Move buffer
+     * @return the children; empty if the game is over
+     */
+    private Node[] expand(Node node, SearchableGame game, int[] buffer) {
+        synchronized(node) {
+            if(node.children == null) {
+                int n = game.generateMoves(buffer);
+                // Draw rules (like a single repetition) end lines inside the tree,
+                // but the game at the root goes on as long as there are moves
+                node.result = n > 0 && node == root ? -1 : game.result(n);
+                Node[] children = node.result >= 0 ? NO_CHILDREN : new Node[n];
+                int mover = game.playerToMove();
+                for(int i = 0; i < children.length; i++) {
+                    children[i] = new Node(buffer[i], mover);
+                }
+                node.children = children;
+            }
+            return node.children;
+        }
+    }
+
+    /**
+     * A private helper method to find the most visited child of a node.
+     * @param node The node
+     * @return the child, or null if it has none
+     */
+    private static Node bestChild(Node node) {
+        Node[] children = node.children;
+        Node best = null;
+        if(children != null) {
+            for(Node child : children) {
+                if(best == null || child.visits.get() > best.visits.get()) {
+                    best = child;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * A private helper method to find the subtree of a position in the previous tree.
+     * @param hash The new root position's hash
+     * @return that subtree, or a fresh root if it was not searched
+     */
+    private Node reuse(long hash) {
+        Node found = root == null ? null : find(root, hash, REUSE_DEPTH);
+        // A node that ended its line inside the tree (a repetition, say) has no children,
+        // but as the root it must be expanded again under the root rule of expand
+        if(found == null || found.result >= 0) {
+            found = new Node(0, 0);
+            found.hash = hash;
+        }
+        return found;
+    }
+
+    /**
+     * A private helper method to search a tree for a position, breadth first.
+     * @param node The tree
+     * @param hash The position's hash
+     * @param depth How many plies deep to look
+     * @return the node of the position, or null if not found
+     */
+    private static Node find(Node node, long hash, int depth) {
+        List<Node> level = new ArrayList<>();
+        level.add(node);
+        for(int d = 0; d <= depth && !level.isEmpty(); d++) {
+            List<Node> next = new ArrayList<>();
+            for(Node candidate : level) {
+                if(candidate.hash == hash) {
+                    return candidate;
+                }
+                if(candidate.children != null) {
+                    for(Node child : candidate.children) {
+                        if(child.hash != 0) {
+                            next.add(child);
+                        }
+                    }
+                }
+            }
+            level = next;
+        }
+        return null;
+    }
+
+    // A class to represent a position in the search tree, reached by one move from its parent
+    private static class Node {
+        private final int move;
+        // Player who played the move into this node
+        private final int mover;
+        // Completed visits, and the half points they earned for the mover
+        private final AtomicInteger visits;
+        private final AtomicLong score;
+        // Threads currently below this node
+        private final AtomicInteger virtual;
+        // Set on the first visit
+        private volatile long hash;
+        // Set by expand: null until then, empty if the game is over here
+        private volatile Node[] children;
+        private volatile int result;
+
+        /**
+         * Constructs a new unvisited, unexpanded Node.
+         * @param move The move into the node, or 0 for a root
+         * @param mover The player who played it
+         */
+        private Node(int move, int mover) {
+            this.move = move;
+            this.mover = mover;
+            visits = new AtomicInteger();
+            score = new AtomicLong();
+            virtual = new AtomicInteger();
+            result = -1;
+        }
+    }
+}
@@ -0,0 +1,397 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+// A class to find forced mates with depth-first proof-number search (df-pn). Every node holds a
+// proof number and a disproof number: roughly, how many more leaves must be solved to show that
+// the player to move wins or loses. The search always expands the most promising node, which
+// finds narrow forced lines such as mates far faster than alpha-beta.
+//
+// A node is a position plus the number of moves the attacker has left. The attacker wins by
+// mating within those moves; the defender wins by surviving them, or by stalemate. Mates are
+// looked for within 1, 2, ... moves in turn, so the first one found is the shortest. Results are
+// kept in a fixed-size transposition table (16 bytes an entry), which bounds the memory used.
+//
+// Repetitions and the fifty-move rule are ignored. With checksOnly, the attacker only considers
+// checking moves, which is much faster; a mate that needs a quiet move is then missed, so
+// NO_MATE only means that there is no mate by checks alone.
+public class MateSolver {
+    public static final int MATE = 1;
+    public static final int NO_MATE = 0;
+    public static final int UNKNOWN = -1;
+    // Proof and disproof numbers saturate here
+    private static final int INF = 100_000_000;
+    // Longest mate looked for, in moves
+    public static final int MAX_MOVES = 32;
+    // Mixed into the hash of a position for each number of moves left, first with the attacker
+    // to move and then with the defender to move: the same position is a different node for each
+    private static final long[] NODE_KEYS = new long[2 * (MAX_MOVES + 1)];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x4D415445L);
+        for(int i = 0; i < NODE_KEYS.length; i++) {
+            NODE_KEYS[i] = random.nextLong();
+        }
+    }
+
+    // Transposition table: key, then the proof and disproof numbers for the player to move
+    private final long[] keys;
+    private final int[] proofs;
+    private final int[] disproofs;
+    private final int mask;
+    private boolean checksOnly;
+    private long maxNodes;
+    private long nodes;
+    private boolean aborted;
+
+    /**
+     * Constructs a new MateSolver with a 16 MB transposition table.
+     */
+    public MateSolver() {
+        this(16);
+    }
+
+    /**
+     * Constructs a new MateSolver.
+     * @param megabytes Size of the transposition table, rounded down to a power of two entries
+     * @throws IllegalArgumentException If megabytes is less than 1
+     */
+    public MateSolver(int megabytes) {
+        if(megabytes < 1) {
+            throw new IllegalArgumentException("The table needs at least 1 MB");
+        }
+        int entries = Integer.highestOneBit((int) Math.min(1 << 30, (long) megabytes << 20 >> 4));
+        keys = new long[entries];
+        proofs = new int[entries];
+        disproofs = new int[entries];
+        mask = entries - 1;
+    }
+
+    /**
+     * Sets whether the attacker only considers checking moves.
+     * @param checksOnly true to consider checks only
+     */
+    public void setChecksOnly(boolean checksOnly) {
+        this.checksOnly = checksOnly;
+    }
+
+    /**
+     * Sets how many nodes a solve may visit before giving up with UNKNOWN.
+     * @param maxNodes The node budget, or 0 for no limit
+     */
+    public void setMaxNodes(long maxNodes) {
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * Forgets everything in the transposition table.
+     */
+    public void clear() {
+        Arrays.fill(keys, 0);
+    }
+
+    /**
+     * Looks for the shortest forced mate by the player to move.
+     * @param game The game; it is left as it was
+     * @param maxMoves Longest mate to look for, in moves of the attacker
+     * @return the result
+     * @throws IllegalArgumentException If maxMoves is not between 1 and MAX_MOVES
+     */
+    public Result solve(Chess game, int maxMoves) {
+        if(maxMoves < 1 || maxMoves > MAX_MOVES) {
+            throw new IllegalArgumentException("Mates of 1 to " + MAX_MOVES + " moves can be solved");
+        }
+        long start = System.nanoTime();
+        nodes = 0;
+        aborted = false;
+        for(int n = 1; n <= maxMoves; n++) {
+            if(prove(game, n, true)) {
+                List<Integer> line = new ArrayList<>();
+                extract(game, n, line);
+                return new Result(aborted ? UNKNOWN : MATE, n, line, nodes, System.nanoTime() - start);
+            }
+            if(aborted) {
+                break;
+            }
+        }
+        return new Result(aborted ? UNKNOWN : NO_MATE, 0, new ArrayList<>(), nodes, System.nanoTime() - start);
+    }
+
+    /**
+     * Solves mate puzzles from the command line.
+     * Usage: java MateSolver moves [checks] FEN...
+     * @param args The arguments
+     */
+    public static void main(String[] args) {
+        if(args.length < 2) {
+            System.out.println("Usage: java MateSolver <moves> [checks] <FEN>...");
+            return;
+        }
+        int moves = Integer.parseInt(args[0]);
+        boolean checks = args[1].equals("checks");
+        MateSolver solver = new MateSolver();
+        solver.setChecksOnly(checks);
+        for(int i = checks ? 2 : 1; i < args.length; i++) {
+            Chess game = new Chess(args[i]);
+            Result result = solver.solve(game, moves);
+            StringBuilder line = new StringBuilder();
+            for(int move : result.getLine()) {
+                line.append(game.toSAN(move)).append(' ');
+                game.doMove(move);
+            }
+            System.out.printf("%s: %s %s(%d nodes, %.1f ms)%n", args[i], result, line, result.getNodes(),
+                    result.getElapsedNanos() / 1e6);
+        }
+    }
+
+    /**
+     * A private helper method to solve one node completely.
+     * @param game The game at the node
+     * @param remaining Moves the attacker has left
+     * @param attacker Whether the attacker is to move
+     * @return true if the attacker mates within the moves left
+     */
+    private boolean prove(Chess game, int remaining, boolean attacker) {
+        mid(game, remaining, attacker, INF, INF);
+        int slot = slot(key(game, remaining, attacker));
+        // A lost entry, or an aborted search, proves nothing
+        if(slot < 0) {
+            return false;
+        }
+        return attacker ? proofs[slot] == 0 : disproofs[slot] == 0;
+    }
+
+    /**
+     * A private helper method for the df-pn search of one node, which runs until its proof
+     * number reaches thProof or its disproof number reaches thDisproof. Numbers are from
+     * the point of view of the player to move.
+     * @param game The game at the node
+     * @param remaining Moves the attacker has left
+     * @param attacker Whether the attacker is to move
+     * @param thProof Proof number threshold
+     * @param thDisproof Disproof number threshold
+     */
+    private void mid(Chess game, int remaining, boolean attacker, int thProof, int thDisproof) {
+        nodes++;
+        if(maxNodes > 0 && nodes > maxNodes) {
+            aborted = true;
+        }
+        long key = key(game, remaining, attacker);
+        int[] moves = game.moveBuffer();
+        int n = game.generateMoves(moves);
+        if(attacker && (checksOnly || remaining == 1)) {
+            // A mate in one is always a check
+            int kept = 0;
+            for(int i = 0; i < n; i++) {
+                game.doMove(moves[i]);
+                if(game.inCheck()) {
+                    moves[kept++] = moves[i];
+                }
+                game.undoMove();
+            }
+            n = kept;
+        }
+        if(n == 0) {
+            // Mated or stalemated: only a mated defender loses
+            boolean lost = attacker || game.inCheck();
+            store(key, lost ? INF : 0, lost ? 0 : INF);
+            return;
+        }
+        if(!attacker && remaining == 0) {
+            store(key, 0, INF);
+            return;
+        }
+        int childRemaining = attacker ? remaining - 1 : remaining;
+        long[] childKeys = new long[n];
+        for(int i = 0; i < n; i++) {
+            game.doMove(moves[i]);
+            childKeys[i] = key(game, childRemaining, !attacker);
+            game.undoMove();
+        }
+        int[] children = Arrays.copyOf(moves, n);
+        while(true) {
+            // The mover wins if any child is lost for its mover, and loses if all are won
+            int proof = INF;
+            int disproof = 0;
+            int second = INF;
+            int best = -1;
+            int bestProof = 0;
+            for(int i = 0; i < n; i++) {
+                int slot = slot(childKeys[i]);
+                int childProof = slot < 0 ? 1 : proofs[slot];
+                int childDisproof = slot < 0 ? 1 : disproofs[slot];
+                disproof = Math.min(INF, disproof + childProof);
+                if(childDisproof < proof) {
+                    second = proof;
+                    proof = childDisproof;
+                    best = i;
+                    bestProof = childProof;
+                } else if(childDisproof < second) {
+                    second = childDisproof;
+                }
+            }
+            store(key, proof, disproof);
+            if(proof >= thProof || disproof >= thDisproof || aborted) {
+                return;
+            }
+            int childThProof = thDisproof >= INF ? INF : Math.min(INF, thDisproof - disproof + bestProof);
+            int childThDisproof = Math.min(thProof, second >= INF ? INF : second + 1);
+            game.doMove(children[best]);
+            mid(game, childRemaining, !attacker, childThProof, childThDisproof);
+            game.undoMove();
+        }
+    }
+
+    /**
+     * A private helper method to write the shortest mating line, with the defender making
+     * the mate take as long as possible.
+     * @param game The game, at a node the attacker is to move in
+     * @param remaining The length of the shortest mate from here, in moves
+     * @param line Where to add the moves
+     */
+    private void extract(Chess game, int remaining, List<Integer> line) {
+        int[] moves = game.moveBuffer();
+        int n = game.generateMoves(moves);
+        int[] candidates = Arrays.copyOf(moves, n);
+        for(int move : candidates) {
+            game.doMove(move);
+            if((!checksOnly || game.inCheck()) && prove(game, remaining - 1, false)) {
+                line.add(move);
+                int[] replies = game.moveBuffer();
+                int count = game.generateMoves(replies);
+                int[] defences = Arrays.copyOf(replies, count);
+                int longest = 0;
+                int best = 0;
+                for(int reply : defences) {
+                    game.doMove(reply);
+                    int length = 1;
+                    while(length < remaining - 1 && !prove(game, length, true)) {
+                        length++;
+                    }
+                    game.undoMove();
+                    if(length > longest) {
+                        longest = length;
+                        best = reply;
+                    }
+                }
+                if(best != 0) {
+                    line.add(best);
+                    game.doMove(best);
+                    extract(game, longest, line);
+                    game.undoMove();
+                }
+                game.undoMove();
+                return;
+            }
+            game.undoMove();
+        }
+    }
+
+    /**
+     * A private helper method to compute a node's transposition table key.
+     * @param game The game at the node
+     * @param remaining Moves the attacker has left
+     * @param attacker Whether the attacker is to move
+     * @return the key
+     */
+    private static long key(Chess game, int remaining, boolean attacker) {
+        return game.hash() ^ NODE_KEYS[attacker ? remaining : MAX_MOVES + 1 + remaining];
+    }
+
+    /**
+     * A private helper method to find a position's transposition table entry.
+     * @param key The position's key
+     * @return the entry's slot, or -1 if it is not in the table
+     */
+    private int slot(long key) {
+        int slot = (int) key & mask;
+        return keys[slot] == key ? slot : -1;
+    }
+
+    /**
+     * A private helper method to store a node's numbers, replacing whatever shared its slot.
+     * @param key The position's key
+     * @param proof Proof number
+     * @param disproof Disproof number
+     */
+    private void store(long key, int proof, int disproof) {
+        int slot = (int) key & mask;
+        keys[slot] = key;
+        proofs[slot] = proof;
+        disproofs[slot] = disproof;
+    }
+
+    // A class to hold the outcome of a solve
+    public static class Result {
+        private final int status;
+        private final int moves;
+        private final int[] line;
+        private final long nodes;
+        private final long elapsedNanos;
+
+        /**
+         * Constructs a new Result.
+         * @param status MATE, NO_MATE or UNKNOWN
+         * @param moves Length of the shortest mate in moves of the attacker, or 0
+         * @param line The mating line, empty if there is none
+         * @param nodes Nodes searched
+         * @param elapsedNanos Time the solve took, in nanoseconds
+         */
+        private Result(int status, int moves, List<Integer> line, long nodes, long elapsedNanos) {
+            this.status = status;
+            this.moves = moves;
+            this.line = line.stream().mapToInt(Integer::intValue).toArray();
+            this.nodes = nodes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Retrieves the outcome.
+         * @return MATE, NO_MATE (within the moves asked for) or UNKNOWN (out of nodes)
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * Retrieves the length of the shortest mate.
+         * @return the number of moves of the attacker, or 0 if no mate was found
+         */
+        public int getMoves() {
+            return moves;
+        }
+
+        /**
+         * Retrieves the mating line, in which the defender holds out as long as possible.
+         * @return the encoded moves, ending in mate
+         */
+        public int[] getLine() {
+            return line.clone();
+        }
+
+        /**
+         * Retrieves the number of nodes the solve searched, over every mate length it tried.
+         * @return the node count
+         */
+        public long getNodes() {
+            return nodes;
+        }
+
+        /**
+         * Retrieves the time the solve took.
+         * @return the elapsed time in nanoseconds
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Formats the outcome.
+         * @return a String representation of the result
+         */
+        public String toString() {
+            return status == MATE ? "mate in " + moves : status == NO_MATE ? "no mate" : "unknown";
+        }
+    }
+}
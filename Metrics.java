@@ -0,0 +1,178 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Process-wide instrumentation for Chess games: call counts, rejection reasons and
+// latency histograms, exported as Prometheus-style text.
+//
+// Recording is compiled out unless the JVM is started with -Dchess.metrics=true:
+// ENABLED is a static final constant, so the JIT removes every "if(Metrics.ENABLED)" block.
+public class Metrics {
+    public static final boolean ENABLED = Boolean.getBoolean("chess.metrics");
+
+    // makeMove calls, and rejections keyed by IllegalArgumentException message
+    public static final LongAdder MAKE_MOVE_CALLS = new LongAdder();
+    private static final Map<String, LongAdder> REJECTIONS = new ConcurrentHashMap<>();
+    // Latencies in nanoseconds
+    public static final Histogram MAKE_MOVE_NANOS = new Histogram();
+    public static final Histogram GAME_OVER_NANOS = new Histogram();
+    public static final Histogram MOVE_GEN_NANOS = new Histogram();
+    // Legal move calculations and attack queries made by each makeMove call
+    public static final Histogram LEGAL_QUERIES_PER_MOVE = new Histogram();
+    public static final Histogram ATTACK_QUERIES_PER_MOVE = new Histogram();
+
+    /**
+     * Prevents instantiation; every metric is static.
+     */
+    private Metrics() {
+    }
+
+    /**
+     * Counts a makeMove call rejected with an IllegalArgumentException.
+     * @param reason The exception's message
+     */
+    public static void rejected(String reason) {
+        REJECTIONS.computeIfAbsent(String.valueOf(reason), r -> new LongAdder()).increment();
+    }
+
+    /**
+     * Clears every metric.
+     */
+    public static void reset() {
+        MAKE_MOVE_CALLS.reset();
+        REJECTIONS.clear();
+        MAKE_MOVE_NANOS.reset();
+        GAME_OVER_NANOS.reset();
+        MOVE_GEN_NANOS.reset();
+        LEGAL_QUERIES_PER_MOVE.reset();
+        ATTACK_QUERIES_PER_MOVE.reset();
+    }
+
+    /**
+     * Formats every metric in the Prometheus text exposition format.
+     * @return the snapshot
+     */
+    public static String snapshot() {
+        StringBuilder out = new StringBuilder();
+        out.append("# TYPE chess_make_move_total counter\n");
+        out.append("chess_make_move_total ").append(MAKE_MOVE_CALLS.sum()).append('\n');
+        out.append("# TYPE chess_make_move_rejected_total counter\n");
+        for(Map.Entry<String, LongAdder> entry : REJECTIONS.entrySet()) {
+            out.append("chess_make_move_rejected_total{reason=\"")
+                    .append(entry.getKey().replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+        MAKE_MOVE_NANOS.format(out, "chess_make_move_nanoseconds");
+        GAME_OVER_NANOS.format(out, "chess_is_game_over_nanoseconds");
+        MOVE_GEN_NANOS.format(out, "chess_generate_moves_nanoseconds");
+        LEGAL_QUERIES_PER_MOVE.format(out, "chess_legal_queries_per_move");
+        ATTACK_QUERIES_PER_MOVE.format(out, "chess_attack_queries_per_move");
+        return out.toString();
+    }
+
+    // A lock-free histogram of non-negative values with log-linear buckets, in the style of
+    // HdrHistogram: values are grouped by their highest set bit, and each power of two is split
+    // into SUB_BUCKETS linear buckets, so every recorded value is within 1/SUB_BUCKETS of its bucket.
+    public static class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+        private final LongAdder sum = new LongAdder();
+
+        /**
+         * Records one value.
+         * @param value The value to record; negative values are recorded as 0
+         */
+        public void record(long value) {
+            long recorded = Math.max(0L, value);
+            counts.getAndIncrement(bucket(recorded));
+            sum.add(recorded);
+        }
+
+        /**
+         * Retrieves the number of recorded values.
+         * @return the count
+         */
+        public long count() {
+            long total = 0;
+            for(int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        /**
+         * Estimates a quantile of the recorded values.
+         * @param q The quantile, from 0 to 1
+         * @return the upper bound of the bucket holding the quantile, or 0 if nothing was recorded
+         */
+        public long quantile(double q) {
+            long total = count();
+            if(total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for(int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if(seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(counts.length() - 1);
+        }
+
+        /**
+         * Clears the histogram.
+         */
+        public void reset() {
+            for(int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+            sum.reset();
+        }
+
+        /**
+         * A private helper method to append the histogram as a Prometheus summary.
+         * @param out Where to write
+         * @param name The metric name
+         */
+        private void format(StringBuilder out, String name) {
+            out.append("# TYPE ").append(name).append(" summary\n");
+            for(double q : new double[] {0.5, 0.9, 0.99, 0.999}) {
+                out.append(name).append("{quantile=\"").append(q).append("\"} ")
+                        .append(quantile(q)).append('\n');
+            }
+            out.append(name).append("_sum ").append(sum.sum()).append('\n');
+            out.append(name).append("_count ").append(count()).append('\n');
+        }
+
+        /**
+         * A private helper method to find the bucket of a value.
+         * @param value The non-negative value
+         * @return the bucket index
+         */
+        private static int bucket(long value) {
+            if(value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return (magnitude + 1) * SUB_BUCKETS + (int) ((value >>> magnitude) & (SUB_BUCKETS - 1));
+        }
+
+        /**
+         * A private helper method to find the largest value a bucket holds.
+         * @param bucket The bucket index
+         * @return the bucket's upper bound
+         */
+        private static long upperBound(int bucket) {
+            if(bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int magnitude = bucket / SUB_BUCKETS - 1;
+            long low = ((long) (SUB_BUCKETS | (bucket % SUB_BUCKETS))) << magnitude;
+            return low + (1L << magnitude) - 1;
+        }
+    }
+}
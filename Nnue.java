@@ -0,0 +1,483 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+// A class to represent an efficiently updatable neural network (NNUE) evaluation.
+//
+// The network is (768 -> H) x 2 -> 1: each side has an H-wide accumulator holding the first
+// layer's output for the board seen from its side (768 inputs, one per piece code and square).
+// A move changes only a few inputs, so an Accumulator attached to a game as its Chess.Observer
+// adds and subtracts weight columns as pieces come and go, instead of recomputing the layer.
+// Evaluation clips both accumulators to [0, QA], side to move first, and takes one dot product.
+//
+// The accumulator and output kernels use the jdk.incubator.vector API through NnueVector when
+// the JVM runs with --add-modules jdk.incubator.vector; otherwise, or with
+// -Dchess.nnue.scalar=true, they fall back to plain loops. NnueVector lives apart, in vector/,
+// so that a plain build (javac *.java) needs no module flags and leaves it out; to include it:
+//
+//   javac --add-modules jdk.incubator.vector *.java vector/*.java
+//
+// File format (little-endian, as written by numpy's tofile): magic "NNUE", version, H, then the
+// feature weights (768 x H shorts, one row of H per input), feature biases (H shorts), output
+// weights (2H shorts, side to move first) and the output bias (int).
+public class Nnue implements Search.Evaluator {
+    public static final int INPUTS = 768;
+    // Quantization: accumulators are clipped to [0, QA]; output weights are scaled by QB
+    public static final int QA = 255;
+    public static final int QB = 64;
+    // Centipawns per unit of network output
+    public static final int SCALE = 400;
+    private static final int MAGIC = 0x45554E4E;
+    private static final int VERSION = 1;
+    // Sum of the benchmark's scores
+    private static volatile long checksum;
+    // Vector or scalar kernels, chosen once
+    static final Kernels KERNELS = loadKernels();
+
+    private final int hidden;
+    private final short[] featureWeights;
+    private final short[] featureBias;
+    private final short[] outputWeights;
+    private final int outputBias;
+
+    /**
+     * Constructs a new Nnue from its weights.
+     * @param hidden Width H of each accumulator, a multiple of 32
+     * @param featureWeights 768 x H first layer weights, one row of H per input
+     * @param featureBias H first layer biases
+     * @param outputWeights 2H output weights, side to move first
+     * @param outputBias Output bias
+     * @throws IllegalArgumentException If the sizes do not match
+     */
+    public Nnue(int hidden, short[] featureWeights, short[] featureBias, short[] outputWeights,
+            int outputBias) {
+        if(hidden <= 0 || hidden % 32 != 0 || featureWeights.length != INPUTS * hidden ||
+                featureBias.length != hidden || outputWeights.length != 2 * hidden) {
+            throw new IllegalArgumentException("Network sizes do not match");
+        }
+        this.hidden = hidden;
+        this.featureWeights = featureWeights;
+        this.featureBias = featureBias;
+        this.outputWeights = outputWeights;
+        this.outputBias = outputBias;
+    }
+
+    /**
+     * Loads a network from a file in the format described above.
+     * @param file The weights file
+     * @return the network
+     * @throws IOException If the file cannot be read
+     * @throws IllegalArgumentException If the file is not a network
+     */
+    public static Nnue load(Path file) throws IOException {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(file), 1 << 16))) {
+            if(Integer.reverseBytes(in.readInt()) != MAGIC ||
+                    Integer.reverseBytes(in.readInt()) != VERSION) {
+                throw new IllegalArgumentException("Not a network: " + file);
+            }
+            int hidden = Integer.reverseBytes(in.readInt());
+            if(hidden <= 0 || hidden > 1 << 16) {
+                throw new IllegalArgumentException("Bad accumulator width " + hidden);
+            }
+            short[] featureWeights = readShorts(in, INPUTS * hidden);
+            short[] featureBias = readShorts(in, hidden);
+            short[] outputWeights = readShorts(in, 2 * hidden);
+            int outputBias = Integer.reverseBytes(in.readInt());
+            return new Nnue(hidden, featureWeights, featureBias, outputWeights, outputBias);
+        }
+    }
+
+    /**
+     * Saves the network in the format load reads.
+     * @param file Where to write
+     * @throws IOException If the file cannot be written
+     */
+    public void save(Path file) throws IOException {
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file), 1 << 16))) {
+            out.writeInt(Integer.reverseBytes(MAGIC));
+            out.writeInt(Integer.reverseBytes(VERSION));
+            out.writeInt(Integer.reverseBytes(hidden));
+            for(short[] shorts : new short[][] {featureWeights, featureBias, outputWeights}) {
+                for(short value : shorts) {
+                    out.writeShort(Short.reverseBytes(value));
+                }
+            }
+            out.writeInt(Integer.reverseBytes(outputBias));
+        }
+    }
+
+    /**
+     * Creates a network with small random weights, for benchmarks and tests.
+     * @param hidden Width H of each accumulator, a multiple of 32
+     * @param seed Random seed
+     * @return the network
+     */
+    public static Nnue random(int hidden, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        short[] featureWeights = new short[INPUTS * hidden];
+        for(int i = 0; i < featureWeights.length; i++) {
+            featureWeights[i] = (short) random.nextInt(-32, 33);
+        }
+        short[] featureBias = new short[hidden];
+        for(int i = 0; i < hidden; i++) {
+            featureBias[i] = (short) random.nextInt(0, 64);
+        }
+        short[] outputWeights = new short[2 * hidden];
+        for(int i = 0; i < outputWeights.length; i++) {
+            outputWeights[i] = (short) random.nextInt(-QB, QB + 1);
+        }
+        return new Nnue(hidden, featureWeights, featureBias, outputWeights, 0);
+    }
+
+    /**
+     * Retrieves the width of each accumulator.
+     * @return H
+     */
+    public int hidden() {
+        return hidden;
+    }
+
+    /**
+     * Creates an Accumulator and attaches it to a game. The game must not have another
+     * Observer, and its evaluations must go through the returned Accumulator.
+     * @param game The game
+     * @return the attached accumulator
+     */
+    public Accumulator attach(Chess game) {
+        Accumulator accumulator = new Accumulator(game);
+        game.setObserver(accumulator);
+        return accumulator;
+    }
+
+    /**
+     * Evaluates a position from scratch, without an accumulator. Much slower than
+     * Accumulator.evaluate, so only for one-off evaluations and checks.
+     * @param game The game, at the position to evaluate
+     * @return the score in centipawns for the player to move
+     */
+    public int evaluate(Chess game) {
+        short[][] sides = new short[2][hidden];
+        for(int perspective = Chess.WHITE; perspective <= Chess.BLACK; perspective++) {
+            System.arraycopy(featureBias, 0, sides[perspective], 0, hidden);
+            for(int sq = 0; sq < 64; sq++) {
+                int code = game.pieceAt(sq);
+                if(code != Chess.EMPTY) {
+                    KERNELS.add(sides[perspective], featureWeights, feature(perspective, code, sq) * hidden);
+                }
+            }
+        }
+        int us = game.sideToMove();
+        return output(sides[us], sides[1 - us]);
+    }
+
+    /**
+     * A private helper method to run the output layer.
+     * @param us Accumulator of the player to move
+     * @param them Accumulator of the other player
+     * @return the score in centipawns for the player to move
+     */
+    private int output(short[] us, short[] them) {
+        long sum = KERNELS.clippedDot(us, outputWeights, 0, QA) +
+                KERNELS.clippedDot(them, outputWeights, hidden, QA) + outputBias;
+        return (int) (sum * SCALE / (QA * QB));
+    }
+
+    /**
+     * A private helper method to find the input of a piece as seen from one side: the board is
+     * mirrored vertically for Black, and "own" pieces come before "enemy" pieces.
+     * @param perspective WHITE or BLACK
+     * @param code The piece code
+     * @param square The square
+     * @return the input index, from 0 to 767
+     */
+    private static int feature(int perspective, int code, int square) {
+        int color = code / 6;
+        int type = code % 6;
+        int relative = perspective == Chess.WHITE ? square : square ^ 56;
+        return (color == perspective ? 0 : 384) + type * 64 + relative;
+    }
+
+    /**
+     * Compares the scalar and vector kernels, and both against a material count. Without
+     * NnueVector, both runs use the scalar kernels.
+     * Usage: java --add-modules jdk.incubator.vector Nnue [weights file]
+     * @param args The arguments
+     * @throws IOException If the weights file cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        Nnue net = args.length > 0 ? load(Paths.get(args[0])) : random(256, 1);
+        Chess game = new Chess("r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1");
+        Kernels scalar = new ScalarKernels();
+        System.out.println("Kernels: " + KERNELS.getClass().getSimpleName() + ", H = " + net.hidden);
+        for(int round = 0; round < 3; round++) {
+            System.out.printf("material %6.1f ns   scalar %6.1f ns   %s %6.1f ns   (eval + move + undo)%n",
+                    bench(game, null, null), bench(game, net, scalar), KERNELS.getClass().getSimpleName(),
+                    bench(game, net, KERNELS));
+        }
+    }
+
+    /**
+     * A private helper method to time evaluations along a fixed walk of the move tree.
+     * @param game The game to walk from
+     * @param net The network, or null to count material instead
+     * @param kernels Kernels to use
+     * @return nanoseconds per visited position
+     */
+    private static double bench(Chess game, Nnue net, Kernels kernels) {
+        Accumulator accumulator = null;
+        if(net != null) {
+            accumulator = net.attach(game);
+            accumulator.kernels = kernels;
+        }
+        long[] sink = new long[1];
+        long start = System.nanoTime();
+        long visited = walk(game, accumulator, 4, sink);
+        long elapsed = System.nanoTime() - start;
+        game.setObserver(null);
+        // Publish the scores so that the JIT cannot drop the evaluations
+        checksum += sink[0];
+        return (double) elapsed / visited;
+    }
+
+    /**
+     * A private helper method to evaluate every position of the move tree to a fixed depth.
+     * @param game The game, at the root of the tree
+     * @param accumulator Accumulator attached to game, or null to count material instead
+     * @param depth Depth of the tree
+     * @param sink Where to add up the scores
+     * @return the number of positions evaluated
+     */
+    private static long walk(Chess game, Accumulator accumulator, int depth, long[] sink) {
+        if(accumulator != null) {
+            sink[0] += accumulator.evaluate(game);
+        } else {
+            int material = 0;
+            int[] values = {0, 900, 500, 320, 330, 100};
+            for(int type = Chess.QUEEN; type <= Chess.PAWN; type++) {
+                material += values[type] * (Long.bitCount(game.bitboard(type, Chess.WHITE)) -
+                        Long.bitCount(game.bitboard(type, Chess.BLACK)));
+            }
+            sink[0] += material;
+        }
+        if(depth == 0) {
+            return 1;
+        }
+        int[] moves = game.moveBuffer();
+        int n = game.generateMoves(moves);
+        long visited = 1;
+        for(int i = 0; i < n; i++) {
+            game.doMove(moves[i]);
+            visited += walk(game, accumulator, depth - 1, sink);
+            game.undoMove();
+        }
+        return visited;
+    }
+
+    /**
+     * A private helper method to read little-endian shorts.
+     * @param in Where to read
+     * @param count How many to read
+     * @return the shorts
+     * @throws IOException If they cannot be read
+     */
+    private static short[] readShorts(DataInputStream in, int count) throws IOException {
+        short[] out = new short[count];
+        for(int i = 0; i < count; i++) {
+            out[i] = Short.reverseBytes(in.readShort());
+        }
+        return out;
+    }
+
+    /**
+     * A private helper method to pick the vector kernels if the JVM supports them.
+     * @return the kernels
+     */
+    private static Kernels loadKernels() {
+        if(!Boolean.getBoolean("chess.nnue.scalar")) {
+            try {
+                return (Kernels) Class.forName("NnueVector").getDeclaredConstructor().newInstance();
+            } catch(ReflectiveOperationException | LinkageError ex) {
+                // jdk.incubator.vector is not available; fall through to the scalar kernels
+            }
+        }
+        return new ScalarKernels();
+    }
+
+    // An interface for the arithmetic an evaluation spends its time in
+    interface Kernels {
+        /**
+         * Adds a weight row to an accumulator.
+         * @param accumulator The accumulator
+         * @param weights The weights
+         * @param offset Start of the row in weights
+         */
+        void add(short[] accumulator, short[] weights, int offset);
+
+        /**
+         * Subtracts a weight row from an accumulator.
+         * @param accumulator The accumulator
+         * @param weights The weights
+         * @param offset Start of the row in weights
+         */
+        void sub(short[] accumulator, short[] weights, int offset);
+
+        /**
+         * Computes the dot product of a clipped accumulator and a weight row.
+         * @param accumulator The accumulator, clipped to [0, max]
+         * @param weights The weights
+         * @param offset Start of the row in weights
+         * @param max Upper clipping bound
+         * @return the dot product
+         */
+        long clippedDot(short[] accumulator, short[] weights, int offset, int max);
+    }
+
+    // A class to run the kernels with plain loops, for JVMs without the Vector API
+    static class ScalarKernels implements Kernels {
+        /**
+         * Adds a weight row to an accumulator, one element at a time.
+         * @param accumulator The accumulator
+         * @param weights The weights
+         * @param offset Start of the row in weights
+         */
+        public void add(short[] accumulator, short[] weights, int offset) {
+            for(int i = 0; i < accumulator.length; i++) {
+                accumulator[i] += weights[offset + i];
+            }
+        }
+
+        /**
+         * Subtracts a weight row from an accumulator, one element at a time.
+         * @param accumulator The accumulator
+         * @param weights The weights
+         * @param offset Start of the row in weights
+         */
+        public void sub(short[] accumulator, short[] weights, int offset) {
+            for(int i = 0; i < accumulator.length; i++) {
+                accumulator[i] -= weights[offset + i];
+            }
+        }
+
+        /**
+         * Computes the dot product of a clipped accumulator and a weight row in a long.
+         * @param accumulator The accumulator, clipped to [0, max]
+         * @param weights The weights
+         * @param offset Start of the row in weights
+         * @param max Upper clipping bound
+         * @return the dot product
+         */
+        public long clippedDot(short[] accumulator, short[] weights, int offset, int max) {
+            long sum = 0;
+            for(int i = 0; i < accumulator.length; i++) {
+                sum += Math.min(Math.max(accumulator[i], 0), max) * weights[offset + i];
+            }
+            return sum;
+        }
+    }
+
+    // A class to hold the first layer's output for one game, kept up to date as a Chess.Observer.
+    // Keeps one pair of accumulators per ply, so that undoMove only has to step back.
+    public class Accumulator implements Chess.Observer, Search.Evaluator {
+        private final Chess game;
+        // Accumulators of each ply, indexed by [ply][perspective]
+        private short[][][] stack;
+        private int top;
+        private Kernels kernels;
+
+        /**
+         * Constructs a new Accumulator. It is filled in when attached to the game.
+         * @param game The game to follow
+         */
+        private Accumulator(Chess game) {
+            this.game = game;
+            stack = new short[64][2][hidden];
+            kernels = KERNELS;
+        }
+
+        /**
+         * Evaluates the current position of the attached game.
+         * @param game The attached game
+         * @return the score in centipawns for the player to move
+         * @throws IllegalArgumentException If game is not the attached game
+         */
+        public int evaluate(Chess game) {
+            if(game != this.game) {
+                throw new IllegalArgumentException("Accumulator is attached to another game");
+            }
+            short[][] current = stack[top];
+            int us = game.sideToMove();
+            long sum = kernels.clippedDot(current[us], outputWeights, 0, QA) +
+                    kernels.clippedDot(current[1 - us], outputWeights, hidden, QA) + outputBias;
+            return (int) (sum * SCALE / (QA * QB));
+        }
+
+        /**
+         * Rebuilds the accumulators from the biases and every piece on the board.
+         * @param game The game, to read the position from
+         */
+        public void reset(Chess game) {
+            top = 0;
+            for(int perspective = Chess.WHITE; perspective <= Chess.BLACK; perspective++) {
+                System.arraycopy(featureBias, 0, stack[0][perspective], 0, hidden);
+            }
+            for(int sq = 0; sq < 64; sq++) {
+                int code = game.pieceAt(sq);
+                if(code != Chess.EMPTY) {
+                    add(code, sq);
+                }
+            }
+        }
+
+        /**
+         * Copies the current accumulators to the next ply, growing the stack if it is full.
+         */
+        public void push() {
+            if(top + 1 == stack.length) {
+                int size = stack.length;
+                stack = Arrays.copyOf(stack, size * 2);
+                for(int i = size; i < stack.length; i++) {
+                    stack[i] = new short[2][hidden];
+                }
+            }
+            System.arraycopy(stack[top][0], 0, stack[top + 1][0], 0, hidden);
+            System.arraycopy(stack[top][1], 0, stack[top + 1][1], 0, hidden);
+            top++;
+        }
+
+        /**
+         * Steps back to the accumulators of the previous ply.
+         */
+        public void pop() {
+            top--;
+        }
+
+        /**
+         * Adds the feature of a piece that appeared on a square, from both perspectives.
+         * @param code The piece code
+         * @param square The square
+         */
+        public void add(int code, int square) {
+            kernels.add(stack[top][0], featureWeights, feature(Chess.WHITE, code, square) * hidden);
+            kernels.add(stack[top][1], featureWeights, feature(Chess.BLACK, code, square) * hidden);
+        }
+
+        /**
+         * Removes the feature of a piece that left a square, from both perspectives.
+         * @param code The piece code
+         * @param square The square
+         */
+        public void remove(int code, int square) {
+            kernels.sub(stack[top][0], featureWeights, feature(Chess.WHITE, code, square) * hidden);
+            kernels.sub(stack[top][1], featureWeights, feature(Chess.BLACK, code, square) * hidden);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import java.util.Arrays;
+
+// A class to evaluate pawn structure (passed, doubled, isolated and backward pawns) through a
+// fixed-size cache indexed by Chess.pawnHash(). Pawns move rarely compared with the other
+// pieces, so most positions a search visits share their pawn structure with one already seen.
+// Like Search, a PawnTable is meant to be used by one thread.
+public class PawnTable {
+    // Penalties per pawn, in centipawns
+    private static final int DOUBLED = 12;
+    private static final int ISOLATED = 15;
+    private static final int BACKWARD = 8;
+    // Bonus for a passed pawn, indexed by its rank counting from its own side
+    private static final int[] PASSED = {0, 5, 10, 20, 35, 60, 100, 0};
+    private static final long FILE_A = 0x0101010101010101L;
+    private static final long FILE_H = FILE_A << 7;
+
+    // Full pawn hash of each slot's structure, and its score for White
+    private final long[] keys;
+    private final int[] scores;
+    private final int mask;
+    private long probes;
+    private long hits;
+
+    /**
+     * Constructs a new PawnTable.
+     * @param entries Number of cached structures, rounded down to a power of two
+     * @throws IllegalArgumentException If entries is not positive
+     */
+    public PawnTable(int entries) {
+        if(entries < 1) {
+            throw new IllegalArgumentException("A pawn table needs at least one entry");
+        }
+        int size = Integer.highestOneBit(entries);
+        keys = new long[size];
+        scores = new int[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Evaluates the pawn structure of a game's current position, from the cache if possible.
+     * @param game The game
+     * @return the score in centipawns for White
+     */
+    public int evaluate(Chess game) {
+        long key = game.pawnHash();
+        int slot = (int) key & mask;
+        probes++;
+        // An empty slot holds key 0, which is also the (correct) entry for no pawns at all
+        if(keys[slot] == key) {
+            hits++;
+            return scores[slot];
+        }
+        long white = game.bitboard(Chess.PAWN, Chess.WHITE);
+        long black = game.bitboard(Chess.PAWN, Chess.BLACK);
+        // Black's pawns are scored on the board flipped vertically, as if they were White's
+        int score = evaluate(white, black) - evaluate(Long.reverseBytes(black), Long.reverseBytes(white));
+        keys[slot] = key;
+        scores[slot] = score;
+        return score;
+    }
+
+    /**
+     * Retrieves the fraction of evaluations answered from the cache since the last clear.
+     * @return the hit rate, from 0 to 1
+     */
+    public double getHitRate() {
+        return probes == 0 ? 0.0 : (double) hits / probes;
+    }
+
+    /**
+     * Empties the cache and resets the hit rate.
+     */
+    public void clear() {
+        Arrays.fill(keys, 0L);
+        probes = 0;
+        hits = 0;
+    }
+
+    /**
+     * A private helper method to score one side's pawns, moving up the board.
+     * @param own The pawns to score
+     * @param enemy The other side's pawns, moving down the board
+     * @return the score in centipawns for the owner
+     */
+    private static int evaluate(long own, long enemy) {
+        int score = 0;
+        for(int file = 0; file < 8; file++) {
+            int count = Long.bitCount(own & FILE_A << file);
+            if(count > 1) {
+                score -= DOUBLED * (count - 1);
+            }
+        }
+        long enemyAttacks = (enemy & ~FILE_A) >>> 9 | (enemy & ~FILE_H) >>> 7;
+        for(long pawns = own; pawns != 0; pawns &= pawns - 1) {
+            int sq = Long.numberOfTrailingZeros(pawns);
+            int file = sq % 8;
+            int rank = sq / 8;
+            long adjacent = (file > 0 ? FILE_A << (file - 1) : 0) | (file < 7 ? FILE_A << (file + 1) : 0);
+            // Squares up to and including this pawn's rank, and those in front of it
+            long upToRank = -1L >>> (56 - 8 * rank);
+            long ahead = ~upToRank;
+            if((own & adjacent) == 0) {
+                score -= ISOLATED;
+            } else if((own & adjacent & upToRank) == 0 && (enemyAttacks & 1L << (sq + 8)) != 0) {
+                // No neighbour can support its advance, and the square in front is guarded
+                score -= BACKWARD;
+            }
+            // Only the front pawn of a doubled pair counts as passed
+            if(((enemy & (adjacent | FILE_A << file) | own & FILE_A << file) & ahead) == 0) {
+                score += PASSED[rank];
+            }
+        }
+        return score;
+    }
+}
@@ -0,0 +1,265 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+// A class to count the leaf nodes of the legal move tree (perft), the standard check that move
+// generation is correct. Subtrees near the root are split across a fork-join pool, each task on
+// its own copy of the game; finished subtree counts are cached in a hash table shared by all
+// workers; and the last ply is bulk counted from generateMoves without making the moves.
+public class Perft {
+    // Remaining depth from which subtrees are split into parallel tasks
+    private static final int SPLIT_DEPTH = 4;
+    // Keys mixed into a position's hash to tell apart counts of different depths
+    private static final long[] DEPTH_KEYS = new long[64];
+    static {
+        long seed = 0x5065726674L;
+        for(int i = 0; i < DEPTH_KEYS.length; i++) {
+            seed += 0x9E3779B97F4A7C15L;
+            long z = (seed ^ (seed >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            DEPTH_KEYS[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final int threads;
+    // Lockless hash table: each slot holds key ^ count and count, so a slot torn by a
+    // concurrent write fails the key check instead of returning a wrong count
+    private final long[] checks;
+    private final long[] counts;
+    private final int mask;
+
+    /**
+     * Constructs a new Perft.
+     * @param threads Number of worker threads
+     * @param megabytes Size of the hash table, or 0 for none
+     * @throws IllegalArgumentException If threads is not positive
+     */
+    public Perft(int threads, int megabytes) {
+        if(threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+        this.threads = threads;
+        int entries = megabytes <= 0 ? 0 : Integer.highestOneBit((int) Math.min(1 << 30,
+                (long) megabytes * (1 << 20) / 16));
+        checks = new long[entries];
+        counts = new long[entries];
+        mask = entries - 1;
+    }
+
+    /**
+     * Counts the leaf nodes of a game's move tree, in parallel.
+     * @param game The game to count from; it is not modified
+     * @param depth Depth in plies
+     * @return the number of leaf nodes
+     * @throws IllegalArgumentException If depth is negative or too deep to hash
+     */
+    public long count(Chess game, int depth) {
+        long total = 0;
+        for(long count : divide(game, depth).values()) {
+            total += count;
+        }
+        return depth == 0 ? 1 : total;
+    }
+
+    /**
+     * Counts the leaf nodes below each legal move of a game, in parallel.
+     * @param game The game to count from; it is not modified
+     * @param depth Depth in plies, counting the root move
+     * @return the count of each move, keyed by its coordinate name (see Chess.moveName),
+     *         in generation order
+     * @throws IllegalArgumentException If depth is negative or too deep to hash
+     */
+    public Map<String, Long> divide(Chess game, int depth) {
+        if(depth < 0 || depth >= DEPTH_KEYS.length) {
+            throw new IllegalArgumentException("Depth must be from 0 to " + (DEPTH_KEYS.length - 1));
+        }
+        Map<String, Long> out = new LinkedHashMap<>();
+        if(depth == 0) {
+            return out;
+        }
+        int[] moves = new int[Chess.MAX_MOVES];
+        int n = game.generateMoves(moves);
+        List<Task> tasks = new ArrayList<>();
+        for(int i = 0; i < n; i++) {
+            Chess child = game.copy();
+            child.doMove(moves[i]);
+            tasks.add(new Task(child, depth - 1));
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new RecursiveTask<Void>() {
+                /**
+                 * Counts the subtree of every root move in parallel.
+                 * @return null
+                 */
+                protected Void compute() {
+                    ForkJoinTask.invokeAll(tasks);
+                    return null;
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+        for(int i = 0; i < n; i++) {
+            out.put(Chess.moveName(moves[i]), tasks.get(i).join());
+        }
+        return out;
+    }
+
+    /**
+     * Counts the leaf nodes of a game's move tree on the calling thread, without a hash
+     * table: the reference the faster modes are checked against.
+     * @param game The game to count from; it is left in the position it started in
+     * @param depth Depth in plies
+     * @return the number of leaf nodes
+     */
+    public static long perft(Chess game, int depth) {
+        if(depth == 0) {
+            return 1;
+        }
+        int[] moves = game.moveBuffer();
+        int n = game.generateMoves(moves);
+        if(depth == 1) {
+            return n;
+        }
+        long total = 0;
+        for(int i = 0; i < n; i++) {
+            game.doMove(moves[i]);
+            total += perft(game, depth - 1);
+            game.undoMove();
+        }
+        return total;
+    }
+
+    /**
+     * A private helper method to count leaf nodes sequentially, using the hash table.
+     * @param game The game to count from; it is left in the position it started in
+     * @param depth Depth in plies
+     * @return the number of leaf nodes
+     */
+    private long search(Chess game, int depth) {
+        if(depth == 0) {
+            return 1;
+        }
+        int[] moves = game.moveBuffer();
+        int n = game.generateMoves(moves);
+        if(depth == 1) {
+            return n;
+        }
+        long key = game.hash() ^ DEPTH_KEYS[depth];
+        long cached = probe(key);
+        if(cached >= 0) {
+            return cached;
+        }
+        long total = 0;
+        for(int i = 0; i < n; i++) {
+            game.doMove(moves[i]);
+            total += search(game, depth - 1);
+            game.undoMove();
+        }
+        store(key, total);
+        return total;
+    }
+
+    /**
+     * A private helper method to look up a subtree count.
+     * @param key The position's hash mixed with the depth
+     * @return the count, or -1 if it is not cached
+     */
+    private long probe(long key) {
+        if(counts.length == 0) {
+            return -1;
+        }
+        int slot = (int) key & mask;
+        long count = counts[slot];
+        return (checks[slot] ^ count) == key ? count : -1;
+    }
+
+    /**
+     * A private helper method to cache a subtree count, replacing whatever was in its slot.
+     * @param key The position's hash mixed with the depth
+     * @param count The count
+     */
+    private void store(long key, long count) {
+        if(counts.length == 0) {
+            return;
+        }
+        int slot = (int) key & mask;
+        counts[slot] = count;
+        checks[slot] = key ^ count;
+    }
+
+    /**
+     * Runs perft from the command line and prints the count of every root move.
+     * Usage: java Perft depth [threads] [hash megabytes] [FEN]
+     * @param args The arguments
+     */
+    public static void main(String[] args) {
+        int depth = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+        int threads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        int megabytes = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+        Chess game = args.length > 3 ? new Chess(args[3]) : new Chess();
+        long start = System.nanoTime();
+        Map<String, Long> divide = new Perft(threads, megabytes).divide(game, depth);
+        long total = 0;
+        for(Map.Entry<String, Long> entry : divide.entrySet()) {
+            System.out.println(entry.getKey() + ": " + entry.getValue());
+            total += entry.getValue();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%nNodes: %d%nTime: %.2fs (%.1f Mnps)%n", total, seconds, total / seconds / 1e6);
+    }
+
+    // A class to count one subtree, splitting it further while it is large
+    private class Task extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final Chess game;
+        private final int depth;
+
+        /**
+         * Constructs a new Task.
+         * @param game The subtree's root position, owned by the Task
+         * @param depth Plies left to count
+         */
+        private Task(Chess game, int depth) {
+            this.game = game;
+            this.depth = depth;
+        }
+
+        /**
+         * Counts the subtree: serially once it is shallow, otherwise by splitting it into one
+         * Task per move, unless the transposition table already holds its count.
+         * @return the number of leaf nodes
+         */
+        protected Long compute() {
+            if(depth < SPLIT_DEPTH) {
+                return search(game, depth);
+            }
+            long key = game.hash() ^ DEPTH_KEYS[depth];
+            long cached = probe(key);
+            if(cached >= 0) {
+                return cached;
+            }
+            int[] moves = game.moveBuffer();
+            int n = game.generateMoves(moves);
+            List<Task> children = new ArrayList<>(n);
+            for(int i = 0; i < n; i++) {
+                Chess child = game.copy();
+                child.doMove(moves[i]);
+                children.add(new Task(child, depth - 1));
+            }
+            long total = 0;
+            for(Task child : ForkJoinTask.invokeAll(children)) {
+                total += child.join();
+            }
+            store(key, total);
+            return total;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+// A class to let a Search think on the opponent's time. After the engine moves, start plays the
+// reply it expects on a copy of the game and searches the resulting position in the background,
+// filling the Search's transposition table. Once the opponent has moved, finish either keeps
+// the pondering search (a ponder hit) for whatever is left of the time budget, or aborts it
+// (a miss) so that the caller can search the real position as usual.
+public class Ponderer {
+    private final Search search;
+    // Hash of the position being pondered, and when pondering started
+    private long ponderHash;
+    private long started;
+    private Thread thread;
+    // Best move of the pondering search, set by the thread when it stops
+    private volatile int result;
+
+    /**
+     * Constructs a new Ponderer.
+     * @param search The Search to ponder with; it must not be used elsewhere while pondering
+     */
+    public Ponderer(Search search) {
+        this.search = search;
+    }
+
+    /**
+     * Starts pondering on a background thread, stopping any earlier pondering first.
+     * The game itself is not modified or referenced once this returns.
+     * @param game The game, with the engine's move just played
+     * @param expected The opponent's expected reply, such as the second move of the
+     *        principal variation, or 0 if there is none
+     * @return true if pondering started; false if there was no legal expected move
+     */
+    public boolean start(Chess game, int expected) {
+        abort();
+        Chess copy = game.copy();
+        int[] moves = copy.moveBuffer();
+        int n = copy.generateMoves(moves);
+        boolean legal = false;
+        for(int i = 0; i < n; i++) {
+            legal |= moves[i] == expected;
+        }
+        if(expected == 0 || !legal) {
+            return false;
+        }
+        copy.doMove(expected);
+        ponderHash = copy.hash();
+        started = System.nanoTime();
+        result = 0;
+        thread = new Thread(() -> result = search.search(copy, Search.MAX_PLY, 0, 0), "ponder");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Ends pondering once the opponent has moved. On a ponder hit, the pondering search goes on
+     * until maxMillis have passed since pondering started, and its move is returned; if that
+     * time is already up, the move is returned at once. On a miss, the search is aborted.
+     * @param game The game, with the opponent's move played
+     * @param maxMillis Time budget of the engine's move, counting the time spent pondering
+     * @return the move to play, or 0 on a miss or if nothing was being pondered
+     */
+    public int finish(Chess game, long maxMillis) {
+        if(thread == null) {
+            return 0;
+        }
+        boolean hit = game.hash() == ponderHash;
+        if(hit) {
+            long remaining = maxMillis - (System.nanoTime() - started) / 1_000_000;
+            try {
+                if(remaining > 0) {
+                    thread.join(remaining);
+                }
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        abort();
+        return hit ? result : 0;
+    }
+
+    /**
+     * Checks if a pondering search is running.
+     * @return true if pondering
+     */
+    public boolean isPondering() {
+        return thread != null && thread.isAlive();
+    }
+
+    /**
+     * Aborts pondering, if running, and waits for the background thread to finish so that
+     * the Search can be used again.
+     */
+    public void abort() {
+        if(thread == null) {
+            return;
+        }
+        boolean interrupted = false;
+        // The search clears its stop flag when it begins, so keep asking until it is done
+        while(thread.isAlive()) {
+            search.stop();
+            try {
+                thread.join(10);
+            } catch(InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        thread = null;
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
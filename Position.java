@@ -0,0 +1,276 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// A class to represent an immutable snapshot of a Chess game, taken with Chess.snapshot().
+// The board is a flat array of piece codes, so a snapshot is cheap to take and safe to share
+// between threads; new Chess(position) turns it back into a playable game.
+public final class Position {
+    // Size of the packed form written by pack
+    public static final int PACKED_BYTES = 29;
+    private static final String SYMBOLS = "KQRNBPkqrnbp";
+
+    // Piece code (see Chess.pieceAt) on each square, or Chess.EMPTY
+    private final byte[] mailbox;
+    // Plies played, counting from the start of the game (even if White is to move)
+    final int moves;
+    // Castling rights bitmask, as kept by Chess
+    final int castling;
+    private final int epSquare;
+    private final int halfmoveClock;
+    private final long hash;
+    // Hashes of the positions since the last capture or pawn move, oldest first
+    final long[] history;
+    // Game record and end state, carried over so that copies report the same result
+    final String log;
+    final int draw;
+    final boolean resigned;
+
+    /**
+     * Constructs a new Position. Only Chess creates snapshots, and it hands over arrays
+     * that nothing else refers to.
+     * @param mailbox Piece code on each square
+     * @param moves Plies played since the start of the game
+     * @param castling Castling rights bitmask
+     * @param epSquare En passant square, or Chess.EMPTY
+     * @param halfmoveClock Plies since the last capture or pawn move
+     * @param hash Zobrist hash of the position
+     * @param history Hashes of the positions since the last capture or pawn move, oldest first
+     * @param log Game record
+     * @param draw Draw agreement state, as kept by Chess
+     * @param resigned Whether the game ended by resignation
+     */
+    Position(byte[] mailbox, int moves, int castling, int epSquare, int halfmoveClock,
+            long hash, long[] history, String log, int draw, boolean resigned) {
+        this.mailbox = mailbox;
+        this.moves = moves;
+        this.castling = castling;
+        this.epSquare = epSquare;
+        this.halfmoveClock = halfmoveClock;
+        this.hash = hash;
+        this.history = history;
+        this.log = log;
+        this.draw = draw;
+        this.resigned = resigned;
+    }
+
+    /**
+     * Retrieves the piece on a square.
+     * @param square The square, from 0 (a1) to 63 (h8)
+     * @return the piece code (Color ordinal * 6 + Type ordinal), or Chess.EMPTY
+     */
+    public int pieceAt(int square) {
+        return mailbox[square];
+    }
+
+    /**
+     * Retrieves the color of the player to move.
+     * @return Chess.WHITE or Chess.BLACK
+     */
+    public int sideToMove() {
+        return moves % 2;
+    }
+
+    /**
+     * Checks if a player may still castle.
+     * @param color Chess.WHITE or Chess.BLACK
+     * @param kingside true for kingside (O-O), false for queenside (O-O-O)
+     * @return true if neither the King nor that Rook has moved
+     */
+    public boolean canCastle(int color, boolean kingside) {
+        return (castling & 1 << (2 * color + (kingside ? 0 : 1))) != 0;
+    }
+
+    /**
+     * Retrieves the square en passant can be performed on.
+     * @return the square, or Chess.EMPTY if the last move was not a double pawn push
+     */
+    public int epSquare() {
+        return epSquare;
+    }
+
+    /**
+     * Retrieves the number of plies since the last capture or pawn move.
+     * @return the halfmove clock
+     */
+    public int halfmoveClock() {
+        return halfmoveClock;
+    }
+
+    /**
+     * Retrieves the Zobrist hash of the position, equal to Chess.hash() when taken.
+     * @return the hash
+     */
+    public long hash() {
+        return hash;
+    }
+
+    /**
+     * A method to check if two positions are the same: same board, side to move, castling
+     * rights, en passant square and clocks. The game history is not compared.
+     * @param obj The object to compare with
+     * @return true if the positions are the same
+     */
+    public boolean equals(Object obj) {
+        if(!(obj instanceof Position)) {
+            return false;
+        }
+        Position other = (Position) obj;
+        return hash == other.hash && toFEN().equals(other.toFEN());
+    }
+
+    /**
+     * Hashes the position, consistently with equals.
+     * @return the hash code, taken from the Zobrist hash
+     */
+    public int hashCode() {
+        return Long.hashCode(hash);
+    }
+
+    /**
+     * Formats the position in Forsyth-Edwards Notation, as read by new Chess(String).
+     * @return the FEN string
+     */
+    public String toFEN() {
+        StringBuilder fen = new StringBuilder();
+        for(int rank = 7; rank >= 0; rank--) {
+            int empty = 0;
+            for(int file = 0; file < 8; file++) {
+                int code = mailbox[rank * 8 + file];
+                if(code == Chess.EMPTY) {
+                    empty++;
+                } else {
+                    if(empty > 0) {
+                        fen.append(empty);
+                        empty = 0;
+                    }
+                    fen.append(SYMBOLS.charAt(code));
+                }
+            }
+            if(empty > 0) {
+                fen.append(empty);
+            }
+            if(rank > 0) {
+                fen.append('/');
+            }
+        }
+        fen.append(sideToMove() == Chess.WHITE ? " w " : " b ");
+        String rights = "";
+        for(int i = 0; i < 4; i++) {
+            if((castling & 1 << i) != 0) {
+                rights += "KQkq".charAt(i);
+            }
+        }
+        fen.append(rights.isEmpty() ? "-" : rights).append(' ');
+        if(epSquare == Chess.EMPTY) {
+            fen.append('-');
+        } else {
+            fen.append((char) ('a' + epSquare % 8)).append(epSquare / 8 + 1);
+        }
+        return fen.append(' ').append(halfmoveClock).append(' ').append(moves / 2 + 1).toString();
+    }
+
+    /**
+     * Formats the position (see toFEN).
+     * @return the FEN string
+     */
+    public String toString() {
+        return toFEN();
+    }
+
+    /**
+     * Writes the position in a fixed-width packed form of PACKED_BYTES bytes: the occupied
+     * squares as a bitboard (8 bytes), the piece code of each occupied square in square order
+     * as 4-bit nibbles (16 bytes), the side to move (bit 7) and castling rights (bits 0-3),
+     * the en passant square (255 for none), the halfmove clock (capped at 255) and the
+     * fullmove number (2 bytes). The move history is not included.
+     * @param out Where to write
+     */
+    public void pack(ByteBuffer out) {
+        pack(out, mailbox, moves, castling, epSquare, halfmoveClock);
+    }
+
+    /**
+     * Reads a position written by pack.
+     * @param in Where to read PACKED_BYTES bytes
+     * @return the position, with no move history
+     * @throws IllegalArgumentException If the bytes do not hold a valid position, such as one
+     *         without exactly one King per side
+     */
+    public static Position unpack(ByteBuffer in) {
+        long occupied = in.getLong();
+        byte[] mailbox = new byte[64];
+        Arrays.fill(mailbox, (byte) Chess.EMPTY);
+        int nibbles = 0;
+        int packed = 0;
+        int[] kings = new int[2];
+        for(long bits = occupied; bits != 0; bits &= bits - 1) {
+            if(nibbles == 32) {
+                throw new IllegalArgumentException("More than 32 pieces");
+            }
+            if(nibbles % 2 == 0) {
+                packed = in.get() & 0xFF;
+            }
+            int code = nibbles++ % 2 == 0 ? packed >>> 4 : packed & 15;
+            if(code >= SYMBOLS.length()) {
+                throw new IllegalArgumentException("Bad piece code " + code);
+            }
+            mailbox[Long.numberOfTrailingZeros(bits)] = (byte) code;
+            if(code % 6 == Chess.KING) {
+                kings[code / 6]++;
+            }
+        }
+        // Chess keeps track of each side's King, so it cannot play a position without one
+        if(kings[Chess.WHITE] != 1 || kings[Chess.BLACK] != 1) {
+            throw new IllegalArgumentException("Each side needs exactly one King");
+        }
+        in.position(in.position() + 16 - (nibbles + 1) / 2);
+        int flags = in.get() & 0xFF;
+        int ep = in.get() & 0xFF;
+        int halfmoveClock = in.get() & 0xFF;
+        int fullmove = in.getShort() & 0xFFFF;
+        int moves = Math.max(0, fullmove - 1) * 2 + (flags >>> 7);
+        int castling = flags & 15;
+        int epSquare = ep == 255 ? Chess.EMPTY : ep & 63;
+        return new Position(mailbox, moves, castling, epSquare, halfmoveClock,
+                Chess.hashOf(mailbox, moves, castling, epSquare), new long[0], "", 0, false);
+    }
+
+    /**
+     * Writes the packed form from the fields of a position; shared with Chess.pack.
+     * @param out Where to write
+     * @param mailbox Piece code on each square, or Chess.EMPTY
+     * @param moves Plies played since the start of the game
+     * @param castling Castling rights bitmask
+     * @param epSquare En passant square, or Chess.EMPTY
+     * @param halfmoveClock Plies since the last capture or pawn move
+     */
+    static void pack(ByteBuffer out, byte[] mailbox, int moves, int castling, int epSquare,
+            int halfmoveClock) {
+        long occupied = 0;
+        for(int sq = 0; sq < 64; sq++) {
+            if(mailbox[sq] != Chess.EMPTY) {
+                occupied |= 1L << sq;
+            }
+        }
+        out.putLong(occupied);
+        int nibbles = 0;
+        int packed = 0;
+        for(long bits = occupied; bits != 0; bits &= bits - 1) {
+            packed = packed << 4 | mailbox[Long.numberOfTrailingZeros(bits)];
+            if(++nibbles % 2 == 0) {
+                out.put((byte) packed);
+                packed = 0;
+            }
+        }
+        if(nibbles % 2 == 1) {
+            out.put((byte) (packed << 4));
+        }
+        for(int i = (nibbles + 1) / 2; i < 16; i++) {
+            out.put((byte) 0);
+        }
+        out.put((byte) ((moves % 2) << 7 | castling));
+        out.put((byte) (epSquare == Chess.EMPTY ? 255 : epSquare));
+        out.put((byte) Math.min(halfmoveClock, 255));
+        out.putShort((short) (moves / 2 + 1));
+    }
+}
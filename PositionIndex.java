@@ -0,0 +1,777 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+// A class to answer "which games reached this position" from an on-disk index of archived games.
+// The index holds one record per position of every game (hash, game ID, ply, the move played
+// next and the game's result), sorted by hash and stored in blocks of delta and varint encoded
+// records. The file is memory-mapped, and lookups binary search the block index and decode only
+// the blocks holding the hash, so the index never has to fit on the heap.
+//
+// File layout: a 32-byte header (magic, version, record count, block count, records per block,
+// block index offset), the blocks, then the block index (first hash, offset and record count of
+// each block). Numbers are big-endian.
+public class PositionIndex implements Closeable {
+    // Game results, as returned by Chess.getWinner, plus one for unfinished games
+    public static final int DRAW = 0;
+    public static final int WHITE_WINS = 1;
+    public static final int BLACK_WINS = 2;
+    public static final int UNKNOWN = 3;
+
+    private static final int MAGIC = 0x43484958;
+    // Version 2: en passant squares no capture can use are left out of the hash
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 32;
+    private static final int INDEX_ENTRY_BYTES = 20;
+    // Records per block
+    private static final int BLOCK_RECORDS = 256;
+    // Longest encoded record: varint hash delta, game ID, ply and move, then the result byte
+    private static final int MAX_RECORD_BYTES = 10 + 5 + 3 + 3 + 1;
+    // Files are mapped in overlapping segments (a single mapping is limited to 2GB), so that
+    // every block and block index entry lies entirely inside the segment it starts in
+    private static final long SEGMENT_BYTES = 1L << 30;
+    private static final int SEGMENT_OVERLAP = 1 << 16;
+    // Layout of the packed record payload used while building
+    private static final int GAME_SHIFT = 32;
+    private static final int PLY_SHIFT = 18;
+    private static final int MOVE_SHIFT = 3;
+    private static final int MAX_PLY = (1 << (GAME_SHIFT - PLY_SHIFT)) - 1;
+
+    private final MappedByteBuffer[] segments;
+    private final long records;
+    private final int blocks;
+    private final long indexOffset;
+
+    /**
+     * Opens an index file built by a Builder.
+     * @param file The index file
+     * @throws IOException If the file cannot be read
+     * @throws IllegalArgumentException If the file is not a position index
+     */
+    public PositionIndex(Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size < HEADER_BYTES) {
+                throw new IllegalArgumentException("Not a position index: " + file);
+            }
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT_BYTES - 1) / SEGMENT_BYTES)];
+            for(int i = 0; i < segments.length; i++) {
+                long start = i * SEGMENT_BYTES;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(size - start, SEGMENT_BYTES + SEGMENT_OVERLAP));
+            }
+        }
+        ByteBuffer header = segments[0];
+        if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION ||
+                header.getInt(20) != BLOCK_RECORDS) {
+            throw new IllegalArgumentException("Not a position index: " + file);
+        }
+        records = header.getLong(8);
+        blocks = header.getInt(16);
+        indexOffset = header.getLong(24);
+    }
+
+    /**
+     * Retrieves the number of positions in the index.
+     * @return the record count
+     */
+    public long size() {
+        return records;
+    }
+
+    /**
+     * Counts how often a position was reached, over all games.
+     * @param hash The position's hash (see Chess.hash)
+     * @return the number of times it occurred
+     */
+    public long count(long hash) {
+        long[] count = new long[1];
+        scan(hash, (gameId, ply, move, result) -> count[0]++);
+        return count[0];
+    }
+
+    /**
+     * Lists the games that reached a position.
+     * @param hash The position's hash (see Chess.hash)
+     * @param limit Most occurrences to return
+     * @return the occurrences, by game ID and then ply
+     */
+    public List<Occurrence> occurrences(long hash, int limit) {
+        List<Occurrence> out = new ArrayList<>();
+        scan(hash, (gameId, ply, move, result) -> {
+            if(out.size() < limit) {
+                out.add(new Occurrence(gameId, ply, move, result));
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Aggregates the moves played from a position and how the games continuing with each went.
+     * @param hash The position's hash (see Chess.hash)
+     * @return one entry per move, most played first
+     */
+    public List<Continuation> continuations(long hash) {
+        Map<Integer, Continuation> byMove = new HashMap<>();
+        scan(hash, (gameId, ply, move, result) -> {
+            if(move != 0) {
+                byMove.computeIfAbsent(move, Continuation::new).add(result);
+            }
+        });
+        List<Continuation> out = new ArrayList<>(byMove.values());
+        out.sort((a, b) -> Long.compare(b.games, a.games));
+        return out;
+    }
+
+    /**
+     * Releases the index. The mappings are freed once they are garbage collected.
+     */
+    public void close() {
+        Arrays.fill(segments, null);
+    }
+
+    /**
+     * A private helper method to visit every record of a position.
+     * @param hash The position's hash
+     * @param visitor Called once per record
+     */
+    private void scan(long hash, Visitor visitor) {
+        // Records with this hash may start in the last block that begins below it
+        int lo = 0;
+        int hi = blocks - 1;
+        int first = 0;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if(Long.compareUnsigned(readLong(indexOffset + (long) mid * INDEX_ENTRY_BYTES), hash) < 0) {
+                first = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        for(int block = first; block < blocks; block++) {
+            long entry = indexOffset + (long) block * INDEX_ENTRY_BYTES;
+            if(Long.compareUnsigned(readLong(entry), hash) > 0) {
+                return;
+            }
+            long offset = readLong(entry + 8);
+            ByteBuffer segment = segments[(int) (offset / SEGMENT_BYTES)];
+            int[] pos = {(int) (offset % SEGMENT_BYTES)};
+            int count = segment.getInt(pos[0]);
+            pos[0] += 4;
+            long current = 0;
+            int gameId = 0;
+            for(int i = 0; i < count; i++) {
+                long delta = readVarLong(segment, pos);
+                current += delta;
+                gameId = delta == 0 ? gameId + (int) readVarLong(segment, pos)
+                        : (int) readVarLong(segment, pos);
+                int ply = (int) readVarLong(segment, pos);
+                int move = (int) readVarLong(segment, pos);
+                int result = segment.get(pos[0]++);
+                int order = Long.compareUnsigned(current, hash);
+                if(order == 0) {
+                    visitor.visit(gameId, ply, move, result);
+                } else if(order > 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * A private helper method to read a fixed-width number from the file.
+     * @param offset Position in the file
+     * @return the number
+     */
+    private long readLong(long offset) {
+        return segments[(int) (offset / SEGMENT_BYTES)].getLong((int) (offset % SEGMENT_BYTES));
+    }
+
+    /**
+     * A private helper method to read a varint (7 bits per byte, low bits first).
+     * @param buffer Where to read
+     * @param pos Read position, advanced past the varint
+     * @return the number
+     */
+    private static long readVarLong(ByteBuffer buffer, int[] pos) {
+        long value = 0;
+        for(int shift = 0; ; shift += 7) {
+            byte b = buffer.get(pos[0]++);
+            value |= (long) (b & 0x7F) << shift;
+            if(b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Builds or queries an index from the command line.
+     * Usage: java PositionIndex build games.txt index.bin (one game's movetext per line)
+     *        java PositionIndex query index.bin [moves in Algebraic Notation...]
+     * @param args The arguments
+     * @throws IOException If a file cannot be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length >= 3 && args[0].equals("build")) {
+            long start = System.nanoTime();
+            int games = 0;
+            try(Builder builder = new Builder(Paths.get(args[2]).toAbsolutePath().getParent())) {
+                int gameId = 0;
+                for(String line : Files.readAllLines(Paths.get(args[1]))) {
+                    if(!line.isBlank()) {
+                        try {
+                            builder.addGame(gameId, line, parseResult(line));
+                            games++;
+                        } catch(IllegalArgumentException ex) {
+                            System.err.println(ex.getMessage());
+                        }
+                    }
+                    gameId++;
+                }
+                builder.build(Paths.get(args[2]));
+            }
+            System.out.printf("Indexed %d games in %.1fs%n", games, (System.nanoTime() - start) / 1e9);
+        } else if(args.length >= 2 && args[0].equals("query")) {
+            Chess game = new Chess();
+            for(int i = 2; i < args.length; i++) {
+                game.makeMove(args[i]);
+            }
+            try(PositionIndex index = new PositionIndex(Paths.get(args[1]))) {
+                System.out.println(index.count(game.hash()) + " occurrences");
+                for(Continuation continuation : index.continuations(game.hash())) {
+                    System.out.println(continuation);
+                }
+            }
+        } else {
+            System.out.println("Usage: java PositionIndex build <games> <index> | " +
+                    "query <index> [moves...]");
+        }
+    }
+
+    /**
+     * Reads the result at the end of a game's movetext.
+     * @param movetext The moves, optionally followed by 1-0, 0-1, 1/2-1/2 or *
+     * @return WHITE_WINS, BLACK_WINS, DRAW or UNKNOWN
+     */
+    public static int parseResult(String movetext) {
+        String text = movetext.trim();
+        if(text.endsWith("1-0")) {
+            return WHITE_WINS;
+        } else if(text.endsWith("0-1")) {
+            return BLACK_WINS;
+        } else if(text.endsWith("1/2-1/2")) {
+            return DRAW;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Splits a game's movetext into its moves, skipping move numbers, a trailing result
+     * and annotations (!, ?).
+     * @param movetext The moves in Algebraic Notation, separated by spaces
+     * @return the moves
+     */
+    public static List<String> parseMoves(String movetext) {
+        List<String> moves = new ArrayList<>();
+        for(String token : movetext.trim().split("\\s+")) {
+            String move = token.replaceAll("^\\d+\\.+|[!?]+$", "");
+            if(!move.isEmpty() && !move.equals("1-0") && !move.equals("0-1") &&
+                    !move.equals("1/2-1/2") && !move.equals("*")) {
+                moves.add(move);
+            }
+        }
+        return moves;
+    }
+
+    // An interface for the callback of scan
+    private interface Visitor {
+        /**
+         * Handles one record of the position.
+         * @param gameId The game that reached it
+         * @param ply Plies played before it was reached
+         * @param move Move played next, or 0 if the game ended there
+         * @param result WHITE_WINS, BLACK_WINS, DRAW or UNKNOWN
+         */
+        void visit(int gameId, int ply, int move, int result);
+    }
+
+    // A class to represent one game reaching a position
+    public static class Occurrence {
+        public final int gameId;
+        // Plies played before the position was reached
+        public final int ply;
+        // Move played next (see Chess.generateMoves), or 0 if the game ended here
+        public final int move;
+        public final int result;
+
+        /**
+         * Constructs a new Occurrence.
+         * @param gameId The game that reached the position
+         * @param ply Plies played before the position was reached
+         * @param move Move played next, or 0 if the game ended there
+         * @param result The game's result (WHITE_WINS, BLACK_WINS, DRAW or UNKNOWN)
+         */
+        public Occurrence(int gameId, int ply, int move, int result) {
+            this.gameId = gameId;
+            this.ply = ply;
+            this.move = move;
+            this.result = result;
+        }
+
+        /**
+         * Formats the Occurrence.
+         * @return the game and ply
+         */
+        public String toString() {
+            return "game " + gameId + " ply " + ply;
+        }
+    }
+
+    // A class to hold the statistics of one move played from a position
+    public static class Continuation {
+        public final int move;
+        private long games;
+        private long whiteWins;
+        private long draws;
+        private long blackWins;
+
+        /**
+         * Constructs a new Continuation with no games counted yet.
+         * @param move The move (see Chess.generateMoves)
+         */
+        public Continuation(int move) {
+            this.move = move;
+        }
+
+        /**
+         * A private helper method to count one more game.
+         * @param result The game's result
+         */
+        private void add(int result) {
+            games++;
+            if(result == WHITE_WINS) {
+                whiteWins++;
+            } else if(result == BLACK_WINS) {
+                blackWins++;
+            } else if(result == DRAW) {
+                draws++;
+            }
+        }
+
+        /**
+         * Retrieves the number of games that played the move.
+         * @return the game count
+         */
+        public long games() {
+            return games;
+        }
+
+        /**
+         * Retrieves the number of those games that White won.
+         * @return the win count
+         */
+        public long whiteWins() {
+            return whiteWins;
+        }
+
+        /**
+         * Retrieves the number of those games that were drawn.
+         * @return the draw count
+         */
+        public long draws() {
+            return draws;
+        }
+
+        /**
+         * Retrieves the number of those games that Black won.
+         * @return the win count
+         */
+        public long blackWins() {
+            return blackWins;
+        }
+
+        /**
+         * Formats the Continuation.
+         * @return the move and its game, win, draw and loss counts
+         */
+        public String toString() {
+            return String.format("%-6s %d games, +%d =%d -%d", Chess.moveName(move), games,
+                    whiteWins, draws, blackWins);
+        }
+    }
+
+    // A class to build an index file from games. Positions are collected in sorted runs that
+    // are spilled to temporary files once a chunk fills up, then merged into the index, so
+    // archives larger than the heap can be indexed.
+    public static class Builder implements Closeable {
+        private static final int DEFAULT_CHUNK = 1 << 22;
+
+        private final Path tempDir;
+        private final long[] hashes;
+        private final long[] payloads;
+        private final List<Path> runs;
+        private int size;
+
+        /**
+         * Constructs a new Builder.
+         * @param tempDir Where to put the sorted runs
+         */
+        public Builder(Path tempDir) {
+            this(tempDir, DEFAULT_CHUNK);
+        }
+
+        /**
+         * Constructs a new Builder.
+         * @param tempDir Where to put the sorted runs
+         * @param chunkRecords Positions to sort in memory before spilling a run
+         */
+        public Builder(Path tempDir, int chunkRecords) {
+            this.tempDir = tempDir;
+            hashes = new long[chunkRecords];
+            payloads = new long[chunkRecords];
+            runs = new ArrayList<>();
+        }
+
+        /**
+         * Replays a game from the standard start position and records every position in it.
+         * Move numbers, a trailing result and annotations (!, ?) are skipped.
+         * @param gameId Non-negative ID to report the game by
+         * @param movetext The game's moves in Algebraic Notation, separated by spaces
+         * @param result WHITE_WINS, BLACK_WINS, DRAW or UNKNOWN
+         * @throws IOException If a run cannot be spilled
+         * @throws IllegalArgumentException If a move is illegal; nothing of the game is recorded
+         */
+        public void addGame(int gameId, String movetext, int result) throws IOException {
+            if(gameId < 0 || result < DRAW || result > UNKNOWN) {
+                throw new IllegalArgumentException("Bad game ID or result for game " + gameId);
+            }
+            List<String> moves = parseMoves(movetext);
+            if(moves.size() > MAX_PLY) {
+                throw new IllegalArgumentException("Game " + gameId + " is too long");
+            }
+            // Replay everything first so that an illegal move leaves no partial game behind
+            Chess game = new Chess();
+            long[] gameHashes = new long[moves.size() + 1];
+            int[] gameMoves = new int[moves.size() + 1];
+            for(int ply = 0; ply < moves.size(); ply++) {
+                gameHashes[ply] = game.hash();
+                int last = game.lastMove();
+                try {
+                    game.makeMove(moves.get(ply));
+                } catch(IllegalArgumentException ex) {
+                    throw new IllegalArgumentException("Game " + gameId + ", move " + moves.get(ply) +
+                            ": " + ex.getMessage());
+                }
+                if(game.lastMove() == last) {
+                    throw new IllegalArgumentException("Game " + gameId + ": " + moves.get(ply) +
+                            " is not a move");
+                }
+                gameMoves[ply] = game.lastMove();
+            }
+            gameHashes[moves.size()] = game.hash();
+            for(int ply = 0; ply <= moves.size(); ply++) {
+                if(size == hashes.length) {
+                    spill();
+                }
+                hashes[size] = gameHashes[ply];
+                payloads[size++] = (long) gameId << GAME_SHIFT | (long) ply << PLY_SHIFT |
+                        (long) gameMoves[ply] << MOVE_SHIFT | result;
+            }
+        }
+
+        /**
+         * Merges everything recorded so far into an index file.
+         * @param out The index file to write
+         * @throws IOException If the file cannot be written
+         */
+        public void build(Path out) throws IOException {
+            spill();
+            PriorityQueue<Run> queue = new PriorityQueue<>((a, b) -> {
+                int order = Long.compareUnsigned(a.hash, b.hash);
+                return order != 0 ? order : Long.compare(a.payload, b.payload);
+            });
+            try {
+                for(Path path : runs) {
+                    Run run = new Run(path);
+                    if(run.next()) {
+                        queue.add(run);
+                    } else {
+                        run.close();
+                    }
+                }
+                long[] blockHashes = new long[16];
+                long[] blockOffsets = new long[16];
+                int[] blockCounts = new int[16];
+                int blockCount = 0;
+                long total = 0;
+                try(CountingOutput output = new CountingOutput(out)) {
+                    output.data.write(new byte[HEADER_BYTES]);
+                    byte[] block = new byte[4 + BLOCK_RECORDS * MAX_RECORD_BYTES];
+                    int length = 4;
+                    int inBlock = 0;
+                    long previous = 0;
+                    int previousGame = 0;
+                    while(!queue.isEmpty()) {
+                        Run run = queue.poll();
+                        long hash = run.hash;
+                        long payload = run.payload;
+                        if(run.next()) {
+                            queue.add(run);
+                        } else {
+                            run.close();
+                        }
+                        if(inBlock == 0) {
+                            if(blockCount == blockHashes.length) {
+                                blockHashes = Arrays.copyOf(blockHashes, blockCount * 2);
+                                blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+                                blockCounts = Arrays.copyOf(blockCounts, blockCount * 2);
+                            }
+                            blockHashes[blockCount] = hash;
+                            blockOffsets[blockCount] = output.written;
+                            previous = 0;
+                            previousGame = 0;
+                        }
+                        int gameId = (int) (payload >>> GAME_SHIFT);
+                        long delta = hash - previous;
+                        length = writeVarLong(block, length, delta);
+                        length = writeVarLong(block, length, delta == 0 ? gameId - previousGame : gameId);
+                        length = writeVarLong(block, length, (payload >>> PLY_SHIFT) & MAX_PLY);
+                        length = writeVarLong(block, length, (payload >>> MOVE_SHIFT) & 0x7FFF);
+                        block[length++] = (byte) (payload & 7);
+                        previous = hash;
+                        previousGame = gameId;
+                        total++;
+                        if(++inBlock == BLOCK_RECORDS || queue.isEmpty()) {
+                            ByteBuffer.wrap(block).putInt(0, inBlock);
+                            output.data.write(block, 0, length);
+                            output.written += length;
+                            blockCounts[blockCount++] = inBlock;
+                            length = 4;
+                            inBlock = 0;
+                        }
+                    }
+                    long indexOffset = output.written;
+                    for(int i = 0; i < blockCount; i++) {
+                        output.data.writeLong(blockHashes[i]);
+                        output.data.writeLong(blockOffsets[i]);
+                        output.data.writeInt(blockCounts[i]);
+                    }
+                    // Padding, so that reads near the end stay inside the last mapped segment
+                    output.data.write(new byte[8]);
+                    output.data.flush();
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                    header.putInt(MAGIC).putInt(VERSION).putLong(total).putInt(blockCount)
+                            .putInt(BLOCK_RECORDS).putLong(indexOffset).flip();
+                    output.channel.write(header, 0);
+                }
+            } finally {
+                for(Run run : queue) {
+                    run.close();
+                }
+                close();
+            }
+        }
+
+        /**
+         * Deletes the temporary runs.
+         * @throws IOException If a run cannot be deleted
+         */
+        public void close() throws IOException {
+            for(Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+            runs.clear();
+            size = 0;
+        }
+
+        /**
+         * A private helper method to sort the positions in memory and write them out as a run.
+         * @throws IOException If the run cannot be written
+         */
+        private void spill() throws IOException {
+            if(size == 0) {
+                return;
+            }
+            sort(0, size - 1);
+            Path run = Files.createTempFile(tempDir, "positions", ".run");
+            runs.add(run);
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(run), 1 << 16))) {
+                for(int i = 0; i < size; i++) {
+                    out.writeLong(hashes[i]);
+                    out.writeLong(payloads[i]);
+                }
+            }
+            size = 0;
+        }
+
+        /**
+         * A private helper method to quicksort positions by unsigned hash, then payload.
+         * @param lo First index to sort
+         * @param hi Last index to sort
+         */
+        private void sort(int lo, int hi) {
+            while(hi - lo > 16) {
+                int mid = (lo + hi) >>> 1;
+                long pivotHash = hashes[mid];
+                long pivotPayload = payloads[mid];
+                int i = lo;
+                int j = hi;
+                while(i <= j) {
+                    while(compare(i, pivotHash, pivotPayload) < 0) {
+                        i++;
+                    }
+                    while(compare(j, pivotHash, pivotPayload) > 0) {
+                        j--;
+                    }
+                    if(i <= j) {
+                        swap(i++, j--);
+                    }
+                }
+                // Recurse into the smaller side to bound the stack depth
+                if(j - lo < hi - i) {
+                    sort(lo, j);
+                    lo = i;
+                } else {
+                    sort(i, hi);
+                    hi = j;
+                }
+            }
+            for(int i = lo + 1; i <= hi; i++) {
+                for(int j = i; j > lo && compare(j - 1, hashes[j], payloads[j]) > 0; j--) {
+                    swap(j - 1, j);
+                }
+            }
+        }
+
+        /**
+         * A private helper method to compare a buffered position with another one,
+         * by unsigned hash, then payload.
+         * @param i Index of the buffered position
+         * @param hash The other position's hash
+         * @param payload The other position's payload
+         * @return a negative number, zero or a positive number as the buffered position
+         *         sorts first, equal or last
+         */
+        private int compare(int i, long hash, long payload) {
+            int order = Long.compareUnsigned(hashes[i], hash);
+            return order != 0 ? order : Long.compare(payloads[i], payload);
+        }
+
+        /**
+         * A private helper method to exchange two buffered positions.
+         * @param i Index of the first
+         * @param j Index of the second
+         */
+        private void swap(int i, int j) {
+            long hash = hashes[i];
+            hashes[i] = hashes[j];
+            hashes[j] = hash;
+            long payload = payloads[i];
+            payloads[i] = payloads[j];
+            payloads[j] = payload;
+        }
+
+        /**
+         * A private helper method to write a varint (7 bits per byte, low bits first).
+         * @param buffer Where to write
+         * @param pos Write position
+         * @param value The number, treated as unsigned
+         * @return the position after the varint
+         */
+        private static int writeVarLong(byte[] buffer, int pos, long value) {
+            while((value & ~0x7FL) != 0) {
+                buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[pos++] = (byte) value;
+            return pos;
+        }
+    }
+
+    // A class to read back one sorted run during the merge
+    private static class Run implements Closeable {
+        private final DataInputStream in;
+        private long hash;
+        private long payload;
+
+        /**
+         * Constructs a new Run.
+         * @param path The run's temporary file
+         * @throws IOException If the file cannot be opened
+         */
+        private Run(Path path) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+        }
+
+        /**
+         * Reads the next position of the run.
+         * @return false once the run is exhausted
+         * @throws IOException If the run cannot be read
+         */
+        private boolean next() throws IOException {
+            try {
+                hash = in.readLong();
+                payload = in.readLong();
+                return true;
+            } catch(EOFException ex) {
+                return false;
+            }
+        }
+
+        /**
+         * Closes the run's file.
+         * @throws IOException If it cannot be closed
+         */
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // A class to stream the index file while counting the bytes written, then patch its header
+    private static class CountingOutput implements Closeable {
+        private final FileChannel channel;
+        private final DataOutputStream data;
+        private long written;
+
+        /**
+         * Constructs a new CountingOutput, positioned just after the header.
+         * @param file The index file, created or truncated
+         * @throws IOException If the file cannot be opened
+         */
+        private CountingOutput(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            data = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel), 1 << 16));
+            written = HEADER_BYTES;
+        }
+
+        /**
+         * Flushes and closes the index file.
+         * @throws IOException If it cannot be written or closed
+         */
+        public void close() throws IOException {
+            data.close();
+        }
+    }
+}
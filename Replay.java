@@ -0,0 +1,188 @@
+import java.nio.ByteBuffer;
+
+// A class to step through a recorded game, such as in a review UI that jumps to any ply.
+// The moves are kept along with a snapshot of every interval-th position, packed by
+// Position.pack (29 bytes each). Seeking restores the nearest snapshot at or before the target
+// and plays fewer than interval moves from it; stepping to a nearby ply just plays or takes back
+// the moves in between. Stepping backward takes moves back, except once every interval plies,
+// where it passes the snapshot the board was restored from.
+//
+// A board restored from a snapshot knows nothing of the plies before it, so it does not detect
+// repetitions of positions from before the snapshot.
+public class Replay {
+    public static final int DEFAULT_INTERVAL = 16;
+    // Rough cost of restoring a snapshot, in moves played or taken back
+    private static final int RESTORE_COST = 4;
+
+    private final int interval;
+    private final int[] moves;
+    private final byte[] snapshots;
+    // Board at the current ply, and the ply it was restored at (it can take moves back to there)
+    private Chess board;
+    private int base;
+    private int ply;
+
+    /**
+     * Constructs a new Replay of a game from the standard start position.
+     * @param preMoves The game's moves, as makeMove reads them
+     * @throws IllegalArgumentException If a move cannot be played
+     */
+    public Replay(String[] preMoves) {
+        this(null, parse(preMoves), DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Constructs a new Replay of a game read from a GameArchive.
+     * @param game The game
+     */
+    public Replay(GameArchive.Game game) {
+        this(game.start, game.getMoves(), DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Constructs a new Replay, positioned at the start of the game.
+     * @param start The start position, or null for the standard one
+     * @param moves The encoded moves (see Chess.generateMoves)
+     * @param interval Plies between snapshots; larger saves memory, smaller makes seeking faster
+     * @throws IllegalArgumentException If interval is less than 1, or a move is illegal
+     */
+    public Replay(Position start, int[] moves, int interval) {
+        if(interval < 1) {
+            throw new IllegalArgumentException("Interval must be positive");
+        }
+        this.interval = interval;
+        this.moves = moves.clone();
+        ByteBuffer packed = ByteBuffer.allocate((moves.length / interval + 1) * Position.PACKED_BYTES);
+        board = start == null ? new Chess() : new Chess(start);
+        int[] legal = board.moveBuffer();
+        for(int i = 0; i <= moves.length; i++) {
+            if(i % interval == 0) {
+                board.pack(packed);
+            }
+            if(i < moves.length) {
+                int n = board.generateMoves(legal);
+                boolean found = false;
+                for(int j = 0; j < n; j++) {
+                    found |= legal[j] == moves[i];
+                }
+                if(!found) {
+                    throw new IllegalArgumentException("Illegal move " + Chess.moveName(moves[i]) + " at ply " + i);
+                }
+                board.doMove(moves[i]);
+            }
+        }
+        snapshots = packed.array();
+        ply = moves.length;
+        seek(0);
+    }
+
+    /**
+     * Retrieves the number of plies in the game.
+     * @return the ply count
+     */
+    public int length() {
+        return moves.length;
+    }
+
+    /**
+     * Retrieves the current ply: 0 at the start position, length() at the end.
+     * @return the ply
+     */
+    public int getPly() {
+        return ply;
+    }
+
+    /**
+     * Retrieves a move of the game.
+     * @param ply The ply the move is played at, from 0
+     * @return the encoded move, played from the position at ply
+     * @throws IllegalArgumentException If ply is outside the game
+     */
+    public int getMove(int ply) {
+        if(ply < 0 || ply >= moves.length) {
+            throw new IllegalArgumentException("No move at ply " + ply);
+        }
+        return moves[ply];
+    }
+
+    /**
+     * Retrieves the board at the current ply. It belongs to the Replay and changes as the
+     * Replay moves, and may be replaced by another board on a seek; copy it to keep a position.
+     * @return the board
+     */
+    public Chess getBoard() {
+        return board;
+    }
+
+    /**
+     * Moves to a ply, by playing or taking back moves from the current ply, or from the
+     * nearest snapshot if that is cheaper.
+     * @param target The ply, from 0 to length()
+     * @return the board at that ply (see getBoard)
+     * @throws IllegalArgumentException If target is outside the game
+     */
+    public Chess seek(int target) {
+        if(target < 0 || target > moves.length) {
+            throw new IllegalArgumentException("No ply " + target + " in a game of " + moves.length);
+        }
+        int snapshot = target / interval * interval;
+        if(target < base || Math.abs(target - ply) > RESTORE_COST + target - snapshot) {
+            ByteBuffer in = ByteBuffer.wrap(snapshots, snapshot / interval * Position.PACKED_BYTES,
+                    Position.PACKED_BYTES);
+            board = new Chess(Position.unpack(in));
+            base = snapshot;
+            ply = snapshot;
+        }
+        while(ply > target) {
+            board.undoMove();
+            ply--;
+        }
+        while(ply < target) {
+            board.doMove(moves[ply++]);
+        }
+        return board;
+    }
+
+    /**
+     * Plays the next move.
+     * @return the board (see getBoard)
+     * @throws IllegalStateException If already at the end of the game
+     */
+    public Chess forward() {
+        if(ply == moves.length) {
+            throw new IllegalStateException("Already at the end of the game");
+        }
+        return seek(ply + 1);
+    }
+
+    /**
+     * Takes back the last move.
+     * @return the board (see getBoard)
+     * @throws IllegalStateException If already at the start of the game
+     */
+    public Chess back() {
+        if(ply == 0) {
+            throw new IllegalStateException("Already at the start of the game");
+        }
+        return seek(ply - 1);
+    }
+
+    /**
+     * A private helper method to turn typed moves into encoded ones.
+     * @param preMoves The moves, as makeMove reads them
+     * @return the encoded moves
+     */
+    private static int[] parse(String[] preMoves) {
+        Chess game = new Chess();
+        int[] moves = new int[preMoves.length];
+        for(int i = 0; i < preMoves.length; i++) {
+            int last = game.lastMove();
+            game.makeMove(preMoves[i]);
+            if(game.lastMove() == last) {
+                throw new IllegalArgumentException(preMoves[i] + " is not a move");
+            }
+            moves[i] = game.lastMove();
+        }
+        return moves;
+    }
+}
@@ -0,0 +1,809 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// A class to search Chess positions for the best move, using iterative deepening alpha-beta
+// with a transposition table and a quiescence search over captures.
+// After every iteration, statistics are passed to each Listener and emitted as a JFR event.
+// In multi-PV mode, each iteration searches the root again without the moves of the lines
+// already found, so the Listeners hear about the best few moves at every depth.
+public class Search {
+    // Score for delivering checkmate right away; mates further away score lower
+    public static final int MATE = 32000;
+    // Deepest line the search will follow, quiescence included
+    public static final int MAX_PLY = 128;
+    private static final int INFINITY = MATE + 1;
+    // Material values, indexed by piece type
+    private static final int[] VALUES = {0, 900, 500, 320, 330, 100};
+    // Bonus for pieces near the center and for advanced pawns, indexed by White's square
+    private static final int[] CENTER = new int[64];
+    private static final int[] PAWN_ADVANCE = {0, 0, 5, 10, 20, 35, 60, 0};
+    static {
+        for(int sq = 0; sq < 64; sq++) {
+            int file = Math.min(sq % 8, 7 - sq % 8);
+            int rank = Math.min(sq / 8, 7 - sq / 8);
+            CENTER[sq] = 4 * Math.min(file, rank) + 2 * (file + rank);
+        }
+    }
+    // Transposition table bounds
+    private static final int EXACT = 0;
+    private static final int LOWER = 1;
+    private static final int UPPER = 2;
+    // Pawn structures cached by each Search
+    private static final int PAWN_ENTRIES = 1 << 14;
+
+    // Transposition table: the full hash of each slot's position, and its packed entry
+    // (move in bits 0-15, score in bits 16-31, depth in bits 32-39, bound in bits 40-41)
+    private final long[] ttKeys;
+    private final long[] ttData;
+    private final int ttMask;
+    private final List<Listener> listeners;
+    // Cached pawn structure scores for the built-in evaluation
+    private final PawnTable pawns;
+    // Principal variation found at each ply, as a triangular table
+    private final int[][] pvTable;
+    private final int[] pvLength;
+    // Move ordering scores of the moves at each ply
+    private final int[][] orderScores;
+
+    private Evaluator evaluator;
+    // Lines to find at every depth, and the first moves of those found so far at this depth
+    private int multiPV;
+    private final int[] excluded;
+    private int excludedCount;
+    private Chess game;
+    private volatile boolean stopped;
+    private boolean aborted;
+    private long deadline;
+    private long nodeLimit;
+    private long nodes;
+    private int seldepth;
+    private long ttProbes;
+    private long ttHits;
+    private long cutoffs;
+    private long firstMoveCutoffs;
+    private int bestMove;
+    private int score;
+    private int[] principal;
+    // Depth of the iteration that score and principal come from
+    private int completedDepth;
+
+    /**
+     * Constructs a new Search with a 16MB transposition table.
+     */
+    public Search() {
+        this(16);
+    }
+
+    /**
+     * Constructs a new Search.
+     * @param megabytes Size of the transposition table, rounded down to a power of two entries
+     */
+    public Search(int megabytes) {
+        int entries = Integer.highestOneBit(Math.max(1, (int) Math.min(1 << 30,
+                (long) megabytes * (1 << 20) / 16)));
+        ttKeys = new long[entries];
+        ttData = new long[entries];
+        ttMask = entries - 1;
+        listeners = new ArrayList<>();
+        pawns = new PawnTable(PAWN_ENTRIES);
+        pvTable = new int[MAX_PLY + 1][MAX_PLY + 1];
+        pvLength = new int[MAX_PLY + 1];
+        orderScores = new int[MAX_PLY + 1][Chess.MAX_MOVES];
+        principal = new int[0];
+        multiPV = 1;
+        excluded = new int[Chess.MAX_MOVES];
+    }
+
+    /**
+     * Registers a Listener to receive the statistics of every iteration.
+     * @param listener The listener
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Unregisters a Listener.
+     * @param listener The listener
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Replaces the built-in static evaluation, which counts material and piece placement.
+     * @param evaluator The evaluation to use, or null for the built-in one
+     */
+    public void setEvaluator(Evaluator evaluator) {
+        this.evaluator = evaluator;
+    }
+
+    /**
+     * Sets how many lines to search at every depth. With more than one, each Listener is
+     * called once per line and iteration, best line first; the result of the search and
+     * getScore() and getPrincipalVariation() still describe the best line.
+     * @param lines Number of lines, at least 1
+     * @throws IllegalArgumentException If lines is less than 1
+     */
+    public void setMultiPV(int lines) {
+        if(lines < 1) {
+            throw new IllegalArgumentException("At least one line is needed");
+        }
+        multiPV = Math.min(lines, Chess.MAX_MOVES);
+    }
+
+    /**
+     * Retrieves how many lines are searched at every depth (see setMultiPV).
+     * @return the number of lines
+     */
+    public int getMultiPV() {
+        return multiPV;
+    }
+
+    /**
+     * Searches the current position of a game, deepening one ply at a time until a limit
+     * is reached. The game is left in the position it started in.
+     * @param game The game to search
+     * @param maxDepth Deepest iteration to run
+     * @param maxNodes Node budget, or 0 for none
+     * @param maxMillis Time budget in milliseconds, or 0 for none
+     * @return the best move found, encoded as by Chess.generateMoves,
+     *         or 0 if the player to move has no legal moves
+     */
+    public int search(Chess game, int maxDepth, long maxNodes, long maxMillis) {
+        long start = System.nanoTime();
+        prepare(game, maxNodes > 0 ? maxNodes : Long.MAX_VALUE,
+                maxMillis > 0 ? start + maxMillis * 1_000_000 : Long.MAX_VALUE);
+        long previousNodes = 0;
+        for(int depth = 1; depth <= Math.min(maxDepth, MAX_PLY) && !aborted; depth++) {
+            IterationEvent event = new IterationEvent();
+            event.begin();
+            long startNodes = nodes;
+            Stats stats = null;
+            for(excludedCount = 0; excludedCount < multiPV; excludedCount++) {
+                seldepth = 0;
+                int value = negamax(-INFINITY, INFINITY, depth, 0);
+                if(aborted || pvLength[0] == 0) {
+                    // Stopped, or every root move already has its line
+                    if(!aborted && excludedCount == 0) {
+                        // The game is over at the root
+                        score = value;
+                    }
+                    break;
+                }
+                int[] line = Arrays.copyOf(pvTable[0], pvLength[0]);
+                excluded[excludedCount] = line[0];
+                if(excludedCount == 0) {
+                    score = value;
+                    principal = line;
+                    bestMove = line[0];
+                    completedDepth = depth;
+                }
+                long iterationNodes = nodes - startNodes;
+                stats = new Stats(depth, seldepth, nodes, System.nanoTime() - start,
+                        ttProbes == 0 ? 0.0 : (double) ttHits / ttProbes,
+                        cutoffs == 0 ? 0.0 : (double) firstMoveCutoffs / cutoffs,
+                        previousNodes == 0 ? 0.0 : (double) iterationNodes / previousNodes,
+                        value, line, excludedCount + 1);
+                for(Listener listener : listeners) {
+                    listener.iterationFinished(stats);
+                }
+            }
+            excludedCount = 0;
+            if(stats == null) {
+                break;
+            }
+            previousNodes = nodes - startNodes;
+            if(event.shouldCommit()) {
+                event.depth = depth;
+                event.seldepth = seldepth;
+                event.nodes = nodes;
+                event.nps = stats.getNodesPerSecond();
+                event.ttHitRate = stats.getTTHitRate();
+                event.firstMoveCutoffRate = stats.getFirstMoveCutoffRate();
+                event.branchingFactor = stats.getBranchingFactor();
+                event.pawnHitRate = pawns.getHitRate();
+                event.score = score;
+                event.bestMove = Chess.moveName(bestMove);
+                event.commit();
+            }
+        }
+        if(bestMove == 0) {
+            // Not even the first iteration finished, so fall back on any legal move
+            int[] moves = game.moveBuffer();
+            if(game.generateMoves(moves) > 0) {
+                bestMove = moves[0];
+            }
+        }
+        return bestMove;
+    }
+
+    /**
+     * Scores the current position of a game by quiescence search alone: the static evaluation,
+     * refined by the captures and promotions that follow (or every reply, when in check). Like
+     * a search of depth 0, it plays no quiet moves. getScore and getNodes then describe it, and
+     * getPrincipalVariation is empty.
+     * @param game The game to score; it is left in the position it started in
+     * @return the score in centipawns for the player to move, or near +/-MATE for mates
+     */
+    public int quiescence(Chess game) {
+        prepare(game, Long.MAX_VALUE, Long.MAX_VALUE);
+        seldepth = 0;
+        score = quiesce(-INFINITY, INFINITY, 0);
+        return score;
+    }
+
+    /**
+     * Asks a running search to stop as soon as possible. Safe to call from any thread.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Empties the transposition table and the pawn structure cache.
+     */
+    public void clear() {
+        Arrays.fill(ttKeys, 0L);
+        Arrays.fill(ttData, 0L);
+        pawns.clear();
+    }
+
+    /**
+     * Retrieves the score of the last completed iteration.
+     * @return the score in centipawns for the player to move, or near +/-MATE for mates
+     */
+    public int getScore() {
+        return score;
+    }
+
+    /**
+     * Retrieves the principal variation of the last completed iteration.
+     * @return the expected line of encoded moves, starting with the best move
+     */
+    public int[] getPrincipalVariation() {
+        return principal.clone();
+    }
+
+    /**
+     * Retrieves the depth of the last completed iteration.
+     * @return the depth, or 0 if not even the first iteration finished
+     */
+    public int getDepth() {
+        return completedDepth;
+    }
+
+    /**
+     * Retrieves the number of nodes visited by the last search.
+     * @return the node count
+     */
+    public long getNodes() {
+        return nodes;
+    }
+
+    /**
+     * A private helper method to reset the limits, counters and results before a search.
+     * @param game The game to search
+     * @param maxNodes Node budget
+     * @param deadline System.nanoTime() at which to stop
+     */
+    private void prepare(Chess game, long maxNodes, long deadline) {
+        this.game = game;
+        stopped = false;
+        aborted = false;
+        this.deadline = deadline;
+        nodeLimit = maxNodes;
+        nodes = 0;
+        ttProbes = 0;
+        ttHits = 0;
+        cutoffs = 0;
+        firstMoveCutoffs = 0;
+        bestMove = 0;
+        score = 0;
+        principal = new int[0];
+        completedDepth = 0;
+    }
+
+    /**
+     * A private helper method implementing the alpha-beta search.
+     * @param alpha Score the player to move is already guaranteed
+     * @param beta Score the opponent is already guaranteed (negated)
+     * @param depth Remaining depth in plies
+     * @param ply Distance from the root
+     * @return the score of the position for the player to move
+     */
+    private int negamax(int alpha, int beta, int depth, int ply) {
+        pvLength[ply] = 0;
+        if(depth <= 0) {
+            return quiesce(alpha, beta, ply);
+        }
+        if(countNode()) {
+            return 0;
+        }
+        if(ply > 0 && (game.halfmoveClock() >= 100 || game.isRepetition() || game.insufficientMaterial())) {
+            return 0;
+        }
+        if(ply >= MAX_PLY) {
+            return evaluate();
+        }
+        boolean inCheck = game.inCheck();
+        long key = game.hash();
+        int slot = (int) key & ttMask;
+        int ttMove = 0;
+        ttProbes++;
+        if(ttKeys[slot] == key) {
+            ttHits++;
+            long data = ttData[slot];
+            ttMove = (int) (data & 0xFFFF);
+            int ttScore = fromTT((short) (data >>> 16), ply);
+            int bound = (int) (data >>> 40) & 3;
+            if(ply > 0 && (int) ((data >>> 32) & 0xFF) >= depth &&
+                    (bound == EXACT || (bound == LOWER && ttScore >= beta) ||
+                    (bound == UPPER && ttScore <= alpha))) {
+                return ttScore;
+            }
+        }
+
+        int[] moves = game.moveBuffer();
+        int n = game.generateMoves(moves);
+        if(n == 0) {
+            return inCheck ? -MATE + ply : 0;
+        }
+        scoreMoves(moves, n, ttMove, ply);
+        int originalAlpha = alpha;
+        int best = -INFINITY;
+        int bestHere = 0;
+        for(int i = 0; i < n; i++) {
+            int move = pickMove(moves, n, i, ply);
+            if(ply == 0 && isExcluded(move)) {
+                continue;
+            }
+            game.doMove(move);
+            int value = -negamax(-beta, -alpha, depth - 1, ply + 1);
+            game.undoMove();
+            if(aborted) {
+                return 0;
+            }
+            if(value > best) {
+                best = value;
+                bestHere = move;
+                if(value > alpha) {
+                    alpha = value;
+                    updatePV(move, ply);
+                    if(alpha >= beta) {
+                        cutoffs++;
+                        if(i == 0) {
+                            firstMoveCutoffs++;
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+        if(ply == 0 && excludedCount > 0) {
+            // Not the true score of the root, so keep it out of the table
+            return best;
+        }
+        int bound = best >= beta ? LOWER : best > originalAlpha ? EXACT : UPPER;
+        ttKeys[slot] = key;
+        ttData[slot] = (bestHere & 0xFFFFL) | (toTT(best, ply) & 0xFFFFL) << 16 |
+                (long) Math.min(depth, 255) << 32 | (long) bound << 40;
+        return best;
+    }
+
+    /**
+     * A private helper method to search captures until the position is quiet, so that
+     * the evaluation is never taken in the middle of an exchange.
+     * @param alpha Score the player to move is already guaranteed
+     * @param beta Score the opponent is already guaranteed (negated)
+     * @param ply Distance from the root
+     * @return the score of the position for the player to move
+     */
+    private int quiesce(int alpha, int beta, int ply) {
+        if(countNode()) {
+            return 0;
+        }
+        seldepth = Math.max(seldepth, ply);
+        if(ply >= MAX_PLY) {
+            return evaluate();
+        }
+        boolean inCheck = game.inCheck();
+        int best = -INFINITY;
+        if(!inCheck) {
+            // Standing pat: the player to move may decline every capture
+            best = evaluate();
+            if(best >= beta) {
+                return best;
+            }
+            alpha = Math.max(alpha, best);
+        }
+        int[] moves = game.moveBuffer();
+        int n = game.generateMoves(moves);
+        if(n == 0) {
+            return inCheck ? -MATE + ply : 0;
+        }
+        scoreMoves(moves, n, 0, ply);
+        for(int i = 0; i < n; i++) {
+            int move = pickMove(moves, n, i, ply);
+            if(!inCheck && orderScores[ply][i] <= 0) {
+                // Moves are sorted, so only quiet moves remain
+                break;
+            }
+            game.doMove(move);
+            int value = -quiesce(-beta, -alpha, ply + 1);
+            game.undoMove();
+            if(aborted) {
+                return 0;
+            }
+            if(value > best) {
+                best = value;
+                if(value > alpha) {
+                    alpha = value;
+                    if(alpha >= beta) {
+                        break;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * A private helper method to count a node and check the search limits.
+     * @return true if the search must abort
+     */
+    private boolean countNode() {
+        nodes++;
+        if(nodes >= nodeLimit ||
+                ((nodes & 1023) == 0 && (stopped || System.nanoTime() > deadline))) {
+            aborted = true;
+        }
+        return aborted;
+    }
+
+    /**
+     * A private helper method to give every move an ordering score: the transposition table
+     * move first, then captures and promotions by value, then quiet moves.
+     * @param moves The moves
+     * @param n Number of moves
+     * @param ttMove Best move stored in the transposition table, or 0
+     * @param ply Distance from the root
+     */
+    private void scoreMoves(int[] moves, int n, int ttMove, int ply) {
+        int[] scores = orderScores[ply];
+        for(int i = 0; i < n; i++) {
+            int move = moves[i];
+            int s = 0;
+            if(move == ttMove) {
+                s = 1 << 20;
+            } else if(game.isCapture(move)) {
+                int victim = game.pieceAt(Chess.moveTo(move));
+                int attacker = game.pieceAt(Chess.moveFrom(move)) % 6;
+                // Most valuable victim first, then least valuable attacker
+                s = 1000 + VALUES[victim < 0 ? Chess.PAWN : victim % 6] - VALUES[attacker] / 100;
+            }
+            int promo = (move >>> 12) & 7;
+            if(promo != 0) {
+                s += VALUES[promo];
+            }
+            scores[i] = s;
+        }
+    }
+
+    /**
+     * A private helper method to bring the best remaining move to index i (one step of a
+     * selection sort, so moves after a cutoff are never sorted).
+     * @param moves The moves
+     * @param n Number of moves
+     * @param i Index to fill
+     * @param ply Distance from the root
+     * @return the move now at index i
+     */
+    private int pickMove(int[] moves, int n, int i, int ply) {
+        int[] scores = orderScores[ply];
+        int best = i;
+        for(int j = i + 1; j < n; j++) {
+            if(scores[j] > scores[best]) {
+                best = j;
+            }
+        }
+        int move = moves[best];
+        moves[best] = moves[i];
+        moves[i] = move;
+        int s = scores[best];
+        scores[best] = scores[i];
+        scores[i] = s;
+        return move;
+    }
+
+    /**
+     * A private helper method to extend the principal variation with a new best move.
+     * @param move The best move at this ply
+     * @param ply Distance from the root
+     */
+    private void updatePV(int move, int ply) {
+        pvTable[ply][0] = move;
+        System.arraycopy(pvTable[ply + 1], 0, pvTable[ply], 1, pvLength[ply + 1]);
+        pvLength[ply] = pvLength[ply + 1] + 1;
+    }
+
+    /**
+     * A private helper method to check if a root move already has its line at this depth.
+     * @param move The encoded move
+     * @return true if the move is to be skipped
+     */
+    private boolean isExcluded(int move) {
+        for(int i = 0; i < excludedCount; i++) {
+            if(excluded[i] == move) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A private helper method to evaluate the current position statically.
+     * @return the score in centipawns for the player to move
+     */
+    private int evaluate() {
+        if(evaluator != null) {
+            return evaluator.evaluate(game);
+        }
+        int total = pawns.evaluate(game);
+        for(int color = Chess.WHITE; color <= Chess.BLACK; color++) {
+            int sign = color == Chess.WHITE ? 1 : -1;
+            // Flip Black's squares vertically to look them up from White's side
+            int flip = color == Chess.WHITE ? 0 : 56;
+            for(int type = Chess.QUEEN; type <= Chess.PAWN; type++) {
+                long pieces = game.bitboard(type, color);
+                total += sign * VALUES[type] * Long.bitCount(pieces);
+                while(pieces != 0) {
+                    int sq = Long.numberOfTrailingZeros(pieces) ^ flip;
+                    pieces &= pieces - 1;
+                    total += sign * (type == Chess.PAWN ? PAWN_ADVANCE[sq / 8] : CENTER[sq]);
+                }
+            }
+        }
+        return game.sideToMove() == Chess.WHITE ? total : -total;
+    }
+
+    /**
+     * A private helper method to store mate scores relative to the position instead of
+     * the root, so that they stay correct when reached through another path.
+     * @param value The score
+     * @param ply Distance from the root
+     * @return the score to store
+     */
+    private static int toTT(int value, int ply) {
+        return value > MATE - MAX_PLY ? value + ply : value < -MATE + MAX_PLY ? value - ply : value;
+    }
+
+    /**
+     * A private helper method to undo toTT.
+     * @param value The stored score
+     * @param ply Distance from the root
+     * @return the score relative to the root
+     */
+    private static int fromTT(int value, int ply) {
+        return value > MATE - MAX_PLY ? value - ply : value < -MATE + MAX_PLY ? value + ply : value;
+    }
+
+    // An interface for objects that want to follow a Search as it deepens
+    public interface Listener {
+        /**
+         * Called on the searching thread after every completed iteration, once per line
+         * in multi-PV mode.
+         * @param stats Statistics of the search so far
+         */
+        void iterationFinished(Stats stats);
+    }
+
+    // An interface for static evaluation functions a Search can use instead of its own
+    public interface Evaluator {
+        /**
+         * Evaluates the current position of a game, without searching.
+         * @param game The game
+         * @return the score in centipawns for the player to move
+         */
+        int evaluate(Chess game);
+    }
+
+    // A class to hold the statistics of a search after one iteration
+    public static class Stats {
+        private final int depth;
+        private final int seldepth;
+        private final long nodes;
+        private final long elapsedNanos;
+        private final double ttHitRate;
+        private final double firstMoveCutoffRate;
+        private final double branchingFactor;
+        private final int score;
+        private final int[] principalVariation;
+        private final int multiPV;
+
+        /**
+         * Constructs a new Stats for the best line.
+         * @param depth Depth of the iteration
+         * @param seldepth Deepest ply reached, quiescence included
+         * @param nodes Nodes visited so far
+         * @param elapsedNanos Time spent so far
+         * @param ttHitRate Fraction of transposition table probes that found their position
+         * @param firstMoveCutoffRate Fraction of beta cutoffs caused by the first move searched
+         * @param branchingFactor Nodes of this iteration divided by nodes of the previous one
+         * @param score Score of the position for the player to move
+         * @param principalVariation Expected line of encoded moves
+         */
+        public Stats(int depth, int seldepth, long nodes, long elapsedNanos, double ttHitRate,
+                double firstMoveCutoffRate, double branchingFactor, int score,
+                int[] principalVariation) {
+            this(depth, seldepth, nodes, elapsedNanos, ttHitRate, firstMoveCutoffRate,
+                    branchingFactor, score, principalVariation, 1);
+        }
+
+        /**
+         * Constructs a new Stats for one of the lines of a multi-PV search.
+         * @param depth Depth of the iteration
+         * @param seldepth Deepest ply reached, quiescence included
+         * @param nodes Nodes visited so far
+         * @param elapsedNanos Time spent so far
+         * @param ttHitRate Fraction of transposition table probes that found their position
+         * @param firstMoveCutoffRate Fraction of beta cutoffs caused by the first move searched
+         * @param branchingFactor Nodes of this iteration divided by nodes of the previous one
+         * @param score Score of the line for the player to move
+         * @param principalVariation Expected line of encoded moves
+         * @param multiPV Rank of the line, 1 for the best
+         */
+        public Stats(int depth, int seldepth, long nodes, long elapsedNanos, double ttHitRate,
+                double firstMoveCutoffRate, double branchingFactor, int score,
+                int[] principalVariation, int multiPV) {
+            this.depth = depth;
+            this.seldepth = seldepth;
+            this.nodes = nodes;
+            this.elapsedNanos = elapsedNanos;
+            this.ttHitRate = ttHitRate;
+            this.firstMoveCutoffRate = firstMoveCutoffRate;
+            this.branchingFactor = branchingFactor;
+            this.score = score;
+            this.principalVariation = principalVariation.clone();
+            this.multiPV = multiPV;
+        }
+
+        /**
+         * Retrieves the depth of the iteration.
+         * @return the depth
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * Retrieves the deepest ply reached, quiescence included.
+         * @return the selective depth
+         */
+        public int getSeldepth() {
+            return seldepth;
+        }
+
+        /**
+         * Retrieves the number of nodes visited so far.
+         * @return the node count
+         */
+        public long getNodes() {
+            return nodes;
+        }
+
+        /**
+         * Retrieves the time spent so far.
+         * @return the time in nanoseconds
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Retrieves the search speed so far.
+         * @return the nodes visited per second
+         */
+        public long getNodesPerSecond() {
+            return elapsedNanos == 0 ? 0 : nodes * 1_000_000_000L / elapsedNanos;
+        }
+
+        /**
+         * Retrieves the fraction of transposition table probes that found their position.
+         * @return the hit rate, from 0 to 1
+         */
+        public double getTTHitRate() {
+            return ttHitRate;
+        }
+
+        /**
+         * Retrieves the fraction of beta cutoffs caused by the first move searched.
+         * @return the rate, from 0 to 1
+         */
+        public double getFirstMoveCutoffRate() {
+            return firstMoveCutoffRate;
+        }
+
+        /**
+         * Retrieves the nodes of this iteration divided by the nodes of the previous one.
+         * @return the effective branching factor
+         */
+        public double getBranchingFactor() {
+            return branchingFactor;
+        }
+
+        /**
+         * Retrieves the score of the line.
+         * @return the score in centipawns for the player to move
+         */
+        public int getScore() {
+            return score;
+        }
+
+        /**
+         * Retrieves the expected line.
+         * @return the encoded moves
+         */
+        public int[] getPrincipalVariation() {
+            return principalVariation.clone();
+        }
+
+        /**
+         * Retrieves the rank of the line.
+         * @return 1 for the best line, 2 for the next, and so on
+         */
+        public int getMultiPV() {
+            return multiPV;
+        }
+
+        /**
+         * Formats the statistics like a UCI info line.
+         * @return a String representation of the statistics
+         */
+        public String toString() {
+            String pv = "";
+            for(int move : principalVariation) {
+                pv += " " + Chess.moveName(move);
+            }
+            return String.format("depth %d seldepth %d multipv %d score %d nodes %d nps %d " +
+                    "tthit %.2f firstcut %.2f ebf %.2f pv%s", depth, seldepth, multiPV, score, nodes,
+                    getNodesPerSecond(), ttHitRate, firstMoveCutoffRate, branchingFactor, pv);
+        }
+    }
+
+    // A JFR event recorded after every iteration, so searches line up with GC and CPU profiles.
+    // Only filled in and committed while a recording has the event enabled.
+    @Name("chess.SearchIteration")
+    @Label("Search Iteration")
+    @Category("Chess")
+    @Description("Statistics of one iterative deepening iteration")
+    static class IterationEvent extends Event {
+        @Label("Depth")
+        int depth;
+        @Label("Selective Depth")
+        int seldepth;
+        @Label("Nodes")
+        long nodes;
+        @Label("Nodes per Second")
+        long nps;
+        @Label("TT Hit Rate")
+        double ttHitRate;
+        @Label("First Move Cutoff Rate")
+        double firstMoveCutoffRate;
+        @Label("Effective Branching Factor")
+        double branchingFactor;
+        @Label("Pawn Table Hit Rate")
+        double pawnHitRate;
+        @Label("Score")
+        int score;
+        @Label("Best Move")
+        String bestMove;
+    }
+}
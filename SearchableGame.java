@@ -0,0 +1,50 @@
+/**
+* An AbstractStrategyGame that engines can play automatically: moves are encoded as ints
+* that can be enumerated, played and taken back, and the end of the game can be detected
+* without side effects. Players are numbered 1 and 2, as in getWinner.
+*/
+public interface SearchableGame extends AbstractStrategyGame {
+    /**
+    * Returns the largest number of legal moves any position can have,
+    * which is the buffer size generateMoves needs.
+    */
+    public int maxMoves();
+
+    /**
+    * Fills the buffer with the legal moves of the player to move and returns how many
+    * there are. Must not allocate.
+    */
+    public int generateMoves(int[] buffer);
+
+    /**
+    * Plays a move returned by generateMoves on the current position, without validation.
+    */
+    public void doMove(int move);
+
+    /**
+    * Takes back the last move played through doMove.
+    */
+    public void undoMove();
+
+    /**
+    * Returns the index of the player to move, even if the game is over.
+    */
+    public int playerToMove();
+
+    /**
+    * Given the number of legal moves generateMoves just returned, decides whether the
+    * game is over. Returns the index of the winning player, 0 for a draw, or -1 if
+    * play continues.
+    */
+    public int result(int legalMoves);
+
+    /**
+    * Returns a hash of the current position, equal for equal positions.
+    */
+    public long hash();
+
+    /**
+    * Returns an independent copy of the game, so that other threads can search it.
+    */
+    public SearchableGame copy();
+}
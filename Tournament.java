@@ -0,0 +1,472 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// A class to run engine-vs-engine matches between two Search configurations.
+// Every opening is played twice with colors swapped, and games run concurrently: one Chess per
+// game, one Search per player per worker thread, and no other shared state, so throughput
+// grows with the number of cores. Reports win/draw/loss, an Elo difference with a 95%
+// confidence interval, and the log-likelihood ratio of an optional SPRT.
+public class Tournament {
+    // Longest game before it is adjudicated a draw, in plies
+    public static final int DEFAULT_MAX_PLIES = 400;
+    private static final String START = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+
+    private final Player first;
+    private final Player second;
+    private final List<String> openings;
+    private final int threads;
+    private final int maxPlies;
+    // SPRT hypotheses and error rates; the test is off while elo0 == elo1
+    private double elo0;
+    private double elo1;
+    private double alpha;
+    private double beta;
+
+    /**
+     * Constructs a new Tournament.
+     * @param first The engine under test; results are from its point of view
+     * @param second The reference engine
+     * @param openings Starting positions, each a FEN or a space-separated list of moves
+     *                 in Algebraic Notation played from the standard start position
+     * @param threads Number of games to play at once
+     * @throws IllegalArgumentException If there are no openings or one cannot be played
+     */
+    public Tournament(Player first, Player second, List<String> openings, int threads) {
+        this(first, second, openings, threads, DEFAULT_MAX_PLIES);
+    }
+
+    /**
+     * Constructs a new Tournament.
+     * @param first The engine under test; results are from its point of view
+     * @param second The reference engine
+     * @param openings Starting positions, each a FEN or a space-separated list of moves
+     *                 in Algebraic Notation played from the standard start position
+     * @param threads Number of games to play at once
+     * @param maxPlies Plies after which a game is adjudicated a draw
+     * @throws IllegalArgumentException If there are no openings or one cannot be played
+     */
+    public Tournament(Player first, Player second, List<String> openings, int threads,
+            int maxPlies) {
+        if(openings.isEmpty()) {
+            throw new IllegalArgumentException("No openings given");
+        }
+        if(threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+        // Set up every opening once so that a typo fails here instead of in a worker
+        for(String opening : openings) {
+            setUp(opening);
+        }
+        this.first = first;
+        this.second = second;
+        this.openings = new ArrayList<>(openings);
+        this.threads = threads;
+        this.maxPlies = maxPlies;
+    }
+
+    /**
+     * Enables a sequential probability ratio test: the match stops early once the results
+     * show, within the error rates, which of the two Elo hypotheses holds.
+     * @param elo0 Elo difference of the null hypothesis
+     * @param elo1 Elo difference of the alternative hypothesis
+     * @param alpha Chance of accepting elo1 when elo0 holds
+     * @param beta Chance of accepting elo0 when elo1 holds
+     * @throws IllegalArgumentException If elo0 >= elo1 or an error rate is not in (0, 1)
+     */
+    public void setSPRT(double elo0, double elo1, double alpha, double beta) {
+        if(elo0 >= elo1 || alpha <= 0 || alpha >= 1 || beta <= 0 || beta >= 1) {
+            throw new IllegalArgumentException("Invalid SPRT parameters");
+        }
+        this.elo0 = elo0;
+        this.elo1 = elo1;
+        this.alpha = alpha;
+        this.beta = beta;
+    }
+
+    /**
+     * Plays the match, blocking until it finishes.
+     * @param rounds Times to play through the openings; each round is two games per opening
+     * @return the results
+     * @throws InterruptedException If the calling thread is interrupted while waiting
+     */
+    public Result run(int rounds) throws InterruptedException {
+        Result result = new Result(elo0, elo1, alpha, beta);
+        AtomicBoolean decided = new AtomicBoolean();
+        ThreadLocal<Search[]> engines = ThreadLocal.withInitial(() -> new Search[] {
+            new Search(first.hashMegabytes), new Search(second.hashMegabytes)
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> games = new ArrayList<>();
+        try {
+            for(int round = 0; round < rounds; round++) {
+                for(String opening : openings) {
+                    for(int firstColor = Chess.WHITE; firstColor <= Chess.BLACK; firstColor++) {
+                        int color = firstColor;
+                        games.add(pool.submit(() -> {
+                            if(decided.get()) {
+                                return;
+                            }
+                            Search[] searches = engines.get();
+                            int outcome = play(opening, searches, color);
+                            if(result.add(outcome)) {
+                                decided.set(true);
+                            }
+                        }));
+                    }
+                }
+            }
+            for(Future<?> game : games) {
+                try {
+                    game.get();
+                } catch(ExecutionException ex) {
+                    throw new IllegalStateException("Game failed", ex.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        return result;
+    }
+
+    /**
+     * A private helper method to play one game to its end.
+     * @param opening The opening to start from
+     * @param searches The Search of the first player, then of the second
+     * @param firstColor Color played by the first player
+     * @return 1 if the first player won, -1 if it lost, and 0 for a draw
+     */
+    private int play(String opening, Search[] searches, int firstColor) {
+        Chess game = setUp(opening);
+        searches[0].clear();
+        searches[1].clear();
+        // Hashes of every position reached, to detect threefold repetition
+        long[] history = new long[maxPlies + 1];
+        for(int ply = 0; ply < maxPlies; ply++) {
+            history[ply] = game.hash();
+            int winner = game.getWinner();
+            if(winner >= 0) {
+                // Players are numbered from 1, colors from 0
+                return winner == 0 ? 0 : winner - 1 == firstColor ? 1 : -1;
+            }
+            if(game.halfmoveClock() >= 100 || repetitions(history, ply, game.halfmoveClock()) >= 3 ||
+                    game.insufficientMaterial()) {
+                return 0;
+            }
+            boolean firstToMove = game.sideToMove() == firstColor;
+            Player player = firstToMove ? first : second;
+            int move = searches[firstToMove ? 0 : 1].search(game, player.maxDepth,
+                    player.maxNodes, player.maxMillis);
+            game.doMove(move);
+        }
+        return 0;
+    }
+
+    /**
+     * A private helper method to build the starting position of an opening.
+     * @param opening A FEN, or a space-separated list of moves in Algebraic Notation
+     * @return a new game at that position
+     * @throws IllegalArgumentException If the opening cannot be played
+     */
+    private static Chess setUp(String opening) {
+        if(opening.contains("/")) {
+            try {
+                return new Chess(opening.trim());
+            } catch(RuntimeException ex) {
+                throw new IllegalArgumentException("Bad FEN: " + opening, ex);
+            }
+        }
+        Chess game = new Chess(START);
+        for(String move : opening.trim().split("\\s+")) {
+            if(!move.isEmpty()) {
+                game.makeMove(move);
+            }
+        }
+        return game;
+    }
+
+    /**
+     * A private helper method to count how often the current position has occurred.
+     * @param history Position hashes indexed by ply
+     * @param ply The current ply
+     * @param halfmoveClock Plies since the last capture or pawn move
+     * @return the number of occurrences, including the current one
+     */
+    private static int repetitions(long[] history, int ply, int halfmoveClock) {
+        int count = 1;
+        for(int i = ply - 2; i >= 0 && i >= ply - halfmoveClock; i -= 2) {
+            if(history[i] == history[ply]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Runs a match from the command line and prints the results.
+     * Usage: java Tournament games threads depth1 depth2 [openings file]
+     * @param args The arguments
+     * @throws IOException If the openings file cannot be read
+     * @throws InterruptedException If interrupted while waiting for the match
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int games = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int threads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        int depth1 = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int depth2 = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        List<String> openings = new ArrayList<>();
+        if(args.length > 4) {
+            for(String line : Files.readAllLines(Paths.get(args[4]))) {
+                if(!line.isBlank() && !line.startsWith("#")) {
+                    openings.add(line);
+                }
+            }
+        } else {
+            openings.add("e4 e5");
+            openings.add("d4 d5");
+            openings.add("e4 c5");
+            openings.add("d4 Nf6 c4 e6");
+            openings.add("c4 e5");
+        }
+        Tournament match = new Tournament(new Player("depth " + depth1, depth1, 0, 0, 4),
+                new Player("depth " + depth2, depth2, 0, 0, 4), openings, threads);
+        match.setSPRT(0, 10, 0.05, 0.05);
+        long start = System.nanoTime();
+        Result result = match.run(Math.max(1, games / (2 * openings.size())));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(result);
+        System.out.printf("%.1f games/s on %d threads%n", result.games() / seconds, threads);
+    }
+
+    // A class to describe one engine: a name and the limits its Search runs with
+    public static class Player {
+        private final String name;
+        private final int maxDepth;
+        private final long maxNodes;
+        private final long maxMillis;
+        private final int hashMegabytes;
+
+        /**
+         * Constructs a new Player.
+         * @param name Name to report
+         * @param maxDepth Deepest iteration per move
+         * @param maxNodes Node budget per move, or 0 for none
+         * @param maxMillis Time budget per move in milliseconds, or 0 for none
+         * @param hashMegabytes Transposition table size
+         * @throws IllegalArgumentException If maxDepth or hashMegabytes is not positive
+         */
+        public Player(String name, int maxDepth, long maxNodes, long maxMillis, int hashMegabytes) {
+            if(maxDepth < 1 || hashMegabytes < 1) {
+                throw new IllegalArgumentException("Depth and hash size must be positive");
+            }
+            this.name = name;
+            this.maxDepth = maxDepth;
+            this.maxNodes = maxNodes;
+            this.maxMillis = maxMillis;
+            this.hashMegabytes = hashMegabytes;
+        }
+
+        /**
+         * Formats the Player.
+         * @return the Player's name
+         */
+        public String toString() {
+            return name;
+        }
+    }
+
+    // A class to collect the results of a match, safe to update from every worker
+    public static class Result {
+        private final double elo0;
+        private final double elo1;
+        private final double lowerBound;
+        private final double upperBound;
+        private int wins;
+        private int draws;
+        private int losses;
+
+        /**
+         * Constructs a new, empty Result.
+         * @param elo0 Elo difference of the SPRT null hypothesis
+         * @param elo1 Elo difference of the SPRT alternative hypothesis (elo0 to disable)
+         * @param alpha SPRT false positive rate
+         * @param beta SPRT false negative rate
+         */
+        public Result(double elo0, double elo1, double alpha, double beta) {
+            this.elo0 = elo0;
+            this.elo1 = elo1;
+            lowerBound = elo0 == elo1 ? 0 : Math.log(beta / (1 - alpha));
+            upperBound = elo0 == elo1 ? 0 : Math.log((1 - beta) / alpha);
+        }
+
+        /**
+         * Records the outcome of a game.
+         * @param outcome 1 for a win, 0 for a draw and -1 for a loss
+         * @return true if the SPRT has reached a decision
+         */
+        public synchronized boolean add(int outcome) {
+            if(outcome > 0) {
+                wins++;
+            } else if(outcome < 0) {
+                losses++;
+            } else {
+                draws++;
+            }
+            return isSPRTEnabled() && (llr() >= upperBound || llr() <= lowerBound);
+        }
+
+        /**
+         * Retrieves the number of games the first player won.
+         * @return the win count
+         */
+        public synchronized int wins() {
+            return wins;
+        }
+
+        /**
+         * Retrieves the number of drawn games.
+         * @return the draw count
+         */
+        public synchronized int draws() {
+            return draws;
+        }
+
+        /**
+         * Retrieves the number of games the first player lost.
+         * @return the loss count
+         */
+        public synchronized int losses() {
+            return losses;
+        }
+
+        /**
+         * Retrieves the number of games played.
+         * @return the game count
+         */
+        public synchronized int games() {
+            return wins + draws + losses;
+        }
+
+        /**
+         * Retrieves the fraction of points scored by the first player.
+         * @return the score, from 0 to 1, or 0.5 before any game
+         */
+        public synchronized double score() {
+            int n = games();
+            return n == 0 ? 0.5 : (wins + 0.5 * draws) / n;
+        }
+
+        /**
+         * Estimates the Elo difference between the players from the score.
+         * @return the Elo difference, positive if the first player is stronger
+         */
+        public synchronized double elo() {
+            return elo(score());
+        }
+
+        /**
+         * Estimates the half-width of the 95% confidence interval of elo(),
+         * from the variance of the per-game scores.
+         * @return the error bar in Elo
+         */
+        public synchronized double eloError() {
+            int n = games();
+            double s = score();
+            if(n == 0 || s == 0 || s == 1) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double deviation = 1.96 * Math.sqrt(variance(s) / n);
+            return (elo(Math.min(1, s + deviation)) - elo(Math.max(0, s - deviation))) / 2;
+        }
+
+        /**
+         * Checks if the SPRT is on, which it is unless elo0 == elo1.
+         * @return true if the SPRT is enabled
+         */
+        public boolean isSPRTEnabled() {
+            return elo0 != elo1;
+        }
+
+        /**
+         * Computes the log-likelihood ratio of elo1 against elo0, using the normal
+         * approximation of the generalized SPRT.
+         * @return the log-likelihood ratio, or 0 if the SPRT is disabled or undecidable yet
+         */
+        public synchronized double llr() {
+            int n = games();
+            if(!isSPRTEnabled() || n == 0) {
+                return 0;
+            }
+            double s = score();
+            double var = variance(s);
+            if(var == 0) {
+                return 0;
+            }
+            double s0 = expectedScore(elo0);
+            double s1 = expectedScore(elo1);
+            return n * (s1 - s0) * (2 * s - s0 - s1) / (2 * var);
+        }
+
+        /**
+         * Retrieves the SPRT decision.
+         * @return "H1" if elo1 was accepted, "H0" if elo0 was accepted, and "continue" otherwise
+         */
+        public synchronized String sprt() {
+            double llr = llr();
+            return !isSPRTEnabled() ? "off" : llr >= upperBound ? "H1" : llr <= lowerBound ? "H0"
+                    : "continue";
+        }
+
+        /**
+         * Formats the results.
+         * @return a String representation of the results
+         */
+        public synchronized String toString() {
+            String out = String.format("Games %d: +%d =%d -%d (%.1f%%)%nElo %+.1f +/- %.1f",
+                    games(), wins, draws, losses, 100 * score(), elo(), eloError());
+            if(isSPRTEnabled()) {
+                out += String.format("%nSPRT [%.1f, %.1f] LLR %.2f (%.2f, %.2f) %s",
+                        elo0, elo1, llr(), lowerBound, upperBound, sprt());
+            }
+            return out;
+        }
+
+        /**
+         * A private helper method to compute the variance of the per-game score.
+         * @param s The mean score
+         * @return the variance
+         */
+        private double variance(double s) {
+            int n = games();
+            return (wins * (1 - s) * (1 - s) + draws * (0.5 - s) * (0.5 - s) + losses * s * s) / n;
+        }
+
+        /**
+         * A private helper method to convert a score to an Elo difference.
+         * @param s The score, from 0 to 1
+         * @return the Elo difference, infinite for 0 or 1
+         */
+        private static double elo(double s) {
+            return -400 * Math.log10(1 / s - 1);
+        }
+
+        /**
+         * A private helper method to convert an Elo difference to an expected score.
+         * @param elo The Elo difference
+         * @return the expected score, from 0 to 1
+         */
+        private static double expectedScore(double elo) {
+            return 1 / (1 + Math.pow(10, -elo / 400));
+        }
+    }
+}
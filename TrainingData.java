@@ -0,0 +1,359 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A class to generate training data for evaluation functions from self-play games.
+// Each game starts with a few random moves, then both sides play fixed-node searches.
+// Every quiet position is recorded with its search score and, once the game is over,
+// its result, as a RECORD_BYTES fixed-width record:
+//
+//   bytes 0-28   the position, packed by Position.pack
+//   bytes 29-30  search score in centipawns for the player to move (big-endian short)
+//   byte 31      game result for the player to move: 1 win, 0 draw, -1 loss
+//
+// Records go to numbered shard files through a buffered NIO channel. A shard is written as
+// .part and renamed to .bin once complete, so readers never see a partial shard.
+public class TrainingData {
+    public static final int RECORD_BYTES = 32;
+    // Default longest game, in plies, before it is scored as a draw
+    public static final int DEFAULT_MAX_PLIES = 400;
+    // Random moves played before the engines take over
+    private static final int MIN_RANDOM_PLIES = 8;
+    private static final int MAX_RANDOM_PLIES = 12;
+
+    private final Path directory;
+    private final int threads;
+    private final long nodesPerMove;
+    private final long recordsPerShard;
+    private final int maxPlies;
+
+    /**
+     * Constructs a new TrainingData generator.
+     * @param directory Where to write shards
+     * @param threads Number of games to play at once
+     * @param nodesPerMove Search nodes per move
+     * @param recordsPerShard Records per shard file
+     * @throws IllegalArgumentException If a count is not positive
+     */
+    public TrainingData(Path directory, int threads, long nodesPerMove, long recordsPerShard) {
+        if(threads < 1 || nodesPerMove < 1 || recordsPerShard < 1) {
+            throw new IllegalArgumentException("Threads, nodes and shard size must be positive");
+        }
+        this.directory = directory;
+        this.threads = threads;
+        this.nodesPerMove = nodesPerMove;
+        this.recordsPerShard = recordsPerShard;
+        maxPlies = DEFAULT_MAX_PLIES;
+    }
+
+    /**
+     * Plays games and writes their positions, blocking until all are done.
+     * @param games Number of games to play
+     * @return the number of records written
+     * @throws IOException If a shard cannot be written
+     * @throws InterruptedException If interrupted while waiting for the workers
+     */
+    public long generate(int games) throws IOException, InterruptedException {
+        Files.createDirectories(directory);
+        AtomicInteger remaining = new AtomicInteger(games);
+        IOException[] failure = new IOException[1];
+        try(ShardWriter writer = new ShardWriter(directory, "selfplay", recordsPerShard)) {
+            List<Thread> workers = new ArrayList<>();
+            for(int i = 0; i < threads; i++) {
+                long seed = System.nanoTime() + i;
+                Thread worker = new Thread(() -> {
+                    SplittableRandom random = new SplittableRandom(seed);
+                    Search search = new Search(4);
+                    ByteBuffer records = ByteBuffer.allocate(maxPlies * RECORD_BYTES);
+                    int[] moves = new int[Chess.MAX_MOVES];
+                    try {
+                        while(remaining.getAndDecrement() > 0) {
+                            play(search, random, moves, records);
+                            writer.write(records);
+                        }
+                    } catch(IOException ex) {
+                        synchronized(failure) {
+                            failure[0] = ex;
+                        }
+                        remaining.set(0);
+                    }
+                }, "selfplay-" + i);
+                workers.add(worker);
+                worker.start();
+            }
+            for(Thread worker : workers) {
+                worker.join();
+            }
+            synchronized(failure) {
+                if(failure[0] != null) {
+                    throw failure[0];
+                }
+            }
+            return writer.records();
+        }
+    }
+
+    /**
+     * A private helper method to play one game and collect its records.
+     * @param search The Search both sides use
+     * @param random Source of the random opening moves
+     * @param moves Move buffer
+     * @param records Where to put the records, ready to be read when this returns
+     */
+    private void play(Search search, SplittableRandom random, int[] moves, ByteBuffer records) {
+        Chess game;
+        do {
+            game = new Chess();
+            int randomPlies = random.nextInt(MIN_RANDOM_PLIES, MAX_RANDOM_PLIES + 1);
+            for(int ply = 0; ply < randomPlies; ply++) {
+                int n = game.generateMoves(moves);
+                if(game.result(n) >= 0) {
+                    break;
+                }
+                game.doMove(moves[random.nextInt(n)]);
+            }
+        } while(game.result(game.generateMoves(moves)) >= 0);
+
+        search.clear();
+        records.clear();
+        int winner = 0;
+        for(int ply = 0; ply < maxPlies; ply++) {
+            int result = game.result(game.generateMoves(moves));
+            if(result >= 0) {
+                winner = result;
+                break;
+            }
+            int move = search.search(game, Search.MAX_PLY, nodesPerMove, 0);
+            int score = search.getScore();
+            if(Math.abs(score) >= Search.MATE - Search.MAX_PLY) {
+                // A forced mate was found, so the result is known
+                winner = (score > 0) == (game.sideToMove() == Chess.WHITE) ? 1 : 2;
+                break;
+            }
+            // Only quiet positions are useful for training a static evaluation
+            if(!game.inCheck() && !game.isCapture(move) && records.remaining() >= RECORD_BYTES) {
+                game.pack(records);
+                records.putShort((short) score);
+                // Remember the player to move until the result is known
+                records.put((byte) game.sideToMove());
+            }
+            game.doMove(move);
+        }
+        for(int end = RECORD_BYTES - 1; end < records.position(); end += RECORD_BYTES) {
+            int player = records.get(end) + 1;
+            records.put(end, (byte) (winner == 0 ? 0 : winner == player ? 1 : -1));
+        }
+        records.flip();
+    }
+
+    /**
+     * Generates shards, or prints the records of one, from the command line.
+     * Usage: java TrainingData generate dir games [threads] [nodes] [records per shard]
+     *        java TrainingData dump shard [count]
+     * @param args The arguments
+     * @throws IOException If a file cannot be read or written
+     * @throws InterruptedException If interrupted while waiting for the workers
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if(args.length >= 3 && args[0].equals("generate")) {
+            int threads = args.length > 3 ? Integer.parseInt(args[3])
+                    : Runtime.getRuntime().availableProcessors();
+            long nodes = args.length > 4 ? Long.parseLong(args[4]) : 5000;
+            long perShard = args.length > 5 ? Long.parseLong(args[5]) : 1 << 20;
+            long start = System.nanoTime();
+            long records = new TrainingData(Paths.get(args[1]), threads, nodes, perShard)
+                    .generate(Integer.parseInt(args[2]));
+            double hours = (System.nanoTime() - start) / 3.6e12;
+            System.out.printf("%d records (%.0f per hour)%n", records, records / hours);
+        } else if(args.length >= 2 && args[0].equals("dump")) {
+            int count = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+            try(FileChannel channel = FileChannel.open(Paths.get(args[1]), StandardOpenOption.READ)) {
+                MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                while(count-- > 0 && in.remaining() >= RECORD_BYTES) {
+                    System.out.println(Record.read(in));
+                }
+            }
+        } else {
+            System.out.println("Usage: java TrainingData generate <dir> <games> [threads] " +
+                    "[nodes] [records per shard] | dump <shard> [count]");
+        }
+    }
+
+    // A class to represent one decoded record
+    public static class Record {
+        public final Position position;
+        public final int score;
+        public final int result;
+
+        /**
+         * Constructs a new Record.
+         * @param position The position
+         * @param score Search score in centipawns for the player to move
+         * @param result Game result for the player to move: 1 win, 0 draw, -1 loss
+         */
+        public Record(Position position, int score, int result) {
+            this.position = position;
+            this.score = score;
+            this.result = result;
+        }
+
+        /**
+         * Reads one record.
+         * @param in Where to read RECORD_BYTES bytes
+         * @return the record
+         * @throws IllegalArgumentException If the bytes do not hold a valid record
+         */
+        public static Record read(ByteBuffer in) {
+            Position position = Position.unpack(in);
+            int score = in.getShort();
+            int result = in.get();
+            return new Record(position, score, result);
+        }
+
+        /**
+         * Formats the Record.
+         * @return the position in FEN, the score and the result
+         */
+        public String toString() {
+            return position.toFEN() + " | " + score + " | " + result;
+        }
+    }
+
+    // A class to append fixed-width records to rotating shard files through one buffered channel
+    public static class ShardWriter implements Closeable {
+        private static final int BUFFER_BYTES = 1 << 20;
+
+        private final Path directory;
+        private final String prefix;
+        private final long recordsPerShard;
+        private final ByteBuffer buffer;
+        private FileChannel channel;
+        private Path current;
+        private int shard;
+        private long inShard;
+        private long records;
+
+        /**
+         * Constructs a new ShardWriter. Shards are named prefix-00000.bin, prefix-00001.bin and
+         * so on, skipping numbers already taken in the directory.
+         * @param directory Where to write shards
+         * @param prefix Start of every shard's name
+         * @param recordsPerShard Records per shard
+         */
+        public ShardWriter(Path directory, String prefix, long recordsPerShard) {
+            this.directory = directory;
+            this.prefix = prefix;
+            this.recordsPerShard = recordsPerShard;
+            buffer = ByteBuffer.allocateDirect(BUFFER_BYTES - BUFFER_BYTES % RECORD_BYTES);
+        }
+
+        /**
+         * Appends records, starting new shards as they fill up. Safe to call from any thread;
+         * the records of one call are written contiguously, but may span two shards.
+         * @param in Whole records to write, from its position to its limit; it is consumed
+         * @throws IOException If a shard cannot be written
+         * @throws IllegalArgumentException If in does not hold whole records
+         */
+        public synchronized void write(ByteBuffer in) throws IOException {
+            if(in.remaining() % RECORD_BYTES != 0) {
+                throw new IllegalArgumentException("Partial record");
+            }
+            while(in.hasRemaining()) {
+                if(inShard == recordsPerShard) {
+                    finishShard();
+                }
+                if(channel == null) {
+                    openShard();
+                }
+                if(!buffer.hasRemaining()) {
+                    flush();
+                }
+                long count = Math.min(recordsPerShard - inShard, Math.min(in.remaining(),
+                        buffer.remaining()) / RECORD_BYTES);
+                ByteBuffer chunk = in.duplicate();
+                chunk.limit(in.position() + (int) count * RECORD_BYTES);
+                buffer.put(chunk);
+                in.position(chunk.limit());
+                inShard += count;
+                records += count;
+            }
+        }
+
+        /**
+         * Retrieves the number of records written.
+         * @return the record count
+         */
+        public synchronized long records() {
+            return records;
+        }
+
+        /**
+         * Completes the current shard.
+         * @throws IOException If it cannot be written
+         */
+        public synchronized void close() throws IOException {
+            if(channel != null) {
+                finishShard();
+            }
+        }
+
+        /**
+         * A private helper method to start the next shard.
+         * @throws IOException If it cannot be created
+         */
+        private void openShard() throws IOException {
+            while(Files.exists(shardPath(shard, ".bin")) || Files.exists(shardPath(shard, ".part"))) {
+                shard++;
+            }
+            current = shardPath(shard, ".part");
+            channel = FileChannel.open(current, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+            inShard = 0;
+        }
+
+        /**
+         * A private helper method to write out the current shard and publish it.
+         * @throws IOException If it cannot be written
+         */
+        private void finishShard() throws IOException {
+            flush();
+            channel.close();
+            channel = null;
+            Files.move(current, shardPath(shard, ".bin"), StandardCopyOption.ATOMIC_MOVE);
+            shard++;
+        }
+
+        /**
+         * A private helper method to write the buffered records to the channel.
+         * @throws IOException If they cannot be written
+         */
+        private void flush() throws IOException {
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * A private helper method to name a shard file.
+         * @param number The shard's number
+         * @param extension ".part" while it is written, ".bin" once complete
+         * @return the path of the shard
+         */
+        private Path shardPath(int number, String extension) {
+            return directory.resolve(String.format("%s-%05d%s", prefix, number, extension));
+        }
+    }
+}
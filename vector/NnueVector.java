@@ -0,0 +1,82 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// A class to run the Nnue kernels with the jdk.incubator.vector API, using the widest
+// vectors the CPU has. Nnue loads it reflectively, so compiling and running it needs
+// --add-modules jdk.incubator.vector; without that flag Nnue uses its scalar kernels. It is kept
+// out of the top directory so that a plain javac *.java does not need the flag.
+class NnueVector implements Nnue.Kernels {
+    private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED;
+    // Ints of the same total width, for the products of two shorts
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    /**
+     * Adds a weight row to an accumulator a vector at a time, with a scalar tail.
+     * @param accumulator The accumulator
+     * @param weights The weights
+     * @param offset Start of the row in weights
+     */
+    public void add(short[] accumulator, short[] weights, int offset) {
+        int i = 0;
+        for(int bound = SHORTS.loopBound(accumulator.length); i < bound; i += SHORTS.length()) {
+            ShortVector.fromArray(SHORTS, accumulator, i)
+                    .add(ShortVector.fromArray(SHORTS, weights, offset + i))
+                    .intoArray(accumulator, i);
+        }
+        for(; i < accumulator.length; i++) {
+            accumulator[i] += weights[offset + i];
+        }
+    }
+
+    /**
+     * Subtracts a weight row from an accumulator a vector at a time, with a scalar tail.
+     * @param accumulator The accumulator
+     * @param weights The weights
+     * @param offset Start of the row in weights
+     */
+    public void sub(short[] accumulator, short[] weights, int offset) {
+        int i = 0;
+        for(int bound = SHORTS.loopBound(accumulator.length); i < bound; i += SHORTS.length()) {
+            ShortVector.fromArray(SHORTS, accumulator, i)
+                    .sub(ShortVector.fromArray(SHORTS, weights, offset + i))
+                    .intoArray(accumulator, i);
+        }
+        for(; i < accumulator.length; i++) {
+            accumulator[i] -= weights[offset + i];
+        }
+    }
+
+    /**
+     * Computes the dot product of a clipped accumulator and a weight row, summing the
+     * products in int lanes.
+     * @param accumulator The accumulator, clipped to [0, max]
+     * @param weights The weights
+     * @param offset Start of the row in weights
+     * @param max Upper clipping bound
+     * @return the dot product
+     */
+    public long clippedDot(short[] accumulator, short[] weights, int offset, int max) {
+        // A clipped value (at most 255) times a weight fits in a short only for tiny weights,
+        // so each half of the short lanes is widened to ints before multiplying
+        IntVector sum = IntVector.zero(INTS);
+        short top = (short) max;
+        int i = 0;
+        for(int bound = SHORTS.loopBound(accumulator.length); i < bound; i += SHORTS.length()) {
+            ShortVector clipped = ShortVector.fromArray(SHORTS, accumulator, i)
+                    .max((short) 0).min(top);
+            ShortVector weight = ShortVector.fromArray(SHORTS, weights, offset + i);
+            for(int part = 0; part < 2; part++) {
+                IntVector a = (IntVector) clipped.convertShape(VectorOperators.S2I, INTS, part);
+                IntVector b = (IntVector) weight.convertShape(VectorOperators.S2I, INTS, part);
+                sum = sum.add(a.mul(b));
+            }
+        }
+        long total = sum.reduceLanesToLong(VectorOperators.ADD);
+        for(; i < accumulator.length; i++) {
+            total += Math.min(Math.max(accumulator[i], 0), max) * weights[offset + i];
+        }
+        return total;
+    }
+}